@@ -14,6 +14,7 @@ public class Config {
     public static final String KEY_RENDER_EXTERNAL_PROCESS = "render_external";
     public static final String KEY_EXTERNAL_RENDER_CP = "external_render_classpath";
     public static final String KEY_JAVA_EXECUTABLE = "java_executable";
+    public static final String KEY_RENDER_CACHE_DIR = "render_cache_dir";
 
     /** Load all values from .properties files in WEB-INF into a single hash map. */
     public static HashMap<String,String> getAllProperties(ServletContext context) throws IOException {
@@ -60,6 +61,12 @@ public class Config {
         return result;
     }
 
+    /** The directory of the render cache, or null to keep rendered images only in memory. */
+    public static File getRenderCacheDir(ServletContext context) throws IOException {
+        String dirName = getAllProperties(context).get(KEY_RENDER_CACHE_DIR);
+        return dirName == null ? null : new File(dirName);
+    }
+
     /** The classpath for rendering externally. */
     public static String getExternalRenderClasspath(ServletContext context) throws IOException {
         String dirName = getAllProperties(context).get(KEY_EXTERNAL_RENDER_CP);
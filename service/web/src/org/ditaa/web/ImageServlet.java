@@ -1,19 +1,16 @@
 package org.ditaa.web;
 
 import org.stathissideris.ascii2image.core.ConversionOptions;
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
-import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.core.RenderCache;
 import org.stathissideris.ascii2image.text.TextGrid;
 
-import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
-import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -35,6 +32,7 @@ public class ImageServlet extends HttpServlet {
     /** Internal renderer */
     private static final Object INTERNAL_SETUP_SYNC = new Object();
     private static ExecutorService RENDER_EXECUTOR;
+    private static RenderCache RENDER_CACHE;
     static {
         // 12 workers -- setup on first use
         // RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
@@ -50,7 +48,33 @@ public class ImageServlet extends HttpServlet {
             throws IOException, ServletException
     {
         long start = System.currentTimeMillis();
-        final ConversionOptions options = new ConversionOptions();
+        final ConversionOptions options = getOptions(request);
+        String backgroundString = getBackgroundString(request);
+
+        String gridText = request.getParameter("grid");
+        if (gridText == null || gridText.trim().length() == 0)
+            gridText = "---\n| |\n---";
+
+        System.out.println("Request for " + request.getRequestURI() + " referred from "
+                + request.getHeader("referer") + "  from " + request.getRemoteHost() + " - " + new Date() + ":");
+        try {
+            int timeoutSeconds = getTimeout(request);
+            if (Config.isRenderExternal(getServletContext()))
+                renderExternal(options, backgroundString, gridText, timeoutSeconds, response);
+            else
+                renderInternal(options, gridText, timeoutSeconds, response);
+            System.out.println("Completed in " + (System.currentTimeMillis() - start) + " ms");
+        } catch(TimeoutException e) {
+            String url = "timeout.jsp?" + HttpKit.adjustParameters(request, "timeout", "" + getTimeout(request));
+            System.out.println("Timed out after " + (System.currentTimeMillis() - start) + " ms");
+            debug("  --> Redirecting to " + url);
+            response.sendRedirect(url);
+        }
+    }
+
+    /** The conversion options given by the parameters of the request. */
+    static ConversionOptions getOptions(HttpServletRequest request) {
+        ConversionOptions options = new ConversionOptions();
         options.processingOptions.setCharacterEncoding("UTF-8");
 
         @SuppressWarnings({"unchecked"}) Map<String,String[]> paramMap = request.getParameterMap();
@@ -63,21 +87,15 @@ public class ImageServlet extends HttpServlet {
         float scale = getScale(request);
 
         Color background = null;
-        String backgroundString = null;
+        String backgroundString = getBackgroundString(request);
         if (transparent)
             background = new Color(0, 0, 0, 0);
-        else {
-            String[] backgroundStrings = paramMap.get("background");
-            if (backgroundStrings != null && backgroundStrings.length >= 1) {
-                backgroundString = backgroundStrings[0];
-                if (backgroundString != null)
-                    try {
-                        background = ConversionOptions.parseColor(backgroundString);
-                    } catch(IllegalArgumentException e) {
-                        System.err.println("Bad background color \"" + backgroundString + "\": " + e.getMessage());
-                    }
+        else if (backgroundString != null)
+            try {
+                background = ConversionOptions.parseColor(backgroundString);
+            } catch(IllegalArgumentException e) {
+                System.err.println("Bad background color \"" + backgroundString + "\": " + e.getMessage());
             }
-        }
 
         options.renderingOptions.setAntialias(!noAntiAlias);
         options.renderingOptions.setDropShadows(!noShadows);
@@ -91,26 +109,18 @@ public class ImageServlet extends HttpServlet {
 //        options.processingOptions.setColorCodesProcessingMode(ProcessingOptions.USE_COLOR_CODES);
 //        options.processingOptions.setPrintDebugOutput(true);
 //        options.processingOptions.setVerbose(true);
+        return options;
+    }
 
-        String gridText = request.getParameter("grid");
-        if (gridText == null || gridText.trim().length() == 0)
-            gridText = "---\n| |\n---";
-
-        System.out.println("Request for " + request.getRequestURI() + " referred from "
-                + request.getHeader("referer") + "  from " + request.getRemoteHost() + " - " + new Date() + ":");
-        try {
-            int timeoutSeconds = getTimeout(request);
-            if (Config.isRenderExternal(getServletContext()))
-                renderExternal(options, backgroundString, gridText, timeoutSeconds, response);
-            else
-                renderInternal(options, gridText, timeoutSeconds, response);
-            System.out.println("Completed in " + (System.currentTimeMillis() - start) + " ms");
-        } catch(TimeoutException e) {
-            String url = "timeout.jsp?" + HttpKit.adjustParameters(request, "timeout", "" + getTimeout(request));
-            System.out.println("Timed out after " + (System.currentTimeMillis() - start) + " ms");
-            debug("  --> Redirecting to " + url);
-            response.sendRedirect(url);
-        }
+    /** The background color asked for, unless the image is transparent. */
+    private static String getBackgroundString(HttpServletRequest request) {
+        @SuppressWarnings({"unchecked"}) Map<String,String[]> paramMap = request.getParameterMap();
+        if (paramMap.containsKey("T") || paramMap.containsKey("transparent"))
+            return null;
+        String[] backgroundStrings = paramMap.get("background");
+        if (backgroundStrings != null && backgroundStrings.length >= 1)
+            return backgroundStrings[0];
+        return null;
     }
 
     private void debug(String msg) {
@@ -148,29 +158,42 @@ public class ImageServlet extends HttpServlet {
     {
         final TextGrid grid = new TextGrid();
 
-        // initialize thread pool on first use, to avoid unnecessary allocation
         synchronized (INTERNAL_SETUP_SYNC) {
-            if (RENDER_EXECUTOR == null)
-                RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
+            if (RENDER_CACHE == null)
+                RENDER_CACHE = new RenderCache(RenderCache.DEFAULT_MAX_BYTES, Config.getRenderCacheDir(getServletContext()));
         }
 
-        Future<RenderedImage> future = RENDER_EXECUTOR.submit(new Callable<RenderedImage>() {
-            public RenderedImage call() throws Exception {
+        final RenderCache cache = RENDER_CACHE;
+        final ResponseStream os = new ResponseStream(response);
+        Future<Void> future = getRenderExecutor().submit(new Callable<Void>() {
+            public Void call() throws Exception {
                 grid.initialiseWithText(gridText, options.processingOptions);
                 grid.printDebug();
 
-                Diagram diagram = new Diagram(grid, options);
-                return new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+                // the simple way -- no metadata
+                // the image is sent as it is rendered, unless it is in the cache
+                cache.render(grid, options, os);
+                os.flush();
+                return null;
             }
         });
         try {
-            RenderedImage image = future.get(timeoutSeconds, TimeUnit.SECONDS);
-            response.setContentType("image/png");
-            response.setDateHeader("Expires", System.currentTimeMillis() + 2*60*60*1000L);
-            ServletOutputStream os = response.getOutputStream();
-
-            // the simple way -- no metadata
-            ImageIO.write(image, "png", os);
+            try {
+                future.get(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (os.abandon())
+                    throw e;
+                // too late to redirect, the client is already getting the image,
+                // so give it as long again to finish and then cut it off
+                try {
+                    future.get(timeoutSeconds, TimeUnit.SECONDS);
+                } catch (TimeoutException e2) {
+                    os.abort();
+                    future.cancel(true);
+                    throw new IOException("Timed out after sending part of the image", e2);
+                }
+            }
+            System.out.println("  " + cache);
 
             // the fun way -- metadata!
             // cribbed from http://stackoverflow.com/questions/721918
@@ -195,6 +218,75 @@ public class ImageServlet extends HttpServlet {
         }
     }
 
+    /** The threads that render the images, also used by LivePreviewServlet. */
+    static ExecutorService getRenderExecutor() {
+        // initialize thread pool on first use, to avoid unnecessary allocation
+        synchronized (INTERNAL_SETUP_SYNC) {
+            if (RENDER_EXECUTOR == null)
+                RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
+            return RENDER_EXECUTOR;
+        }
+    }
+
+    /**
+     * The output stream of a response that is written to by the render thread.
+     * The headers are set on the first write, unless the request has timed out,
+     * in which case the image is still rendered (so that it ends up in the cache)
+     * but it is not written. If the request times out again after the image has
+     * started being written, the stream is aborted and the render stops at its
+     * next write.
+     */
+    private static class ResponseStream extends OutputStream {
+        private final HttpServletResponse response;
+        private OutputStream os;
+        private boolean abandoned = false;
+        private boolean aborted = false;
+
+        ResponseStream(HttpServletResponse response) {
+            this.response = response;
+        }
+
+        /** @return where to write, or null if the request timed out */
+        private synchronized OutputStream getStream() throws IOException {
+            if (aborted)
+                throw new IOException("The response was aborted");
+            if (os == null && !abandoned) {
+                response.setContentType("image/png");
+                response.setDateHeader("Expires", System.currentTimeMillis() + 2*60*60*1000L);
+                os = response.getOutputStream();
+            }
+            return os;
+        }
+
+        /** @return false if the image has already started being written */
+        synchronized boolean abandon() {
+            if (os != null)
+                return false;
+            abandoned = true;
+            return true;
+        }
+
+        /** Makes the writes that follow fail */
+        synchronized void abort() {
+            aborted = true;
+        }
+
+        public void write(int b) throws IOException {
+            OutputStream stream = getStream();
+            if (stream != null) stream.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream stream = getStream();
+            if (stream != null) stream.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            OutputStream stream = getStream();
+            if (stream != null) stream.flush();
+        }
+    }
+
     private static float getScale(HttpServletRequest request) {
         float scale = HttpKit.getFloat(request, 1f, "scale");
         if (scale < MIN_SCALE) scale = MIN_SCALE;
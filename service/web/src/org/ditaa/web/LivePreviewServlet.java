@@ -0,0 +1,230 @@
+package org.ditaa.web;
+
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderingOptions;
+import org.stathissideris.ascii2image.graphics.IncrementalDiagram;
+import org.stathissideris.ascii2image.graphics.PNGEncoder;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Renders the grid of an editor's live preview, which is posted again on every change.
+ * The diagram of the last grid is kept in the session, so only the parts of the
+ * grid that changed are processed and rendered again (see IncrementalDiagram).
+ *
+ * Takes the same parameters as ImageServlet, plus:
+ * <ul>
+ * <li>id -- tells apart the previews of a session, of which only the last few used
+ * are kept (optional)</li>
+ * <li>region -- send only the part of the image that changed, with its position
+ * in the X-Ditaa-Region header ("x,y,width,height") and the size of the whole
+ * image in X-Ditaa-Size ("width,height"); 204 if nothing changed</li>
+ * </ul>
+ *
+ * The update is made on the render threads of ImageServlet, with its timeout; a
+ * request that times out gets a 503, and the next one all of the image.
+ */
+public class LivePreviewServlet extends HttpServlet {
+    private static final boolean DEBUG = false;
+
+    private static final String SESSION_ATTRIBUTE = "ditaa.live";
+
+    /** How many previews a session keeps, dropping the least recently used one */
+    private static final int MAX_PREVIEWS = 4;
+
+    /** Parameters that do not change the options of the diagram */
+    private static final String[] NON_OPTIONS = { "grid", "id", "region", "timeout" };
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException { transmitImage(req, rsp); }
+    protected void doPost(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException { transmitImage(req, rsp); }
+
+    public void transmitImage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.currentTimeMillis();
+        String gridText = request.getParameter("grid");
+        if (gridText == null || gridText.trim().length() == 0)
+            gridText = "---\n| |\n---";
+
+        final Preview preview = getPreview(request);
+        final String text = gridText;
+        final boolean region = request.getParameter("region") != null;
+        Future<Update> future = ImageServlet.getRenderExecutor().submit(new Callable<Update>() {
+            public Update call() {
+                return preview.update(text, region);
+            }
+        });
+        Update update;
+        try {
+            update = future.get(ImageServlet.getTimeout(request), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // the update carries on if it has started, and as its client does not get it,
+            // the next one sends all of the image
+            future.cancel(true);
+            System.out.println("Live preview timed out after " + (System.currentTimeMillis() - start) + " ms");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The preview took too long to render");
+            return;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (update.changed == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            preview.delivered = update.number;
+            return;
+        }
+        if (region) {
+            Rectangle changed = update.changed;
+            response.setHeader("X-Ditaa-Region", changed.x + "," + changed.y + "," + changed.width + "," + changed.height);
+            response.setHeader("X-Ditaa-Size", update.width + "," + update.height);
+        }
+        response.setContentType("image/png");
+        response.setHeader("Cache-Control", "no-cache");
+        RenderingOptions options = preview.options.renderingOptions;
+        BufferedImage image = update.image;
+        PNGEncoder encoder = new PNGEncoder(response.getOutputStream(), image.getWidth(), image.getHeight(),
+                options.needsTransparency());
+        encoder.setCompressionLevel(options.getPNGCompressionLevel());
+        encoder.writeRows(image, 0, image.getHeight());
+        encoder.finish();
+        preview.delivered = update.number;
+        debug("Changed " + update.changed + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** The preview of the session with the id of the request, made again if the options changed. */
+    private static Preview getPreview(HttpServletRequest request) {
+        String signature = getOptionsSignature(request);
+        String id = request.getParameter("id");
+        if (id == null)
+            id = "";
+        HttpSession session = request.getSession();
+        synchronized (session) {
+            Previews previews = (Previews) session.getAttribute(SESSION_ATTRIBUTE);
+            if (previews == null) {
+                previews = new Previews();
+                session.setAttribute(SESSION_ATTRIBUTE, previews);
+            }
+            Preview preview = previews.get(id);
+            if (preview == null || !preview.signature.equals(signature)) {
+                preview = new Preview(signature, ImageServlet.getOptions(request));
+                previews.put(id, preview);
+            }
+            return preview;
+        }
+    }
+
+    private static String getOptionsSignature(HttpServletRequest request) {
+        @SuppressWarnings({"unchecked"}) Map<String,String[]> paramMap = request.getParameterMap();
+        String[] names = paramMap.keySet().toArray(new String[paramMap.size()]);
+        Arrays.sort(names);
+        StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            if (Arrays.asList(NON_OPTIONS).contains(name))
+                continue;
+            result.append(name).append('=').append(Arrays.toString(paramMap.get(name))).append('&');
+        }
+        return result.toString();
+    }
+
+    private void debug(String msg) {
+        if (DEBUG)
+            System.out.println("LivePreviewServlet: " + msg);
+    }
+
+    private static class Preview {
+        final String signature;
+        final ConversionOptions options;
+        final IncrementalDiagram diagram;
+        /** How many updates were made, and the number of the last one sent to the client */
+        private int updates = 0;
+        volatile int delivered = 0;
+
+        Preview(String signature, ConversionOptions options) {
+            this.signature = signature;
+            this.options = options;
+            this.diagram = new IncrementalDiagram(options);
+        }
+
+        /**
+         * Brings the diagram up to date with <code>gridText</code>, one update at a
+         * time (the requests of an editor come in order anyway), and copies the pixels
+         * to send, as the image is drawn over by the next update. All of the image is
+         * copied if the client did not get the last update, because it timed out.
+         *
+         * @param region whether to copy only the part of the image that changed
+         */
+        synchronized Update update(String gridText, boolean region) {
+            TextGrid grid = new TextGrid();
+            try {
+                grid.initialiseWithText(gridText, options.processingOptions);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            boolean missed = delivered != updates;
+            updates++;
+            Rectangle changed = diagram.update(grid);
+            BufferedImage image = diagram.getImage();
+            if (missed || !region) {
+                changed = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+            } else if (changed == null) {
+                return new Update(updates, null, image, null);
+            }
+            BufferedImage part = image.getSubimage(changed.x, changed.y, changed.width, changed.height);
+            BufferedImage copy = new BufferedImage(part.getColorModel(),
+                    part.copyData(part.getRaster().createCompatibleWritableRaster()), part.isAlphaPremultiplied(), null);
+            return new Update(updates, changed, image, copy);
+        }
+    }
+
+    /** The part of the image of a preview to send */
+    private static class Update {
+        final int number;
+        /** Where the copy is in the image, or null if nothing changed */
+        final Rectangle changed;
+        final int width, height;
+        final BufferedImage image;
+
+        Update(int number, Rectangle changed, BufferedImage whole, BufferedImage image) {
+            this.number = number;
+            this.changed = changed;
+            this.width = whole.getWidth();
+            this.height = whole.getHeight();
+            this.image = image;
+        }
+    }
+
+    /**
+     * The previews of a session by id, in the order they were used. Each one keeps
+     * a whole image, so a client cannot keep more than a few by sending new ids.
+     */
+    private static class Previews extends LinkedHashMap<String, Preview> {
+        Previews() {
+            super(MAX_PREVIEWS * 2, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Preview> eldest) {
+            return size() > MAX_PREVIEWS;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
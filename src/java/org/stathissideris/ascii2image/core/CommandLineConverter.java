@@ -19,11 +19,8 @@
  */
 package org.stathissideris.ascii2image.core;
 
-import java.awt.image.RenderedImage;
 import java.io.*;
 
-import javax.imageio.ImageIO;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -63,6 +60,7 @@ public class CommandLineConverter {
 		cmdLnOptions.addOption("d", "debug", false, "Renders the debug grid over the resulting image.");
 		cmdLnOptions.addOption("r", "round-corners", false, "Causes all corners to be rendered as round corners.");
 		cmdLnOptions.addOption("E", "no-separation", false, "Prevents the separation of common edges of shapes.");
+		cmdLnOptions.addOption("B", "bands", false, "Processes the diagram in bands separated by blank lines, one at a time. Very tall diagrams need a lot less memory this way.");
 		cmdLnOptions.addOption("h", "html", false, "In this case the input is an HTML file. The contents of the <pre class=\"textdiagram\"> tags are rendered as diagrams and saved in the images directory and a new HTML file is produced with the appropriate <img> tags.");
 		cmdLnOptions.addOption("T", "transparent", false, "Causes the diagram to be rendered on a transparent background. Overrides --background.");
 
@@ -90,6 +88,36 @@ public class CommandLineConverter {
 				.create('t')
 				);
 
+		cmdLnOptions.addOption(
+				OptionBuilder.withLongOpt("threads")
+				.withDescription("The number of threads used to process the separate shapes of the diagram, to render it and to compress its PNG. The default is 1. Large diagrams with many unconnected shapes are processed faster with more threads.")
+				.hasArg()
+				.withArgName("THREADS")
+				.create()
+				);
+
+		cmdLnOptions.addOption(
+				OptionBuilder.withLongOpt("png-compression")
+				.withDescription("The compression level of PNG images, from 0 (the fastest) to 9 (the smallest). The default is that of zlib.")
+				.hasArg()
+				.withArgName("LEVEL")
+				.create()
+				);
+
+		cmdLnOptions.addOption(
+				OptionBuilder.withLongOpt("png-palette")
+				.withDescription("Writes PNG images with 256 colours or fewer with a palette, which makes them smaller. The image is then only written out once all of it is rendered, and it is rendered twice if it turns out to have more colours.")
+				.create()
+				);
+
+		cmdLnOptions.addOption(
+				OptionBuilder.withLongOpt("cache")
+				.withDescription("A directory where the rendered images are kept. A diagram that was rendered before with the same options is copied from there instead of being rendered again.")
+				.hasArg()
+				.withArgName("CACHE_DIR")
+				.create()
+				);
+
 		cmdLnOptions.addOption(
 				OptionBuilder.withLongOpt("background")
 				.withDescription("The background colour of the image. The format should be a six-digit hexadecimal number (as in HTML, FF0000 for red). Pass an eight-digit hex to define transparency. This is overridden by --transparent.")
@@ -249,21 +277,27 @@ public class CommandLineConverter {
 				grid.printDebug();
 			}
 
-			Diagram diagram = new Diagram(grid, options);
+			RenderCache cache = options.processingOptions.getRenderCache();
+			Diagram diagram = cache == null ? new Diagram(grid, options) : null;
 			if (!stdOut) System.out.println("Rendering to file: "+toFilename);
 
 			try {
 
-				if(cmdLine.hasOption("svg")){
+				if(cache != null){
+					OutputStream os = stdOut ? System.out : new BufferedOutputStream(new FileOutputStream(toFilename));
+					cache.render(grid, options, os);
+					os.flush();
+
+					if(!stdOut && options.processingOptions.verbose()) System.out.println(cache);
+				} else if(cmdLine.hasOption("svg")){
 					String content = new SVGRenderer().renderToImage(diagram, options.renderingOptions);
 
 					PrintStream stream = stdOut ? System.out : new PrintStream(new FileOutputStream(toFilename));
 					stream.print(content);
 				} else {
-					RenderedImage image = new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
-
-					OutputStream os = stdOut ? System.out : new FileOutputStream(toFilename);
-					ImageIO.write(image, "png", os);
+					OutputStream os = stdOut ? System.out : new BufferedOutputStream(new FileOutputStream(toFilename));
+					new BitmapRenderer().renderToPNG(diagram, os, options.renderingOptions);
+					os.flush();
 				}
 
 			} catch (IOException e) {
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * 
@@ -80,6 +81,7 @@ public class ConversionOptions {
 		
 		processingOptions.setAllCornersAreRound(cmdLine.hasOption("round-corners"));
 		processingOptions.setPerformSeparationOfCommonEdges(!cmdLine.hasOption("no-separation"));
+		processingOptions.setProcessInBands(cmdLine.hasOption("bands"));
 		renderingOptions.setAntialias(!cmdLine.hasOption("no-antialias"));
 		renderingOptions.setFixedSlope(cmdLine.hasOption("fixed-slope"));
 
@@ -100,6 +102,27 @@ public class ConversionOptions {
 			processingOptions.setTabSize(tabSizeValue);
 		}
 
+		if(cmdLine.hasOption("threads")){
+			int threads = Integer.parseInt(cmdLine.getOptionValue("threads"));
+			if(threads > 1) {
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				processingOptions.setShapeProcessingPool(pool);
+				renderingOptions.setRenderingPool(pool);
+			}
+		}
+
+		if(cmdLine.hasOption("png-compression")){
+			int level = Integer.parseInt(cmdLine.getOptionValue("png-compression"));
+			renderingOptions.setPNGCompressionLevel(Math.max(0, Math.min(9, level)));
+		}
+
+		renderingOptions.setUsePNGPalette(cmdLine.hasOption("png-palette"));
+
+		if(cmdLine.hasOption("cache")){
+			processingOptions.setRenderCache(
+					new RenderCache(RenderCache.DEFAULT_MAX_BYTES, new File(cmdLine.getOptionValue("cache"))));
+		}
+
 		String encoding = (String) cmdLine.getOptionValue("encoding");
 		if(encoding != null){
 			new String(new byte[2], encoding);
@@ -19,11 +19,9 @@
  */
 package org.stathissideris.ascii2image.core;
 
-import java.awt.image.RenderedImage;
 import java.io.*;
 import java.util.HashMap;
 
-import javax.imageio.ImageIO;
 import javax.swing.text.html.HTMLEditorKit;
 
 import net.htmlparser.jericho.Attribute;
@@ -32,9 +30,6 @@ import net.htmlparser.jericho.OutputDocument;
 import net.htmlparser.jericho.Source;
 import net.htmlparser.jericho.StartTag;
 
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
-import org.stathissideris.ascii2image.graphics.Diagram;
-import org.stathissideris.ascii2image.graphics.SVGRenderer;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 /**
@@ -159,6 +154,10 @@ public class HTMLConverter extends HTMLEditorKit {
 		
 		System.out.println("Generating diagrams... ");
 		
+		//the same diagram can be on a page more than once
+		RenderCache cache = options.processingOptions.getRenderCache();
+		if(cache == null) cache = new RenderCache();
+		
 		File imageDir = new File(new File(targetFilename).getParent() + File.separator + imageDirName);
 		if(!imageDir.exists()){
 			if(!imageDir.mkdir()){
@@ -186,39 +185,24 @@ public class HTMLConverter extends HTMLEditorKit {
 				System.exit(1);
 			}
 
-			Diagram diagram = new Diagram(grid, options);
-
-			if(options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG){
-
-				String content = new SVGRenderer().renderToImage(diagram, options.renderingOptions);
-
-				try {
-
-					PrintStream stream = new PrintStream(new FileOutputStream(imageFilename));
-
-					stream.print(content);
-
-				} catch (IOException e) {
-					System.err.println("Error: Cannot write to file "+filename+" -- skipping");
-					continue;
-				}
-
-			} else {
-				RenderedImage image = new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
-
+			try {
+				byte[] content = cache.render(grid, options);
+				OutputStream stream = new FileOutputStream(imageFilename);
 				try {
-					File file = new File(imageFilename);
-					ImageIO.write(image, "png", file);
-				} catch (IOException e) {
-					//e.printStackTrace();
-					System.err.println("Error: Cannot write to file "+filename+" -- skipping");
-					continue;
+					stream.write(content);
+				} finally {
+					stream.close();
 				}
+			} catch (IOException e) {
+				//e.printStackTrace();
+				System.err.println("Error: Cannot write to file "+filename+" -- skipping");
+				continue;
 			}
 			
 			System.out.println("\t"+imageFilename);
 		}
 		
+		if(options.processingOptions.verbose()) System.out.println(cache);
 		System.out.println("\n...done");
 		
 		return true;
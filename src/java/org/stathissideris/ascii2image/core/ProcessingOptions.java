@@ -20,6 +20,7 @@
 package org.stathissideris.ascii2image.core;
 
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
 
@@ -60,6 +61,12 @@ public class ProcessingOptions {
 	
 	private String characterEncoding = null;
 	
+	private ForkJoinPool shapeProcessingPool = null;
+	
+	private boolean processInBands = false;
+	
+	private RenderCache renderCache = null;
+	
 	/**
 	 * @return
 	 */
@@ -222,6 +229,46 @@ public class ProcessingOptions {
 		this.characterEncoding = characterEncoding;
 	}
 
+	/**
+	 * @return the pool on which the distinct shapes of a diagram are
+	 * processed in parallel, or null if they are processed one by one
+	 */
+	public ForkJoinPool getShapeProcessingPool() {
+		return shapeProcessingPool;
+	}
+
+	/**
+	 * @param pool the pool to process the distinct shapes of a diagram
+	 * on, or null to process them one by one in the calling thread
+	 */
+	public void setShapeProcessingPool(ForkJoinPool pool) {
+		shapeProcessingPool = pool;
+	}
+
+	/**
+	 * @return true if diagrams are processed in bands split at
+	 * their blank rows, to use less memory on very tall diagrams
+	 */
+	public boolean processInBands() {
+		return processInBands;
+	}
+
+	public void setProcessInBands(boolean b) {
+		processInBands = b;
+	}
+
+	/**
+	 * @return the cache of rendered diagrams, or null if every
+	 * diagram is rendered
+	 */
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	public void setRenderCache(RenderCache cache) {
+		renderCache = cache;
+	}
+
 	public HashMap<String, CustomShapeDefinition> getCustomShapes() {
 		return customShapes;
 	}
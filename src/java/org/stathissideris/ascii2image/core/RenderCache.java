@@ -0,0 +1,417 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGRenderer;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Keeps the PNG or SVG files of the diagrams that were rendered, so that
+ * rendering the same grid again with the same options returns the same
+ * file without processing the diagram.
+ *
+ * The files are kept in memory, dropping the least recently used ones when
+ * they take up more than a number of bytes, and optionally in a directory
+ * where each file is named after its key.
+ *
+ * The key is a hash of the grid (after tabs are expanded and the lines are
+ * padded to the same length, so that grids that look the same have the same
+ * key) and of all the options that change the rendered file, including
+ * the size and modification time of the custom shape and font files.
+ *
+ * Thread safe.
+ *
+ * @author Efstathios Sideris
+ */
+public class RenderCache {
+
+	private static final boolean DEBUG = false;
+
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	/** Change this when the output for the same key changes */
+	private static final String KEY_VERSION = "2";
+
+	private final long maxBytes;
+	private final File directory;
+
+	/** In order of use, least recently used first */
+	private final LinkedHashMap<String, byte[]> files =
+		new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong directoryHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public RenderCache(){
+		this(DEFAULT_MAX_BYTES, null);
+	}
+
+	/**
+	 * @param maxBytes how many bytes of files to keep in memory
+	 * @param directory where to keep the files on disk, or null to
+	 * keep them only in memory
+	 */
+	public RenderCache(long maxBytes, File directory){
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs())
+			System.err.println("Could not create cache directory "+directory);
+	}
+
+	/**
+	 * Returns the file of the diagram of <code>grid</code>, rendering
+	 * it if it is not in the cache. The grid is changed by processing
+	 * the diagram, so it should not be used again.
+	 *
+	 * @return the contents of a PNG or SVG file, depending on the image
+	 * type of the rendering options
+	 */
+	public byte[] render(TextGrid grid, ConversionOptions options) throws IOException {
+		String key = getKey(grid, options);
+		byte[] result = find(key, options);
+		if(result == null){
+			result = renderFile(grid, options);
+			keep(key, options, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the file of the diagram of <code>grid</code> to
+	 * <code>out</code>. If it is not in the cache, it is written as it
+	 * is rendered, so the first bytes are written before the whole
+	 * diagram is rendered.
+	 */
+	public void render(TextGrid grid, ConversionOptions options, OutputStream out) throws IOException {
+		String key = getKey(grid, options);
+		byte[] result = find(key, options);
+		if(result != null){
+			out.write(result);
+			return;
+		}
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		renderFile(grid, options, new CopyingOutputStream(out, copy));
+		keep(key, options, copy.toByteArray());
+	}
+
+	/**
+	 * @return the file with <code>key</code> from memory or from the
+	 * directory, or null if it has to be rendered
+	 */
+	private byte[] find(String key, ConversionOptions options){
+		byte[] result = get(key);
+		if(result != null){
+			hits.incrementAndGet();
+			return result;
+		}
+
+		if(directory != null){
+			result = readFile(new File(directory, key + getExtension(options)));
+			if(result != null){
+				directoryHits.incrementAndGet();
+				put(key, result);
+				return result;
+			}
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Keeps a file that was rendered in memory and in the directory
+	 */
+	private void keep(String key, ConversionOptions options, byte[] file){
+		put(key, file);
+		if(directory != null) writeFile(new File(directory, key + getExtension(options)), file);
+
+		if(DEBUG) System.out.println("Rendered "+key+" ("+file.length+" bytes)");
+	}
+
+	/**
+	 * Renders the diagram of <code>grid</code> to a PNG or SVG file,
+	 * without the cache.
+	 */
+	public static byte[] renderFile(TextGrid grid, ConversionOptions options) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		renderFile(grid, options, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Renders the diagram of <code>grid</code> to a PNG or SVG file,
+	 * without the cache, and writes it to <code>out</code>. PNG files
+	 * are written a band of rows at a time as they are rendered.
+	 */
+	public static void renderFile(TextGrid grid, ConversionOptions options, OutputStream out) throws IOException {
+		Diagram diagram = new Diagram(grid, options);
+		if(options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG){
+			String content = new SVGRenderer().renderToImage(diagram, options.renderingOptions);
+			out.write(content.getBytes("UTF-8"));
+			return;
+		}
+		new BitmapRenderer().renderToPNG(diagram, out, options.renderingOptions);
+	}
+
+	/**
+	 * @return ".png" or ".svg", depending on the image type of the
+	 * rendering options
+	 */
+	public static String getExtension(ConversionOptions options){
+		return options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG ? ".svg" : ".png";
+	}
+
+	/**
+	 * @return the hex SHA-256 of the contents of <code>grid</code> and
+	 * of the options that change how its diagram is rendered
+	 */
+	public static String getKey(TextGrid grid, ConversionOptions options){
+		StringBuilder text = new StringBuilder();
+		text.append(KEY_VERSION).append('\n');
+		appendOptions(text, options);
+		text.append(grid.getWidth()).append('x').append(grid.getHeight()).append('\n');
+		for(int y = 0; y < grid.getHeight(); y++)
+			text.append(grid.getRow(y)).append('\n');
+
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.toString().getBytes("UTF-8"));
+			StringBuilder result = new StringBuilder(hash.length * 2);
+			for(byte b : hash){
+				result.append(Character.forDigit((b >> 4) & 0xf, 16));
+				result.append(Character.forDigit(b & 0xf, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			//and UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Appends the options that change the rendered file. The options
+	 * that only change how the diagram is processed (verbosity, threads,
+	 * bands) are left out, and so is the tab size and encoding, as they
+	 * are already applied to the grid.
+	 */
+	private static void appendOptions(StringBuilder text, ConversionOptions options){
+		ProcessingOptions processing = options.processingOptions;
+		RenderingOptions rendering = options.renderingOptions;
+
+		text.append("round corners: ").append(processing.areAllCornersRound()).append('\n');
+		text.append("separate common edges: ").append(processing.performSeparationOfCommonEdges()).append('\n');
+		text.append("tags: ").append(processing.getTagProcessingMode()).append('\n');
+		text.append("color codes: ").append(processing.getColorCodesProcessingMode()).append('\n');
+		if(processing.getCustomShapes() != null){
+			//sorted, so that the same shapes give the same key
+			TreeMap<String, CustomShapeDefinition> shapes =
+				new TreeMap<String, CustomShapeDefinition>(processing.getCustomShapes());
+			for(CustomShapeDefinition shape : shapes.values()){
+				text.append(shape);
+				appendFile(text, shape.getFilename());
+			}
+		}
+
+		text.append("image type: ").append(rendering.getImageType()).append('\n');
+		text.append("shadows: ").append(rendering.dropShadows()).append('\n');
+		text.append("debug lines: ").append(rendering.renderDebugLines()).append('\n');
+		text.append("antialias: ").append(rendering.performAntialias()).append('\n');
+		text.append("fixed slope: ").append(rendering.isFixedSlope()).append('\n');
+		text.append("cell: ").append(rendering.getCellWidth()).append('x').append(rendering.getCellHeight()).append('\n');
+		text.append("scale: ").append(rendering.getScale()).append('\n');
+		Color background = rendering.getBackgroundColor();
+		text.append("background: ").append(Integer.toHexString(background.getRGB())).append('\n');
+		text.append("font: ").append(rendering.getFontFamily()).append(' ').append(rendering.getFontURL()).append('\n');
+		appendFile(text, rendering.getFontURL());
+		text.append("png compression: ").append(rendering.getPNGCompressionLevel()).append('\n');
+		text.append("png palette: ").append(rendering.usePNGPalette()).append('\n');
+	}
+
+	/**
+	 * Appends the size and modification time of the file at
+	 * <code>location</code>, a path or a file: URL, so that the key
+	 * changes when the file is edited. Other URLs are left out.
+	 */
+	private static void appendFile(StringBuilder text, String location){
+		if(location == null) return;
+		File file;
+		try {
+			file = location.startsWith("file:") ? new File(new URI(location)) : new File(location);
+		} catch (URISyntaxException e) {
+			return;
+		} catch (IllegalArgumentException e) {
+			//a file: URL with a host or a query
+			return;
+		}
+		if(!file.isFile()) return;
+		text.append("\tsize: ").append(file.length()).append('\n');
+		text.append("\tmodified: ").append(file.lastModified()).append('\n');
+	}
+
+	private synchronized byte[] get(String key){
+		return files.get(key);
+	}
+
+	private synchronized void put(String key, byte[] file){
+		if(file.length > maxBytes) return;
+		byte[] previous = files.put(key, file);
+		if(previous != null) bytes -= previous.length;
+		bytes += file.length;
+
+		Iterator<Map.Entry<String, byte[]>> it = files.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()){
+			bytes -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return the contents of <code>file</code>, or null if it
+	 * does not exist or cannot be read
+	 */
+	private static byte[] readFile(File file){
+		if(!file.isFile()) return null;
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+				byte[] buffer = new byte[8192];
+				int read;
+				while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read cached file "+file+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first and then renames it, so that
+	 * other processes that share the directory never see half a file
+	 */
+	private void writeFile(File file, byte[] content){
+		try {
+			File temp = File.createTempFile(file.getName(), ".tmp", directory);
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			if(!temp.renameTo(file)){
+				//another process got there first, or the platform
+				//does not rename over existing files
+				temp.delete();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write cached file "+file+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @return how many files were found in memory
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return how many files were not in memory but were found in
+	 * the directory
+	 */
+	public long getDirectoryHits(){
+		return directoryHits.get();
+	}
+
+	/**
+	 * @return how many files had to be rendered
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return how many bytes of files are kept in memory
+	 */
+	public synchronized long getBytes(){
+		return bytes;
+	}
+
+	public File getDirectory(){
+		return directory;
+	}
+
+	/**
+	 * Writes to two streams, so that a file can be kept while it is
+	 * being written
+	 */
+	private static class CopyingOutputStream extends FilterOutputStream {
+		private final OutputStream copy;
+
+		CopyingOutputStream(OutputStream out, OutputStream copy){
+			super(out);
+			this.copy = copy;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			copy.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			copy.write(b, off, len);
+		}
+	}
+
+	public String toString(){
+		return "Render cache: "+getHits()+" hits, "+getDirectoryHits()+" hits on disk, "
+			+getMisses()+" misses, "+getBytes()+" bytes in memory";
+	}
+}
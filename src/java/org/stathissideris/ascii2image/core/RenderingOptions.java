@@ -21,6 +21,7 @@ package org.stathissideris.ascii2image.core;
 
 import java.awt.Color;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
 
@@ -44,6 +45,13 @@ public class RenderingOptions {
 	
 	private Color backgroundColor = Color.white;
 
+	private ForkJoinPool renderingPool = null;
+
+	private boolean shadowSprites = true;
+
+	private int pngCompressionLevel = -1;
+	private boolean pngPalette = false;
+
 	public enum ImageType { PNG, SVG };
 
 	private ImageType imageType = ImageType.PNG;
@@ -108,6 +116,62 @@ public class RenderingOptions {
 		this.backgroundColor = backgroundColor;
 	}
 	
+	/**
+	 * @return the pool on which parts of the image are rendered in
+	 * parallel, or null if the image is rendered in the calling thread
+	 */
+	public ForkJoinPool getRenderingPool() {
+		return renderingPool;
+	}
+
+	/**
+	 * @param pool the pool to render parts of the image on, or null
+	 * to render all of it in the calling thread
+	 */
+	public void setRenderingPool(ForkJoinPool pool) {
+		renderingPool = pool;
+	}
+
+	/**
+	 * @return whether the masks and blurs of shadows are kept and
+	 * stamped again for the shadows of the same shape, instead of
+	 * filling and blurring each shadow. The image is the same either way.
+	 */
+	public boolean useShadowSprites() {
+		return shadowSprites;
+	}
+
+	public void setUseShadowSprites(boolean b) {
+		shadowSprites = b;
+	}
+
+	/**
+	 * @return the compression level of PNG files, from 0 (the fastest)
+	 * to 9 (the smallest), or -1 for the default of zlib
+	 */
+	public int getPNGCompressionLevel() {
+		return pngCompressionLevel;
+	}
+
+	public void setPNGCompressionLevel(int level) {
+		if(level < -1 || level > 9)
+			throw new IllegalArgumentException("PNG compression level "+level+" is not between -1 and 9");
+		pngCompressionLevel = level;
+	}
+
+	/**
+	 * @return whether PNG files are written with a palette when the
+	 * image has 256 colours or fewer, which makes them smaller. Off by
+	 * default, as the file can then only be written out at the end.
+	 */
+	public boolean usePNGPalette() {
+		return pngPalette;
+	}
+
+	public void setUsePNGPalette(boolean b) {
+		pngPalette = b;
+	}
+
 	public boolean needsTransparency() {
 		return backgroundColor.getAlpha() < 255;
 	}
@@ -22,25 +22,32 @@ package org.stathissideris.ascii2image.graphics;
 import java.awt.BasicStroke;
 import java.awt.Canvas;
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
-import java.awt.geom.AffineTransform;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
 import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.stathissideris.ascii2image.core.ConversionOptions;
 import org.stathissideris.ascii2image.core.RenderingOptions;
@@ -59,6 +66,19 @@ public class BitmapRenderer {
 
 	private static final String IDREGEX = "^.+_vfill$";
 	
+	/** The width and height of the tiles the drawings are binned in */
+	private static final int TILE_SIZE = 256;
+	
+	/** How many rows of the image are rendered at a time for a PNG */
+	private static final int PNG_BAND_HEIGHT = 256;
+	
+	/**
+	 * The rows above and below each band that are rendered but not
+	 * written, as the blur of the shadows leaves the rows at the top
+	 * and bottom of an image as they are
+	 */
+	private static final int PNG_BAND_PADDING = 8;
+	
 	Stroke normalStroke;
 	Stroke dashStroke; 
 	
@@ -86,11 +106,13 @@ public class BitmapRenderer {
 	}
 
 	private boolean renderToPNG(Diagram diagram, String filename, RenderingOptions options){	
-		RenderedImage image = renderToImage(diagram, options);
-		
 		try {
-			File file = new File(filename);
-			ImageIO.write(image, "png", file);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+			try {
+				renderToPNG(diagram, out, options);
+			} finally {
+				out.close();
+			}
 		} catch (IOException e) {
 			//e.printStackTrace();
 			System.err.println("Error: Cannot write to file "+filename);
@@ -99,108 +121,134 @@ public class BitmapRenderer {
 		return true;
 	}
 	
+	/**
+	 * Renders the diagram a band of rows at a time and writes it to
+	 * <code>out</code> as a PNG, so that only a band of the image is
+	 * ever in memory and the file starts being written before all of it
+	 * is rendered. The pixels are the same as those of renderToImage(),
+	 * except at the edges of some large curves, as Java2D rasterises
+	 * curves a little differently depending on where they are.
+	 * If the options ask for a palette, the compressed rows are kept
+	 * until the end, and if the image has too many colours for one, the
+	 * bands rendered so far are rendered again.
+	 * Does not close the stream.
+	 */
+	public void renderToPNG(Diagram diagram, OutputStream out, RenderingOptions options) throws IOException {
+		int width = diagram.getWidth();
+		int height = diagram.getHeight();
+		PNGEncoder encoder = new PNGEncoder(out, width, height, options.needsTransparency());
+		encoder.setCompressionLevel(options.getPNGCompressionLevel());
+		encoder.setPaletteIfPossible(options.usePNGPalette());
+		encoder.setPool(options.getRenderingPool());
+		
+		//make what is drawn once, and give each band the parts that reach it
+		BufferedImage band = makeImage(width, Math.min(height, PNG_BAND_HEIGHT + 2 * PNG_BAND_PADDING), options);
+		Layers layers = makeLayers(diagram, band, options);
+		int bandCount = (height + PNG_BAND_HEIGHT - 1) / PNG_BAND_HEIGHT;
+		ArrayList<ArrayList<ShadowRenderer.Outline>> outlines = null;
+		if(layers.outlines != null) {
+			int[] tops = new int[layers.outlines.size()], bottoms = new int[tops.length];
+			for(int i = 0; i < tops.length; i++) {
+				tops[i] = layers.outlines.get(i).getTop();
+				bottoms[i] = layers.outlines.get(i).getBottom();
+			}
+			outlines = binByBand(layers.outlines, tops, bottoms, height, bandCount);
+		}
+		int[] tops = new int[layers.drawings.size()], bottoms = new int[tops.length];
+		for(int i = 0; i < tops.length; i++) {
+			Rectangle bounds = layers.drawings.get(i).bounds;
+			tops[i] = bounds.y;
+			bottoms[i] = bounds.y + bounds.height + 1;
+		}
+		ArrayList<ArrayList<Drawing>> drawings = binByBand(layers.drawings, tops, bottoms, height, bandCount);
+		
+		for(int y = 0; y < height; y += PNG_BAND_HEIGHT) {
+			int top = Math.max(0, y - PNG_BAND_PADDING);
+			int bottom = Math.min(height, y + PNG_BAND_HEIGHT + PNG_BAND_PADDING);
+			if(band.getHeight() != bottom - top)
+				band = makeImage(width, bottom - top, options);
+			int index = y / PNG_BAND_HEIGHT;
+			render(diagram, band, options, top, new Layers(
+					outlines == null ? null : outlines.get(index), drawings.get(index)));
+			int rows = Math.min(PNG_BAND_HEIGHT, height - y);
+			boolean written = encoder.writeRows(band, y - top, rows);
+			//too many colours for a palette, which is usually
+			//found out in the first band, that we still have
+			if(!written && y == 0) written = encoder.writeRows(band, y - top, rows);
+			if(!written) y = -PNG_BAND_HEIGHT;
+		}
+		encoder.finish();
+	}
+	
 	public RenderedImage renderToImage(Diagram diagram, RenderingOptions options){
-		BufferedImage image;
+		BufferedImage image = makeImage(diagram.getWidth(), diagram.getHeight(), options);
+		return render(diagram, image, options);
+	}
+	
+	/**
+	 * @return for each band of rows of a PNG, the <code>items</code>
+	 * that reach it, in their order. Item <code>i</code> reaches the
+	 * rows from <code>tops[i]</code> to <code>bottoms[i]</code>
+	 * (exclusive).
+	 */
+	private static <T> ArrayList<ArrayList<T>> binByBand(List<T> items, int[] tops, int[] bottoms,
+			int height, int bandCount){
+		ArrayList<ArrayList<T>> bins = new ArrayList<ArrayList<T>>(bandCount);
+		for(int i = 0; i < bandCount; i++) bins.add(new ArrayList<T>());
+		for(int i = 0; i < items.size(); i++) {
+			int first = Math.max(0, (tops[i] - PNG_BAND_PADDING) / PNG_BAND_HEIGHT - 1);
+			int last = Math.min(bandCount - 1, (bottoms[i] + PNG_BAND_PADDING) / PNG_BAND_HEIGHT + 1);
+			for(int band = first; band <= last; band++) {
+				int y = band * PNG_BAND_HEIGHT;
+				int top = Math.max(0, y - PNG_BAND_PADDING);
+				int bottom = Math.min(height, y + PNG_BAND_HEIGHT + PNG_BAND_PADDING);
+				if(tops[i] < bottom && bottoms[i] > top) bins.get(band).add(items.get(i));
+			}
+		}
+		return bins;
+	}
+	
+	private static BufferedImage makeImage(int width, int height, RenderingOptions options){
 		if(options.needsTransparency()) {
-			image = new BufferedImage(
-					diagram.getWidth(),
-					diagram.getHeight(),
+			return new BufferedImage(
+					width,
+					height,
 					BufferedImage.TYPE_INT_ARGB);
 		} else {
-			image = new BufferedImage(
-					diagram.getWidth(),
-					diagram.getHeight(),
+			return new BufferedImage(
+					width,
+					height,
 					BufferedImage.TYPE_INT_RGB);
 		}
-		
-		return render(diagram, image, options);
 	}
 	
 	public RenderedImage render(Diagram diagram, BufferedImage image,  RenderingOptions options){
-		RenderedImage renderedImage = image;
-		Graphics2D g2 = image.createGraphics();
-
-		Object antialiasSetting = RenderingHints.VALUE_ANTIALIAS_OFF;
-		if(options.performAntialias())
-			antialiasSetting = RenderingHints.VALUE_ANTIALIAS_ON;
-		
-		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
-
-		g2.setColor(options.getBackgroundColor());
-		//TODO: find out why the next line does not work
-		g2.fillRect(0, 0, image.getWidth()+10, image.getHeight()+10);
-		/*for(int y = 0; y < diagram.getHeight(); y ++)
-			g2.drawLine(0, y, diagram.getWidth(), y);*/
-		
-		g2.setStroke(new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND));
-
+		return render(diagram, image, options, 0);
+	}
+	
+	/**
+	 * Renders the rows of the diagram from <code>originY</code> onwards,
+	 * so that row <code>originY</code> of the diagram is the first row
+	 * of <code>image</code>. Used by IncrementalDiagram to re-render
+	 * part of a diagram.
+	 */
+	RenderedImage render(Diagram diagram, BufferedImage image,  RenderingOptions options, int originY){
+		return render(diagram, image, options, originY, makeLayers(diagram, image, options));
+	}
+	
+	/**
+	 * @return the shadows and drawings of the diagram, to be drawn
+	 * on images like <code>image</code>
+	 */
+	private Layers makeLayers(Diagram diagram, BufferedImage image, RenderingOptions options){
 		ArrayList<DiagramShape> shapes = diagram.getAllDiagramShapes();
 
 		if(DEBUG) System.out.println("Rendering "+shapes.size()+" shapes (groups flattened)");
 
-		Iterator<DiagramShape> shapesIt;
-		if(options.dropShadows()){
-			//render shadows
-			shapesIt = shapes.iterator();
-			while(shapesIt.hasNext()){
-				DiagramShape shape = shapesIt.next();
-
-				if(shape.getPoints().isEmpty()) continue;
-
-				//GeneralPath path = shape.makeIntoPath();
-				GeneralPath path;
-				path = shape.makeIntoRenderPath(diagram, options);			
-							
-				float offset = diagram.getMinimumOfCellDimension() / 3.333f;
-			
-				if(path != null
-						&& shape.dropsShadow()
-						&& shape.getType() != DiagramShape.TYPE_CUSTOM){
-					GeneralPath shadow = new GeneralPath(path);
-					AffineTransform translate = new AffineTransform();
-					translate.setToTranslation(offset, offset);
-					shadow.transform(translate);
-					g2.setColor(new Color(150,150,150));
-					g2.fill(shadow);
-				
-				}
-			}
-
-		
-			//blur shadows
-		
-			if(true) {
-				int blurRadius = 6;
-				int blurRadius2 = blurRadius * blurRadius;
-				float blurRadius2F = blurRadius2;
-				float weight = 1.0f / blurRadius2F;
-				float[] elements = new float[blurRadius2];
-				for (int k = 0; k < blurRadius2; k++)
-					elements[k] = weight;
-				Kernel myKernel = new Kernel(blurRadius, blurRadius, elements);
-
-				//if EDGE_NO_OP is not selected, EDGE_ZERO_FILL is the default which creates a black border 
-				ConvolveOp simpleBlur =
-					new ConvolveOp(myKernel, ConvolveOp.EDGE_NO_OP, null);
-								
-				BufferedImage destination =
-					new BufferedImage(
-						image.getWidth(),
-						image.getHeight(),
-						image.getType());
-
-				simpleBlur.filter(image, (BufferedImage) destination);
-
-				//destination = destination.getSubimage(blurRadius/2, blurRadius/2, image.getWidth(), image.getHeight()); 
-				g2 = (Graphics2D) destination.getGraphics();
-				g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
-				renderedImage = (RenderedImage) destination;
-			}
-		}
+		ArrayList<ShadowRenderer.Outline> outlines = null;
+		if(options.dropShadows())
+			outlines = ShadowRenderer.makeOutlines(diagram, shapes, options, image);
 
-		
-		//fill and stroke
-		
 		float dashInterval = Math.min(diagram.getCellWidth(), diagram.getCellHeight()) / 2;
 		//Stroke normalStroke = g2.getStroke();
 		
@@ -224,6 +272,86 @@ public class BitmapRenderer {
 			0
 		  );
 		
+		Graphics2D g2 = image.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, getAntialiasSetting(options));
+		FontRenderContext frc = g2.getFontRenderContext();
+		g2.dispose();
+		
+		return new Layers(outlines, makeDrawings(diagram, shapes, options, frc));
+	}
+	
+	private static Object getAntialiasSetting(RenderingOptions options){
+		return options.performAntialias() ?
+				RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF;
+	}
+	
+	private RenderedImage render(Diagram diagram, BufferedImage image,  RenderingOptions options, int originY,
+			Layers layers){
+		Graphics2D g2 = image.createGraphics();
+
+		Object antialiasSetting = getAntialiasSetting(options);
+		
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
+
+		g2.setColor(options.getBackgroundColor());
+		//TODO: find out why the next line does not work
+		g2.fillRect(0, 0, image.getWidth()+10, image.getHeight()+10);
+		g2.translate(0, -originY);
+		/*for(int y = 0; y < diagram.getHeight(); y ++)
+			g2.drawLine(0, y, diagram.getWidth(), y);*/
+		
+		g2.setStroke(new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND));
+
+		if(layers.outlines != null){
+			ShadowRenderer shadows = new ShadowRenderer(image, options);
+			shadows.addShadows(layers.outlines, originY);
+			shadows.render(options.getRenderingPool());
+		}
+
+		//fill and stroke
+		
+		List<Drawing> drawings = layers.drawings;
+		
+		ForkJoinPool pool = options.getRenderingPool();
+		if(pool == null || image.getWidth() * (long) image.getHeight() <= TILE_SIZE * TILE_SIZE) {
+			for(Drawing drawing : drawings) drawing.draw(g2);
+		} else {
+			renderInParallel(image, drawings, antialiasSetting, originY, pool);
+		}
+		
+		if(options.renderDebugLines() || DEBUG_LINES){
+			Stroke debugStroke =
+			  new BasicStroke(
+				1,
+				BasicStroke.CAP_ROUND,
+				BasicStroke.JOIN_ROUND
+			  );
+			g2.setStroke(debugStroke);
+			g2.setColor(new Color(170, 170, 170));
+			g2.setXORMode(Color.white);
+			for(int x = 0; x < diagram.getWidth(); x += diagram.getCellWidth())
+				g2.drawLine(x, 0, x, diagram.getHeight());
+			for(int y = 0; y < diagram.getHeight(); y += diagram.getCellHeight())
+				g2.drawLine(0, y, diagram.getWidth(), y);
+		}
+		
+
+		g2.dispose();
+		
+		return image;
+	}
+	
+	/**
+	 * @return what is drawn for the shapes, point markers and text of
+	 * the diagram, in the order it is drawn
+	 */
+	private ArrayList<Drawing> makeDrawings(Diagram diagram, ArrayList<DiagramShape> shapes,
+			RenderingOptions options, FontRenderContext frc){
+		ArrayList<Drawing> drawings = new ArrayList<Drawing>();
+		//the stroke of the graphics as the drawings are drawn
+		Stroke stroke;
+		Iterator<DiagramShape> shapesIt;
+		
 		//TODO: at this stage we should draw the open shapes first in order to make sure they are at the bottom (this is useful for the {mo} shape) 
 		
 		
@@ -247,7 +375,7 @@ public class BitmapRenderer {
 		
 		Collections.sort(storageShapes, new Shape3DOrderingComparator());
 		
-		g2.setStroke(normalStroke);
+		stroke = normalStroke;
 		shapesIt = storageShapes.iterator();
 		while(shapesIt.hasNext()){
 			DiagramShape shape = (DiagramShape) shapesIt.next();
@@ -255,20 +383,17 @@ public class BitmapRenderer {
 			GeneralPath path;
 			path = shape.makeIntoRenderPath(diagram, options);
 			
+			Color fillColor = null;
 			if(!shape.isStrokeDashed()) {
 				if(shape.getFillColor() != null)
-					g2.setColor(shape.getFillColor());
+					fillColor = shape.getFillColor();
 				else
-					g2.setColor(Color.white);
-				g2.fill(path);
+					fillColor = Color.white;
 			}
 
-			if(shape.isStrokeDashed())
-				g2.setStroke(dashStroke);
-			else
-				g2.setStroke(normalStroke);
-			g2.setColor(shape.getStrokeColor());
-			g2.draw(path);
+			Stroke fillStroke = stroke;
+			stroke = shape.isStrokeDashed() ? dashStroke : normalStroke;
+			drawings.add(new PathDrawing(path, fillColor, fillStroke, stroke, shape.getStrokeColor()));
 		}
 
 		//sort so that the largest shapes are rendered first
@@ -287,40 +412,42 @@ public class BitmapRenderer {
 				continue;
 			} 
 			if(shape.getType() == DiagramShape.TYPE_CUSTOM){
-				renderCustomShape(shape, g2);
+				drawings.add(new CustomShapeDrawing(shape));
+				if(shape.getDefinition().hasBorder())
+					stroke = shape.isStrokeDashed() ? dashStroke : normalStroke;
 				continue;
 			}
 
 			if(shape.getPoints().isEmpty()) continue;
 
-			int size = shape.getPoints().size();
-			
 			GeneralPath path;
 			path = shape.makeIntoRenderPath(diagram, options);
+			if(path == null) continue;
 			
 			//fill
-			if(path != null && shape.isClosed() && !shape.isStrokeDashed()){
+			Color fillColor = null;
+			if(shape.isClosed() && !shape.isStrokeDashed()){
 				if(shape.getFillColor() != null)
-					g2.setColor(shape.getFillColor());
+					fillColor = shape.getFillColor();
 				else
-					g2.setColor(Color.white);
-				g2.fill(path);
+					fillColor = Color.white;
 			}
 			
 			//draw
+			Stroke fillStroke = stroke;
 			if(shape.getType() != DiagramShape.TYPE_ARROWHEAD){
-				g2.setColor(shape.getStrokeColor());
 				if(shape.isStrokeDashed())
-					g2.setStroke(dashStroke);
+					stroke = dashStroke;
 				else
-					g2.setStroke(normalStroke);
-				g2.draw(path);
+					stroke = normalStroke;
+				drawings.add(new PathDrawing(path, fillColor, fillStroke, stroke, shape.getStrokeColor()));
+			} else {
+				drawings.add(new PathDrawing(path, fillColor, fillStroke, null, null));
 			}
 		}
 		
 		//render point markers
 		
-		g2.setStroke(normalStroke);
 		shapesIt = pointMarkers.iterator();
 		while(shapesIt.hasNext()){
 			DiagramShape shape = (DiagramShape) shapesIt.next();
@@ -329,10 +456,7 @@ public class BitmapRenderer {
 			GeneralPath path;
 			path = shape.makeIntoRenderPath(diagram, options);
 			
-			g2.setColor(Color.white);
-			g2.fill(path);
-			g2.setColor(shape.getStrokeColor());
-			g2.draw(path);
+			drawings.add(new PathDrawing(path, Color.white, normalStroke, normalStroke, shape.getStrokeColor()));
 		}		
 		
 		//handle text
@@ -341,7 +465,224 @@ public class BitmapRenderer {
 		
 		Iterator<DiagramText> textIt = diagram.getTextObjects().iterator();
 		while(textIt.hasNext()){
-			DiagramText text = textIt.next();
+			drawings.add(new TextDrawing(textIt.next(), frc));
+		}
+		
+		return drawings;
+	}
+	
+	/**
+	 * Draws the <code>drawings</code> on <code>pool</code>. Each drawing
+	 * is drawn after the ones before it that can reach the same pixels,
+	 * and at the same time as any others. They are drawn unclipped, with
+	 * a Graphics2D for each thread that is the same as the one of the
+	 * image, as Java2D does not rasterise curves that cross a clip the
+	 * same way as when they do not, which would change some pixels.
+	 */
+	private static void renderInParallel(final BufferedImage image, List<Drawing> drawings,
+			final Object antialiasSetting, final int originY, final ForkJoinPool pool){
+		final int count = drawings.size();
+		int columns = (image.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+		int rows = (image.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+		
+		//bin the drawings into the tiles they reach, to find the
+		//drawings before each one that reach the same pixels
+		ArrayList<ArrayList<Integer>> tiles = new ArrayList<ArrayList<Integer>>(columns * rows);
+		for(int i = 0; i < columns * rows; i++) tiles.add(new ArrayList<Integer>());
+		final ArrayList<ArrayList<Integer>> after = new ArrayList<ArrayList<Integer>>(count);
+		final AtomicInteger[] waiting = new AtomicInteger[count];
+		int[] seen = new int[count];
+		Arrays.fill(seen, -1);
+		for(int j = 0; j < count; j++) {
+			after.add(new ArrayList<Integer>());
+			Rectangle bounds = drawings.get(j).bounds;
+			int firstColumn = Math.max(0, bounds.x / TILE_SIZE);
+			int lastColumn = Math.min(columns - 1, (bounds.x + bounds.width) / TILE_SIZE);
+			int firstRow = Math.max(0, (bounds.y - originY) / TILE_SIZE);
+			int lastRow = Math.min(rows - 1, (bounds.y + bounds.height - originY) / TILE_SIZE);
+			int before = 0;
+			for(int row = firstRow; row <= lastRow; row++) {
+				for(int column = firstColumn; column <= lastColumn; column++) {
+					ArrayList<Integer> tile = tiles.get(row * columns + column);
+					for(int i : tile) {
+						if(seen[i] != j && drawings.get(i).bounds.intersects(bounds)) {
+							seen[i] = j;
+							after.get(i).add(j);
+							before++;
+						}
+					}
+					tile.add(j);
+				}
+			}
+			waiting[j] = new AtomicInteger(before);
+		}
+		
+		if(DEBUG) System.out.println("Rendering "+count+" drawings in "+(columns * rows)+" tiles");
+		
+		final Drawing[] toDraw = drawings.toArray(new Drawing[count]);
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final ConcurrentHashMap<Thread, Graphics2D> graphics = new ConcurrentHashMap<Thread, Graphics2D>();
+		
+		class DrawingTask implements Runnable {
+			final int index;
+			
+			DrawingTask(int index){
+				this.index = index;
+			}
+			
+			public void run(){
+				try {
+					if(failure.get() == null) {
+						Graphics2D g2 = graphics.get(Thread.currentThread());
+						if(g2 == null) {
+							g2 = image.createGraphics();
+							g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
+							g2.translate(0, -originY);
+							graphics.put(Thread.currentThread(), g2);
+						}
+						toDraw[index].draw(g2);
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					for(int next : after.get(index)) {
+						if(waiting[next].decrementAndGet() == 0) pool.execute(new DrawingTask(next));
+					}
+					done.countDown();
+				}
+			}
+		}
+		
+		//find the first ones before starting any, as the ones that are
+		//started can bring the others down to zero
+		ArrayList<DrawingTask> first = new ArrayList<DrawingTask>();
+		for(int j = 0; j < count; j++) {
+			if(waiting[j].get() == 0) first.add(new DrawingTask(j));
+		}
+		for(DrawingTask task : first) pool.execute(task);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering", e);
+		} finally {
+			for(Graphics2D g2 : graphics.values()) g2.dispose();
+		}
+		
+		Throwable cause = failure.get();
+		if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+		if(cause instanceof Error) throw (Error) cause;
+		if(cause != null) throw new RuntimeException(cause);
+	}
+	
+	/**
+	 * The outlines of the shadows of a diagram (or null if it has no
+	 * shadows) and what is drawn over them, in the order it is drawn
+	 */
+	private static class Layers {
+		final List<ShadowRenderer.Outline> outlines;
+		final List<Drawing> drawings;
+		
+		Layers(List<ShadowRenderer.Outline> outlines, List<Drawing> drawings){
+			this.outlines = outlines;
+			this.drawings = drawings;
+		}
+	}
+	
+	/**
+	 * Something that is drawn on the image, and the part of the
+	 * diagram it can reach
+	 */
+	private static abstract class Drawing {
+		Rectangle bounds;
+		abstract void draw(Graphics2D g2);
+	}
+	
+	/**
+	 * A path that is filled and then stroked, or only one of the two
+	 */
+	private static class PathDrawing extends Drawing {
+		final GeneralPath path;
+		final Color fillColor;
+		final Stroke fillStroke;
+		final Stroke stroke;
+		final Color strokeColor;
+		
+		/**
+		 * @param fillColor the colour to fill the path with, or null
+		 * to not fill it
+		 * @param fillStroke the stroke of the graphics when the path
+		 * is filled. Without antialiasing, Java2D fills paths
+		 * differently depending on the stroke.
+		 * @param stroke the stroke to draw the path with, or null
+		 * to not draw it
+		 */
+		PathDrawing(GeneralPath path, Color fillColor, Stroke fillStroke, Stroke stroke, Color strokeColor){
+			this.path = path;
+			this.fillColor = fillColor;
+			this.fillStroke = fillStroke;
+			this.stroke = stroke;
+			this.strokeColor = strokeColor;
+			bounds = path.getBounds();
+			//the antialiasing reaches a pixel further
+			int grow = 2;
+			if(stroke != null) grow += (int) Math.ceil(((BasicStroke) stroke).getLineWidth());
+			bounds.grow(grow, grow);
+		}
+		
+		void draw(Graphics2D g2){
+			if(fillColor != null) {
+				g2.setStroke(fillStroke);
+				g2.setColor(fillColor);
+				g2.fill(path);
+			}
+			if(stroke != null) {
+				g2.setStroke(stroke);
+				g2.setColor(strokeColor);
+				g2.draw(path);
+			}
+		}
+	}
+	
+	private class CustomShapeDrawing extends Drawing {
+		final DiagramShape shape;
+		
+		CustomShapeDrawing(DiagramShape shape){
+			this.shape = shape;
+			bounds = shape.getBounds();
+			//PNGs that do not stretch are placed by their own size,
+			//and can reach far out of the shape
+			CustomShapeDefinition definition = shape.getDefinition();
+			if(definition.getFilename().endsWith(".png")){
+				Image graphic = ImageHandler.instance().loadImage(definition.getFilename());
+				if(graphic.getWidth(null) > 0 && graphic.getHeight(null) > 0)
+					bounds.add(getCustomPNGShapeBounds(shape, graphic));
+			}
+			//the border, and the antialiasing a pixel further
+			int grow = 2 + (int) Math.ceil(((BasicStroke) normalStroke).getLineWidth());
+			bounds.grow(grow, grow);
+		}
+		
+		void draw(Graphics2D g2){
+			renderCustomShape(shape, g2);
+		}
+	}
+	
+	private static class TextDrawing extends Drawing {
+		final DiagramText text;
+		
+		TextDrawing(DiagramText text, FontRenderContext frc){
+			this.text = text;
+			Font font = text.getFont();
+			bounds = font.getStringBounds(text.getText(), frc).getBounds();
+			bounds.translate(text.getXPos(), text.getYPos());
+			//the outline, and the glyphs that reach out of their advance
+			int grow = 2 + font.getSize();
+			bounds.grow(grow, grow);
+		}
+		
+		void draw(Graphics2D g2){
 			g2.setFont(text.getFont());
 			if(text.hasOutline()){
 				g2.setColor(text.getOutlineColor());
@@ -353,27 +694,6 @@ public class BitmapRenderer {
 			g2.setColor(text.getColor());
 			g2.drawString(text.getText(), text.getXPos(), text.getYPos());
 		}
-		
-		if(options.renderDebugLines() || DEBUG_LINES){
-			Stroke debugStroke =
-			  new BasicStroke(
-				1,
-				BasicStroke.CAP_ROUND,
-				BasicStroke.JOIN_ROUND
-			  );
-			g2.setStroke(debugStroke);
-			g2.setColor(new Color(170, 170, 170));
-			g2.setXORMode(Color.white);
-			for(int x = 0; x < diagram.getWidth(); x += diagram.getCellWidth())
-				g2.drawLine(x, 0, x, diagram.getHeight());
-			for(int y = 0; y < diagram.getHeight(); y += diagram.getCellHeight())
-				g2.drawLine(0, y, diagram.getWidth(), y);
-		}
-		
-
-		g2.dispose();
-		
-		return renderedImage;
 	}
 	
 	private RenderedImage renderTextLayer(ArrayList<DiagramText> textObjects, int width, int height){
@@ -456,9 +776,17 @@ public class BitmapRenderer {
 	}
 	
 	private void renderCustomPNGShape(DiagramShape shape, Graphics2D g2){
+		Image graphic = ImageHandler.instance().loadImage(shape.getDefinition().getFilename());
+		Rectangle place = getCustomPNGShapeBounds(shape, graphic);
+		g2.drawImage(graphic, place.x, place.y, place.width, place.height, null);		
+	}
+	
+	/**
+	 * @return where the image of a custom shape that is a PNG is drawn
+	 */
+	private static Rectangle getCustomPNGShapeBounds(DiagramShape shape, Image graphic){
 		CustomShapeDefinition definition = shape.getDefinition();
 		Rectangle bounds = shape.getBounds();
-		Image graphic = ImageHandler.instance().loadImage(definition.getFilename());
 		
 		int xPos, yPos, width, height;
 		
@@ -480,7 +808,7 @@ public class BitmapRenderer {
 			}
 		}
 		
-		g2.drawImage(graphic, xPos, yPos, width, height, null);		
+		return new Rectangle(xPos, yPos, width, height);
 	}
 	
 	public static boolean isColorDark(Color color){
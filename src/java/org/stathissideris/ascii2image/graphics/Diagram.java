@@ -21,14 +21,26 @@ package org.stathissideris.ascii2image.graphics;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.stathissideris.ascii2image.core.ConversionOptions;
 import org.stathissideris.ascii2image.core.Pair;
 import org.stathissideris.ascii2image.text.AbstractionGrid;
 import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.RegionLabeller;
 import org.stathissideris.ascii2image.text.TextGrid;
 import org.stathissideris.ascii2image.text.TextGrid.Cell;
 import org.stathissideris.ascii2image.text.TextGrid.CellColorPair;
@@ -48,6 +60,11 @@ public class Diagram {
 	private ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
 	private ArrayList<CompositeDiagramShape> compositeShapes = new ArrayList<CompositeDiagramShape>();
 	private ArrayList<DiagramText> textObjects = new ArrayList<DiagramText>();
+	/**
+	 * The groups of cells that the text was made from, and the text
+	 * of each, unless the diagram was made in bands
+	 */
+	private ArrayList<TextGroup> textGroups = new ArrayList<TextGroup>();
 	
 	private int width, height;
 	private int cellWidth, cellHeight;
@@ -106,11 +123,19 @@ public class Diagram {
 	 * 
 	 * <p>Finally, the text processing occurs: [pending]</p>
 	 * 
+	 * <p>If ProcessingOptions.processInBands() is set, the grid is first
+	 * split into bands at its blank rows, and each band goes through
+	 * the above separately (see addBands()).</p>
+	 * 
 	 * @param grid
 	 * @param cellWidth
 	 * @param cellHeight
 	 */
 	public Diagram(TextGrid grid, ConversionOptions options) {
+		this(grid, options, options.processingOptions.processInBands());
+	}
+	
+	private Diagram(TextGrid grid, ConversionOptions options, boolean inBands) {
 		
 		this.cellWidth = options.renderingOptions.getCellWidth();
 		this.cellHeight = options.renderingOptions.getCellHeight();
@@ -118,10 +143,17 @@ public class Diagram {
 		width = grid.getWidth() * cellWidth;
 		height = grid.getHeight() * cellHeight;
 		
-		TextGrid workGrid = new TextGrid(grid);
-		workGrid.replaceTypeOnLine();
-		workGrid.replacePointMarkersOnLine();
+		if(inBands) {
+			addBands(grid, options);
+			return;
+		}
+		
+		TextGrid workGrid = makeShapeGrid(grid);
 		if(DEBUG) workGrid.printDebug();
+
+		//the rest of the processing keeps asking about the types of
+		//the cells, so classify all of them in one go
+		workGrid.getCellTypeMap().classifyAll();
 		
 		int width = grid.getWidth();
 		int height = grid.getHeight();
@@ -142,56 +174,17 @@ public class Diagram {
 		}
 		
 		
-		//Find all the boundaries by using the special version of the filling method
-		//(fills in a different buffer than the buffer it reads from)
+		//Find the boundaries of every region that the shapes split the
+		//grid into. The shapes only read workGrid (whose cells have all
+		//been classified), so they can be processed in parallel.
 		ArrayList<CellSet> boundarySetsStep2 = new ArrayList<CellSet>();
-		for(CellSet set : boundarySetsStep1) {			
-			//the fill buffer keeps track of which cells have been
-			//filled already
-			TextGrid fillBuffer = new TextGrid(width * 3, height * 3);
-			
-			for(int yi = 0; yi < height * 3; yi++){
-				for(int xi = 0; xi < width * 3; xi++){
-					if(fillBuffer.isBlank(xi, yi)){
-						
-						TextGrid copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-
-						CellSet boundaries =
-							copyGrid
-							.findBoundariesExpandingFrom(copyGrid.new Cell(xi, yi));
-						if(boundaries.size() == 0) continue; //i'm not sure why these occur
-						boundarySetsStep2.add(boundaries.makeScaledOneThirdEquivalent());
-					
-						copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-						CellSet filled =
-							copyGrid
-							.fillContinuousArea(copyGrid.new Cell(xi, yi), '*');
-						fillBuffer.fillCellsWith(filled, '*');
-						fillBuffer.fillCellsWith(boundaries, '-');
-						
-						if(DEBUG){
-							//System.out.println("Fill buffer:");
-							//fillBuffer.printDebug();
-							boundaries.makeScaledOneThirdEquivalent().printAsGrid();
-							System.out.println("-----------------------------------");
-						}
-						
-					}
-				}
-			}
-		}
-
-		if (DEBUG)
-			System.out.println("******* Removed duplicates *******");
-
-		boundarySetsStep2 = CellSet.removeDuplicateSets(boundarySetsStep2);
-
-		if(DEBUG){
-			Iterator<CellSet> dit = boundarySetsStep2.iterator();
-			while (dit.hasNext()) {
-				CellSet set = dit.next();
-				set.printAsGrid();
+		ForkJoinPool pool = options.processingOptions.getShapeProcessingPool();
+		if(pool == null || boundarySetsStep1.size() < 2) {
+			for(CellSet set : boundarySetsStep1) {
+				boundarySetsStep2.addAll(findRegionBoundaries(workGrid, set));
 			}
+		} else {
+			boundarySetsStep2 = findRegionBoundaries(workGrid, boundarySetsStep1, pool);
 		}
 
 		int originalSize = boundarySetsStep2.size(); 
@@ -202,6 +195,11 @@ public class Diagram {
 				+originalSize
 				+" shapes and now there are "
 				+boundarySetsStep2.size());
+			Iterator<CellSet> dit = boundarySetsStep2.iterator();
+			while (dit.hasNext()) {
+				CellSet set = dit.next();
+				set.printAsGrid();
+			}
 		} 
 		
 
@@ -383,6 +381,8 @@ public class Diagram {
 		//assign color codes to shapes
 		//TODO: text on line should not change its color
 		
+		ShapeIndex shapeIndex = new ShapeIndex(getShapes());
+		
 		Iterator<CellColorPair> cellColorPairs = grid.findColorCodes().iterator();
 		while(cellColorPairs.hasNext()){
 			TextGrid.CellColorPair pair =
@@ -390,7 +390,7 @@ public class Diagram {
 			
 			ShapePoint point =
 				new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
-			DiagramShape containingShape = findSmallestShapeContaining(point);
+			DiagramShape containingShape = shapeIndex.findSmallestShapeContaining(point);
 			
 			if(containingShape != null)
 				containingShape.setFillColor(pair.color);
@@ -405,7 +405,7 @@ public class Diagram {
 			ShapePoint point =
 				new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
 			
-			DiagramShape containingShape = findSmallestShapeContaining(point);
+			DiagramShape containingShape = shapeIndex.findSmallestShapeContaining(point);
 			
 			//this tag is not within a shape, skip
 			if(containingShape == null) continue;
@@ -512,105 +512,354 @@ public class Diagram {
 		if(DEBUG) System.out.println("Composite shape count: "+compositeShapes.size());
 		
 		//copy again
-		workGrid = new TextGrid(grid);
-		workGrid.removeNonText();
+		workGrid = makeTextGrid(grid);
 		
 		
 		// ****** handle text *******
 		//break up text into groups
-		TextGrid textGroupGrid = new TextGrid(workGrid);
+		ArrayList<CellSet> groups = findTextGroups(workGrid);
+		if(DEBUG) System.out.println(groups.size()+" text groups found");
+		
+		Font font = FontMeasurer.instance().getFontFor(cellHeight);
+		
+		for(CellSet group : groups){
+			ArrayList<DiagramText> text = makeText(workGrid, group, font);
+			textGroups.add(new TextGroup(group, text));
+			for(DiagramText textObject : text) addToTextObjects(textObject);
+		}
+		
+		if (DEBUG)
+			System.out.println("Positioned text");
+		
+		//correct the color of the text objects according
+		//to the underlying color
+		shapeIndex = new ShapeIndex(getShapes());
+		for(DiagramText textObject : getTextObjects()) correctTextColor(shapeIndex, textObject);
+
+		outlineTextIfCustomShapes();
+		
+		if (DEBUG)
+			System.out.println("Corrected color of text according to underlying color");
+
+	}
+	
+	/**
+	 * @return a copy of <code>grid</code> with the type and the point
+	 * markers on lines replaced by lines, which the shapes are made from
+	 */
+	static TextGrid makeShapeGrid(TextGrid grid){
+		TextGrid workGrid = new TextGrid(grid);
+		workGrid.replaceTypeOnLine();
+		workGrid.replacePointMarkersOnLine();
+		return workGrid;
+	}
+
+	/**
+	 * @return a copy of <code>grid</code> with only its text
+	 */
+	static TextGrid makeTextGrid(TextGrid grid){
+		TextGrid textGrid = new TextGrid(grid);
+		textGrid.removeNonText();
+		return textGrid;
+	}
+	
+	/**
+	 * @return the groups of cells of <code>textGrid</code> that are
+	 * next to each other, or only a blank apart on the same row. The
+	 * strings of a group are aligned with each other.
+	 */
+	static ArrayList<CellSet> findTextGroups(TextGrid textGrid){
+		TextGrid textGroupGrid = new TextGrid(textGrid);
 		CellSet gaps = textGroupGrid.getAllBlanksBetweenCharacters();
 		//kludge
 		textGroupGrid.fillCellsWith(gaps, '|');
 		CellSet nonBlank = textGroupGrid.getAllNonBlank();
-		ArrayList<CellSet> textGroups = nonBlank.breakIntoDistinctBoundaries();
-		if(DEBUG) System.out.println(textGroups.size()+" text groups found");
+		return nonBlank.breakIntoDistinctBoundaries();
+	}
+	
+	/**
+	 * @return the text of the strings of <code>group</code>, a group
+	 * of cells of <code>textGrid</code>, positioned in their cells
+	 */
+	ArrayList<DiagramText> makeText(TextGrid textGrid, CellSet group, Font font){
+		ArrayList<DiagramText> result = new ArrayList<DiagramText>();
 		
-		Font font = FontMeasurer.instance().getFontFor(cellHeight);
+		TextGrid isolationGrid = new TextGrid(textGrid.getWidth(), textGrid.getHeight());
+		textGrid.copyCellsTo(group, isolationGrid);
+		 
+		ArrayList<CellStringPair> strings = isolationGrid.findStrings();
+		Iterator<CellStringPair> it = strings.iterator();
+		while(it.hasNext()){
+			TextGrid.CellStringPair pair = it.next();
+			TextGrid.Cell cell = pair.cell;
+			String string = pair.string;
+			if (DEBUG)
+				System.out.println("Found string "+string);
+			TextGrid.Cell lastCell = isolationGrid.new Cell(cell.x + string.length() - 1, cell.y);
 		
-		Iterator<CellSet> textGroupIt = textGroups.iterator();
-		while(textGroupIt.hasNext()){
-			CellSet textGroupCellSet = (CellSet) textGroupIt.next();
-			
-			TextGrid isolationGrid = new TextGrid(width, height);
-			workGrid.copyCellsTo(textGroupCellSet, isolationGrid);
-			 
-			ArrayList<CellStringPair> strings = isolationGrid.findStrings();
-			Iterator<CellStringPair> it = strings.iterator();
-			while(it.hasNext()){
-				TextGrid.CellStringPair pair = it.next();
-				TextGrid.Cell cell = pair.cell;
-				String string = pair.string;
-				if (DEBUG)
-					System.out.println("Found string "+string);
-				TextGrid.Cell lastCell = isolationGrid.new Cell(cell.x + string.length() - 1, cell.y);
-			
-				int minX = getCellMinX(cell);
-				int y = getCellMaxY(cell);
-				int maxX = getCellMaxX(lastCell);
-			
-				DiagramText textObject;
-				if(FontMeasurer.instance().getWidthFor(string, font) > maxX - minX){ //does not fit horizontally
-					Font lessWideFont = FontMeasurer.instance().getFontFor(maxX - minX, string);
-					textObject = new DiagramText(minX, y, string, lessWideFont);
-				} else textObject = new DiagramText(minX, y, string, font);
-			
-				textObject.centerVerticallyBetween(getCellMinY(cell), getCellMaxY(cell));
-			
-				//TODO: if the strings start with bullets they should be aligned to the left
-			
-				//position text correctly
-				int otherStart = isolationGrid.otherStringsStartInTheSameColumn(cell);
-				int otherEnd = isolationGrid.otherStringsEndInTheSameColumn(lastCell);
-				if(0 == otherStart && 0 == otherEnd) {
-					textObject.centerHorizontallyBetween(minX, maxX);
-				} else if(otherEnd > 0 && otherStart == 0) {
+			int minX = getCellMinX(cell);
+			int y = getCellMaxY(cell);
+			int maxX = getCellMaxX(lastCell);
+		
+			DiagramText textObject;
+			if(FontMeasurer.instance().getWidthFor(string, font) > maxX - minX){ //does not fit horizontally
+				Font lessWideFont = FontMeasurer.instance().getFontFor(maxX - minX, string);
+				textObject = new DiagramText(minX, y, string, lessWideFont);
+			} else textObject = new DiagramText(minX, y, string, font);
+		
+			textObject.centerVerticallyBetween(getCellMinY(cell), getCellMaxY(cell));
+		
+			//TODO: if the strings start with bullets they should be aligned to the left
+		
+			//position text correctly
+			int otherStart = isolationGrid.otherStringsStartInTheSameColumn(cell);
+			int otherEnd = isolationGrid.otherStringsEndInTheSameColumn(lastCell);
+			if(0 == otherStart && 0 == otherEnd) {
+				textObject.centerHorizontallyBetween(minX, maxX);
+			} else if(otherEnd > 0 && otherStart == 0) {
+				textObject.alignRightEdgeTo(maxX);
+			} else if(otherEnd > 0 && otherStart > 0){
+				if(otherEnd > otherStart){
 					textObject.alignRightEdgeTo(maxX);
-				} else if(otherEnd > 0 && otherStart > 0){
-					if(otherEnd > otherStart){
-						textObject.alignRightEdgeTo(maxX);
-					} else if(otherEnd == otherStart){
-						textObject.centerHorizontallyBetween(minX, maxX);
-					}
+				} else if(otherEnd == otherStart){
+					textObject.centerHorizontallyBetween(minX, maxX);
 				}
-			
-				addToTextObjects(textObject);
 			}
-		}
 		
-		if (DEBUG)
-			System.out.println("Positioned text");
+			result.add(textObject);
+		}
+		return result;
+	}
+	
+	/**
+	 * Makes <code>textObject</code> white if it is on a dark shape
+	 */
+	static void correctTextColor(ShapeIndex shapeIndex, DiagramText textObject){
+		DiagramShape shape = shapeIndex.findSmallestShapeIntersecting(textObject.getBounds());
+		if(shape != null 
+				&& shape.getFillColor() != null 
+				&& BitmapRenderer.isColorDark(shape.getFillColor())) {
+			textObject.setColor(Color.white);
+		}
+	}
+	
+	/**
+	 * Set outline to true for text within custom shapes
+	 * (in fact, for all the text if there are any custom shapes)
+	 */
+	void outlineTextIfCustomShapes(){
+		if(!hasCustomShapes()) return;
+		Iterator<DiagramText> textObjects = getTextObjects().iterator();
+		while(textObjects.hasNext()){
+			DiagramText textObject = (DiagramText) textObjects.next();
+			textObject.setHasOutline(true);
+			textObject.setColor(DiagramText.DEFAULT_COLOR);
+		}
+	}
+	
+	boolean hasCustomShapes(){
+		for(DiagramShape shape : getAllDiagramShapes()){
+			if(shape.getType() == DiagramShape.TYPE_CUSTOM) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Makes an empty diagram, for addBand()
+	 */
+	Diagram(int width, int height, int cellWidth, int cellHeight) {
+		this.width = width;
+		this.height = height;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+	}
+	
+	/**
+	 * Splits <code>grid</code> into bands at its blank rows, makes a
+	 * Diagram of each band and adds its shapes and text to this one,
+	 * moved down to where the band is in the grid.
+	 * 
+	 * No shape or text can cross a blank row, so the bands give the
+	 * same shapes as the whole grid, but only the work grids of one
+	 * band are in memory at a time.
+	 */
+	private void addBands(TextGrid grid, ConversionOptions options){
+		for(int[] rows : findBands(grid)){
+			addBand(makeBand(grid, rows[0], rows[1], options));
+			
+			if(DEBUG)
+				System.out.println("Processed band of rows "+rows[0]+" to "+(rows[1] - 1));
+		}
 		
-		//correct the color of the text objects according
-		//to the underlying color
-		for(DiagramText textObject : getTextObjects()) {
-			DiagramShape shape = findSmallestShapeIntersecting(textObject.getBounds());
-			if(shape != null 
-					&& shape.getFillColor() != null 
-					&& BitmapRenderer.isColorDark(shape.getFillColor())) {
-				textObject.setColor(Color.white);
-			}
-		}
-
-		//set outline to true for test within custom shapes
-		Iterator<DiagramShape> shapes = this.getAllDiagramShapes().iterator();
-		while(shapes.hasNext()){
-			DiagramShape shape = (DiagramShape) shapes.next();
-			if(shape.getType() == DiagramShape.TYPE_CUSTOM){
-				Iterator<DiagramText> textObjects = getTextObjects().iterator();
-				while(textObjects.hasNext()){
-					DiagramText textObject = (DiagramText) textObjects.next();
-					textObject.setHasOutline(true);
-					textObject.setColor(DiagramText.DEFAULT_COLOR);
+		//this depends on the shapes of all the bands
+		outlineTextIfCustomShapes();
+	}
+	
+	/**
+	 * @return the first and last (exclusive) row of each run of rows
+	 * of <code>grid</code> that are not blank, in order
+	 */
+	static ArrayList<int[]> findBands(TextGrid grid){
+		ArrayList<int[]> result = new ArrayList<int[]>();
+		int gridHeight = grid.getHeight();
+		int y = 0;
+		while(y < gridHeight){
+			if(grid.isRowBlank(y)) {
+				y++;
+				continue;
+			}
+			int firstRow = y;
+			while(y < gridHeight && !grid.isRowBlank(y)) y++;
+			result.add(new int[] {firstRow, y});
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the Diagram of rows <code>firstRow</code> to
+	 * <code>lastRow</code> (exclusive) of <code>grid</code>, moved
+	 * to where these rows are in the grid. The blank row above and
+	 * below (if there is one) are processed with the band, so that
+	 * its cells have the same neighbours as in the grid.
+	 */
+	static Diagram makeBand(TextGrid grid, int firstRow, int lastRow, ConversionOptions options){
+		return makeBand(getBandGrid(grid, firstRow, lastRow), Math.max(0, firstRow - 1), options);
+	}
+	
+	/**
+	 * @return rows <code>firstRow</code> to <code>lastRow</code>
+	 * (exclusive) of <code>grid</code>, and the blank row above and
+	 * below (if there is one)
+	 */
+	static TextGrid getBandGrid(TextGrid grid, int firstRow, int lastRow){
+		int top = Math.max(0, firstRow - 1);
+		int bottom = Math.min(grid.getHeight(), lastRow + 1);
+		return grid.getSubGrid(0, top, grid.getWidth(), bottom - top);
+	}
+	
+	/**
+	 * @return the Diagram of <code>bandGrid</code>, which are the rows
+	 * of a grid from <code>top</code>, moved to where they are in it
+	 */
+	static Diagram makeBand(TextGrid bandGrid, int top, ConversionOptions options){
+		Diagram band = new Diagram(bandGrid, options, false);
+		band.moveBy(0, top * band.cellHeight);
+		return band;
+	}
+	
+	/**
+	 * Adds the shapes and text of <code>band</code> to this diagram
+	 */
+	void addBand(Diagram band){
+		shapes.addAll(band.getShapes());
+		compositeShapes.addAll(band.getCompositeShapes());
+		textObjects.addAll(band.getTextObjects());
+	}
+	
+	/**
+	 * Adds the shapes and text of <code>band</code> that reach the
+	 * rows of pixels from <code>top</code> to <code>bottom</code>
+	 * (exclusive). Custom shapes are always added, as their images
+	 * can reach far out of them.
+	 */
+	void addBand(Diagram band, int top, int bottom){
+		for(DiagramShape shape : band.getShapes()) {
+			if(reaches(shape, top, bottom)) shapes.add(shape);
+		}
+		for(CompositeDiagramShape composite : band.getCompositeShapes()) {
+			for(DiagramShape shape : composite.getShapes()) {
+				if(reaches(shape, top, bottom)) {
+					compositeShapes.add(composite);
+					break;
 				}
 			}
 		}
+		for(DiagramText text : band.getTextObjects()) {
+			Rectangle2D bounds = text.getBounds();
+			if(bounds.getMaxY() >= top && bounds.getMinY() < bottom) textObjects.add(text);
+		}
+	}
+	
+	private static boolean reaches(DiagramShape shape, int top, int bottom){
+		if(shape.getType() == DiagramShape.TYPE_CUSTOM) return true;
+		Rectangle bounds = shape.getBounds();
+		return bounds.y + bounds.height >= top && bounds.y < bottom;
+	}
+	
+	/**
+	 * Moves all the shapes and text of the diagram by dx, dy.
+	 */
+	void moveBy(int dx, int dy){
+		//points can be shared between shapes, so move each one once
+		Set<ShapePoint> moved =
+			Collections.newSetFromMap(new IdentityHashMap<ShapePoint, Boolean>());
+		for(DiagramShape shape : getAllDiagramShapes()) {
+			for(Object object : shape.getPoints()) {
+				ShapePoint point = (ShapePoint) object;
+				if(moved.add(point)) point.setLocation(point.x + dx, point.y + dy);
+			}
+		}
+		for(DiagramText text : textObjects) {
+			text.setXPos(text.getXPos() + dx);
+			text.setYPos(text.getYPos() + dy);
+		}
+	}
+	
+	/**
+	 * @return the boundaries of the regions that <code>shape</code>
+	 * splits the grid into
+	 */
+	private static ArrayList<CellSet> findRegionBoundaries(TextGrid workGrid, CellSet shape){
+		AbstractionGrid abstraction = new AbstractionGrid(workGrid, shape);
+		TextGrid buffer = abstraction.getCopyOfInternalBuffer();
 		
-		if (DEBUG)
-			System.out.println("Corrected color of text according to underlying color");
-
+		ArrayList<CellSet> result = new ArrayList<CellSet>();
+		for(CellSet boundaries : new RegionLabeller(buffer).getBoundaries()) {
+			CellSet boundarySet = boundaries.makeScaledOneThirdEquivalent();
+			boundarySet.translate(abstraction.getOriginX(), abstraction.getOriginY());
+			result.add(boundarySet);
+			
+			if(DEBUG){
+				boundarySet.printAsGrid();
+				System.out.println("-----------------------------------");
+			}
+		}
+		return result;
 	}
 	
+	/**
+	 * Same as calling findRegionBoundaries() for each of the
+	 * <code>shapes</code>, but the shapes are processed on
+	 * <code>pool</code>. The results are in the order of the shapes.
+	 */
+	private static ArrayList<CellSet> findRegionBoundaries(
+			final TextGrid workGrid, ArrayList<CellSet> shapes, ForkJoinPool pool){
+		ArrayList<Callable<ArrayList<CellSet>>> tasks = new ArrayList<Callable<ArrayList<CellSet>>>();
+		for(final CellSet shape : shapes) {
+			tasks.add(new Callable<ArrayList<CellSet>>() {
+				public ArrayList<CellSet> call() {
+					return findRegionBoundaries(workGrid, shape);
+				}
+			});
+		}
+		
+		ArrayList<CellSet> result = new ArrayList<CellSet>();
+		try {
+			for(Future<ArrayList<CellSet>> boundaries : pool.invokeAll(tasks)) {
+				result.addAll(boundaries.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while processing shapes", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		return result;
+	}
+
 	/**
 	 * Returns a list of all DiagramShapes in the Diagram, including
 	 * the ones within CompositeDiagramShapes
@@ -663,36 +912,30 @@ public class Diagram {
 			} else filledSets.add(set);
 		}
 		
-		ArrayList<Integer> toBeRemovedIndices = new ArrayList<Integer>();
-		it = filledSets.iterator();
-		while(it.hasNext()){
-			CellSet set = (CellSet) it.next();
+		//the sets that have common cells with each set, in their order
+		int[][] overlaps = findOverlappingSets(filledSets);
+		
+		boolean[] toBeRemoved = new boolean[filledSets.size()];
+		for(int i = 0; i < filledSets.size(); i++){
+			CellSet set = filledSets.get(i);
 			
 			if(DEBUG_VERBOSE){
 				System.out.println("*** Deciding if the following should be removed:");
 				set.printAsGrid();
 			}
 			
-			//find the other sets that have common cells with set
-			ArrayList<CellSet> common = new ArrayList<CellSet>();
-			common.add(set);
-			Iterator it2 = filledSets.iterator();
-			while(it2.hasNext()){
-				CellSet set2 = (CellSet) it2.next();
-				if(set != set2 && set.hasCommonCells(set2)){
-					common.add(set2);
-				}
-			}
 			//it only makes sense for more than 2 sets
-			if(common.size() == 2) continue;
+			int[] common = overlaps[i];
+			if(common.length == 1) continue;
 			
 			//find largest set
 			CellSet largest = set;
-			it2 = common.iterator();
-			while(it2.hasNext()){
-				CellSet set2 = (CellSet) it2.next();
+			int largestIndex = i;
+			for(int j : common){
+				CellSet set2 = filledSets.get(j);
 				if(set2.size() > largest.size()){
 					largest = set2;
+					largestIndex = j;
 				}
 			}
 			
@@ -701,55 +944,31 @@ public class Diagram {
 				largest.printAsGrid();
 			}
 
-			//see if largest is sum of others
-			common.remove(largest);
+			//see if largest is the sum of the others, limited to
+			//the area of the grid that largest would be drawn on
+			ArrayList<CellSet> smallSets = new ArrayList<CellSet>();
+			if(largestIndex != i) smallSets.add(set);
+			for(int j : common){
+				if(j != largestIndex) smallSets.add(filledSets.get(j));
+			}
 
-			//make the sum set of the small sets on a grid
-			TextGrid gridOfSmalls = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-			CellSet sumOfSmall = new CellSet();
-			it2 = common.iterator();
-			while(it2.hasNext()){
-				CellSet set2 = (CellSet) it2.next();
-				if(DEBUG_VERBOSE){
-					System.out.println("One of smalls:");
-					set2.printAsGrid();
+			if(largest.isUnionOf(smallSets, largest.getMaxX() + 1, largest.getMaxY() + 1)){
+				if(!toBeRemoved[largestIndex]){
+					toBeRemoved[largestIndex] = true;
+					if (DEBUG){
+						System.out.println("Decided to remove set:");
+						largest.printAsGrid();
+					}
 				}
-				gridOfSmalls.fillCellsWith(set2, '*');
 			}
-			if(DEBUG_VERBOSE){
-				System.out.println("Sum of smalls:");
-				gridOfSmalls.printDebug();
-			}
-			TextGrid gridLargest = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-			gridLargest.fillCellsWith(largest, '*');
-
-			int index = filledSets.indexOf(largest);
-			if(gridLargest.equals(gridOfSmalls)
-					&& !toBeRemovedIndices.contains(new Integer(index))) {
-				toBeRemovedIndices.add(new Integer(index));
-				if (DEBUG){
-					System.out.println("Decided to remove set:");
-					largest.printAsGrid();
-				}
-			} /*else if (DEBUG){
-				System.out.println("This set WILL NOT be removed:");
-				largest.printAsGrid();
-			}*/
-			//if(gridLargest.equals(gridOfSmalls)) toBeRemovedIndices.add(new Integer(index));
 		}
 		
-		ArrayList<CellSet> setsToBeRemoved = new ArrayList<CellSet>();
-		it = toBeRemovedIndices.iterator();
-		while(it.hasNext()){
-			int i = ((Integer) it.next()).intValue();
-			setsToBeRemoved.add(sets.get(i));
-		}
-	
-		it = setsToBeRemoved.iterator();
-		while(it.hasNext()){
-			CellSet set = (CellSet) it.next();
-			removedAny = true;
-			sets.remove(set);
+		//from the end, so that the indices of the rest stay the same
+		for(int i = toBeRemoved.length - 1; i >= 0; i--){
+			if(toBeRemoved[i]){
+				removedAny = true;
+				sets.remove(i);
+			}
 		}
 	
 		if(DEBUG_VERBOSE) {
@@ -764,6 +983,45 @@ public class Diagram {
 		return removedAny;
 	}
 	
+	/**
+	 * @return for each set of <code>sets</code>, the indices of the
+	 * other sets that have common cells with it, in ascending order
+	 */
+	private static int[][] findOverlappingSets(ArrayList<CellSet> sets){
+		int count = sets.size();
+		int[] minX = new int[count], maxX = new int[count];
+		int[] minY = new int[count], maxY = new int[count];
+		for(int i = 0; i < count; i++){
+			CellSet set = sets.get(i);
+			minX[i] = set.getMinX();
+			maxX[i] = set.getMaxX();
+			minY[i] = set.getMinY();
+			maxY[i] = set.getMaxY();
+		}
+		
+		int[][] result = new int[count][];
+		int[] found = new int[count];
+		for(int i = 0; i < count; i++){
+			CellSet set = sets.get(i);
+			int foundCount = 0;
+			for(int j = 0; j < count; j++){
+				if(j == i) continue;
+				//sets can only have common cells if their bounds overlap
+				if(minX[j] > maxX[i] || minX[i] > maxX[j]
+						|| minY[j] > maxY[i] || minY[i] > maxY[j]) continue;
+				//the test is symmetric, so reuse the answer for earlier sets
+				boolean overlap = j < i ? contains(result[j], i) : set.hasCommonCells(sets.get(j));
+				if(overlap) found[foundCount++] = j;
+			}
+			result[i] = Arrays.copyOf(found, foundCount);
+		}
+		return result;
+	}
+	
+	private static boolean contains(int[] sortedArray, int value){
+		return Arrays.binarySearch(sortedArray, value) >= 0;
+	}
+	
 	public float getMinimumOfCellDimension(){
 		return Math.min(getCellWidth(), getCellHeight());
 	}
@@ -782,100 +1040,171 @@ public class Diagram {
 		}
 		
 		//group edges into pairs of touching edges
-		ArrayList<Pair<ShapeEdge, ShapeEdge>> listOfPairs = new ArrayList<Pair<ShapeEdge, ShapeEdge>>();
-		it = edges.iterator();
+		ArrayList<Pair<ShapeEdge, ShapeEdge>> listOfPairs = findTouchingEdges(edges);
 		
-		//all-against-all touching test for the edges
-		int startIndex = 1; //skip some to avoid duplicate comparisons and self-to-self comparisons
+		//an edge can be in several pairs, but must only be moved once
+		Set<ShapeEdge> movedEdges =
+			Collections.newSetFromMap(new IdentityHashMap<ShapeEdge, Boolean>());
 		
-		while(it.hasNext()){
-			ShapeEdge edge1 = (ShapeEdge) it.next();
-			
-			for(int k = startIndex; k < edges.size(); k++) {
-				ShapeEdge edge2 =  edges.get(k);
-				
-				if(edge1.touchesWith(edge2)) {
-					listOfPairs.add(new Pair<ShapeEdge, ShapeEdge>(edge1, edge2));
-				}
+		//move equivalent edges inwards
+		for(Pair<ShapeEdge, ShapeEdge> pair : listOfPairs){
+			if(movedEdges.add(pair.first)) pair.first.moveInwardsBy(offset);
+			if(movedEdges.add(pair.second)) pair.second.moveInwardsBy(offset);
+		}
+
+	}
+	
+	/**
+	 * Finds the pairs of edges that touch, as if every edge had been
+	 * tested against every later edge of the list with touchesWith().
+	 * The pairs are in the same order that test would produce them.
+	 * 
+	 * Horizontal edges can only touch horizontal edges at the same y,
+	 * and vertical edges vertical edges at the same x, so the edges are
+	 * grouped by direction and coordinate. Within each group, sorted by
+	 * where they start, an edge is only tested against the earlier edges
+	 * that reach it. Edges of zero length can only touch an equal edge,
+	 * so they are grouped like vertical ones. Sloped edges are still
+	 * tested against all the other edges.
+	 */
+	private static ArrayList<Pair<ShapeEdge, ShapeEdge>> findTouchingEdges(ArrayList<ShapeEdge> edges){
+		int count = edges.size();
+		float[] minima = new float[count];
+		float[] maxima = new float[count];
+		boolean[] isSloped = new boolean[count];
+		ArrayList<Integer> sloped = new ArrayList<Integer>();
+		HashMap<Long, ArrayList<Integer>> groups = new HashMap<Long, ArrayList<Integer>>();
+		
+		for(int i = 0; i < count; i++){
+			ShapeEdge edge = edges.get(i);
+			ShapePoint start = edge.getStartPoint();
+			ShapePoint end = edge.getEndPoint();
+			int direction;
+			float coordinate;
+			if(edge.isHorizontal() && !edge.isVertical()){
+				direction = 0;
+				coordinate = start.y;
+				minima[i] = Math.min(start.x, end.x);
+				maxima[i] = Math.max(start.x, end.x);
+			} else if(edge.isVertical()){
+				direction = edge.isHorizontal() ? 2 : 1;
+				coordinate = start.x;
+				minima[i] = Math.min(start.y, end.y);
+				maxima[i] = Math.max(start.y, end.y);
+			} else {
+				isSloped[i] = true;
+				sloped.add(i);
+				continue;
 			}
-			startIndex++;
+			//adding 0 turns -0 into 0, as they compare equal
+			long key = ((long) direction << 32)
+				| (Float.floatToIntBits(coordinate + 0.0f) & 0xFFFFFFFFL);
+			ArrayList<Integer> group = groups.get(key);
+			if(group == null){
+				group = new ArrayList<Integer>();
+				groups.put(key, group);
+			}
+			group.add(i);
 		}
 		
-		ArrayList<ShapeEdge> movedEdges = new ArrayList<ShapeEdge>();
+		//pairs are encoded as (first index << 32 | second index)
+		LongList pairs = new LongList();
 		
-		//move equivalent edges inwards
-		it = listOfPairs.iterator();
-		while(it.hasNext()){
-			Pair<ShapeEdge, ShapeEdge> pair = (Pair<ShapeEdge, ShapeEdge>) it.next();
-			if(!movedEdges.contains(pair.first)) {
-				pair.first.moveInwardsBy(offset);
-				movedEdges.add(pair.first);
+		for(ArrayList<Integer> group : groups.values()){
+			Integer[] sorted = group.toArray(new Integer[group.size()]);
+			final float[] groupMinima = minima;
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				public int compare(Integer i1, Integer i2) {
+					return Float.compare(groupMinima[i1], groupMinima[i2]);
+				}
+			});
+			ArrayList<Integer> reaching = new ArrayList<Integer>();
+			for(int i : sorted){
+				Iterator<Integer> it = reaching.iterator();
+				while(it.hasNext()){
+					int other = it.next();
+					if(maxima[other] < minima[i]) it.remove();
+					else addIfTouching(edges, Math.min(i, other), Math.max(i, other), pairs);
+				}
+				reaching.add(i);
 			}
-			if(!movedEdges.contains(pair.second)) {
-				pair.second.moveInwardsBy(offset);
-				movedEdges.add(pair.second);
+		}
+		
+		for(int i : sloped){
+			for(int other = 0; other < count; other++){
+				if(other == i || (isSloped[other] && other < i)) continue;
+				addIfTouching(edges, Math.min(i, other), Math.max(i, other), pairs);
 			}
 		}
-
+		
+		long[] codes = pairs.toArray();
+		Arrays.sort(codes);
+		ArrayList<Pair<ShapeEdge, ShapeEdge>> result = new ArrayList<Pair<ShapeEdge, ShapeEdge>>();
+		for(long code : codes){
+			result.add(new Pair<ShapeEdge, ShapeEdge>(
+					edges.get((int) (code >>> 32)), edges.get((int) code)));
+		}
+		return result;
+	}
+	
+	private static void addIfTouching(ArrayList<ShapeEdge> edges, int first, int second, LongList pairs){
+		if(edges.get(first).touchesWith(edges.get(second)))
+			pairs.add(((long) first << 32) | second);
+	}
+	
+	private static class LongList {
+		private long[] items = new long[16];
+		private int size = 0;
+		
+		void add(long item){
+			if(size == items.length) items = Arrays.copyOf(items, size * 2);
+			items[size++] = item;
+		}
+		
+		long[] toArray(){
+			return Arrays.copyOf(items, size);
+		}
 	}
 	
 	
 	//TODO: removes more than it should
 	private void removeDuplicateShapes() {
-		ArrayList originalShapes = new ArrayList();
+		ArrayList<DiagramShape> originalShapes = new ArrayList<DiagramShape>();
+		HashMap<Long, ArrayList<DiagramShape>> originalsByFingerprint =
+			new HashMap<Long, ArrayList<DiagramShape>>();
 
-		Iterator shapesIt = getShapesIterator();
-		while(shapesIt.hasNext()){
-			DiagramShape shape = (DiagramShape) shapesIt.next();
-			boolean isOriginal = true;
-			Iterator originals = originalShapes.iterator();
-			while(originals.hasNext()){
-				DiagramShape originalShape = (DiagramShape) originals.next();
-				if(shape.equals(originalShape)){
-					isOriginal = false;
-				}
+		for(DiagramShape shape : shapes){
+			Long fingerprint = Long.valueOf(shape.getFingerprint());
+			ArrayList<DiagramShape> candidates;
+			if(shape.hasPointsAtSamePosition()) {
+				//may equal shapes with other fingerprints
+				candidates = originalShapes;
+			} else {
+				candidates = originalsByFingerprint.get(fingerprint);
 			}
-			if(isOriginal) originalShapes.add(shape);
-		}
-
-		shapes.clear();
-		shapes.addAll(originalShapes);
-	}
-	
-	private DiagramShape findSmallestShapeContaining(ShapePoint point) {
-		DiagramShape containingShape = null;
-		Iterator<DiagramShape> shapes = getShapes().iterator();
-		while(shapes.hasNext()){
-			DiagramShape shape = shapes.next();
-			if(shape.contains(point)){
-				if(containingShape == null){
-					containingShape = shape;
-				} else {
-					if(shape.isSmallerThan(containingShape)){
-						containingShape = shape;
+			
+			boolean isOriginal = true;
+			if(candidates != null) {
+				for(DiagramShape originalShape : candidates){
+					if(shape.equals(originalShape)){
+						isOriginal = false;
+						break;
 					}
 				}
 			}
-		}
-		return containingShape;
-	}
-	
-	private DiagramShape findSmallestShapeIntersecting(Rectangle2D rect) {
-		DiagramShape intersectingShape = null;
-		Iterator<DiagramShape> shapes = getShapes().iterator();
-		while(shapes.hasNext()){
-			DiagramShape shape = shapes.next();
-			if(shape.intersects(rect)){
-				if(intersectingShape == null){
-					intersectingShape = shape;
-				} else {
-					if(shape.isSmallerThan(intersectingShape)){
-						intersectingShape = shape;
-					}
+			if(isOriginal) {
+				originalShapes.add(shape);
+				ArrayList<DiagramShape> sameFingerprint = originalsByFingerprint.get(fingerprint);
+				if(sameFingerprint == null) {
+					sameFingerprint = new ArrayList<DiagramShape>();
+					originalsByFingerprint.put(fingerprint, sameFingerprint);
 				}
+				sameFingerprint.add(shape);
 			}
 		}
-		return intersectingShape;
+
+		shapes.clear();
+		shapes.addAll(originalShapes);
 	}
 	
 	private void addToTextObjects(DiagramText shape){
@@ -995,4 +1324,34 @@ public class Diagram {
 		return textObjects;
 	}
 
+	/**
+	 * @return the groups of cells that the text was made from, and
+	 * the text of each. Empty if the diagram was made in bands.
+	 */
+	ArrayList<TextGroup> getTextGroups() {
+		return textGroups;
+	}
+
+	/**
+	 * Replaces the text of the diagram with that of <code>groups</code>
+	 */
+	void setTextGroups(ArrayList<TextGroup> groups) {
+		textGroups = groups;
+		textObjects = new ArrayList<DiagramText>();
+		for(TextGroup group : groups) textObjects.addAll(group.text);
+	}
+
+	/**
+	 * A group of cells of text, and the text made from it
+	 */
+	static class TextGroup {
+		final CellSet cells;
+		final ArrayList<DiagramText> text;
+		
+		TextGroup(CellSet cells, ArrayList<DiagramText> text){
+			this.cells = cells;
+			this.text = text;
+		}
+	}
+
 }
@@ -25,7 +25,7 @@ import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.Ellipse2D;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.stathissideris.ascii2image.core.RenderingOptions;
@@ -320,46 +320,75 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 
+	/**
+	 * Two shapes are equal if they have the same number of points, and
+	 * every point of this shape is at the position (rounded down to
+	 * integers) of a point of the other shape.
+	 */
 	public boolean equals(Object object){
 		DiagramShape shape = null;
 		if(!(object instanceof DiagramShape)) { return false; }
 		else shape = (DiagramShape) object;
 		if(getPoints().size() != shape.getPoints().size()) return false;
 		
-		if(DEBUG) System.out.println("comparing shapes:");
-		
-		if(DEBUG) System.out.println("points1: ");
-		HashMap points1 = new HashMap();
-		Iterator it = getPointsIterator(); 
-		while(it.hasNext()){
-			ShapePoint point = (ShapePoint) it.next(); 
-			points1.put( ""+((int) point.x)+","+((int) point.y), null);
-			if(DEBUG) System.out.println(((int) point.x)+", "+((int) point.y));
-		}
+		long[] positions1 = getPointPositions();
+		long[] positions2 = shape.getPointPositions();
 		
-		if(DEBUG) System.out.println("points2: ");
-		HashMap points2 = new HashMap();
-		it = shape.getPointsIterator(); 
-		while(it.hasNext()){
-			ShapePoint point = (ShapePoint) it.next(); 
-			points2.put( ""+((int) point.x)+","+((int) point.y), null);
-			if(DEBUG) System.out.println(((int) point.x)+", "+((int) point.y));
-		}
-		
-		it = points1.keySet().iterator();
-		while(it.hasNext()){
-			String key = (String) it.next();
-			if(!points2.containsKey(key)) {
+		//both are sorted, so check that positions1 is a subset of positions2
+		int j = 0;
+		for(int i = 0; i < positions1.length; i++){
+			while(j < positions2.length && positions2[j] < positions1[i]) j++;
+			if(j == positions2.length || positions2[j] != positions1[i]) {
 				if (DEBUG)
 					System.out.println("\tare not equal");
 				return false;
-			} 
+			}
 		}
 		if (DEBUG)
 			System.out.println("\tare equal");
 		return true;
 	}
 
+	/**
+	 * @return the distinct positions of the points, rounded down to
+	 * integers and packed as (x << 32 | y), in ascending order
+	 */
+	private long[] getPointPositions(){
+		long[] positions = new long[points.size()];
+		for(int i = 0; i < positions.length; i++){
+			ShapePoint point = points.get(i);
+			positions[i] = ((long) (int) point.x << 32) | ((int) point.y & 0xFFFFFFFFL);
+		}
+		Arrays.sort(positions);
+		int count = 0;
+		for(int i = 0; i < positions.length; i++){
+			if(count == 0 || positions[i] != positions[count - 1]) positions[count++] = positions[i];
+		}
+		return count == positions.length ? positions : Arrays.copyOf(positions, count);
+	}
+
+	/**
+	 * @return true if two or more points are at the same position
+	 * (as compared by equals())
+	 */
+	boolean hasPointsAtSamePosition(){
+		return getPointPositions().length != points.size();
+	}
+
+	/**
+	 * A hash of the number of points and their distinct positions.
+	 * Shapes that are equal have the same fingerprint, unless the
+	 * shape that equals() is called on has points at the same position.
+	 */
+	long getFingerprint(){
+		long result = points.size() * 0x9E3779B97F4A7C15L;
+		for(long position : getPointPositions()){
+			result = (result ^ position) * 0xBF58476D1CE4E5B9L;
+			result ^= result >>> 31;
+		}
+		return result;
+	}
+
 	public GeneralPath makeIntoPath() {
 		int size = getPoints().size();
 		
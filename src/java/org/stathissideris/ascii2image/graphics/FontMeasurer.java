@@ -20,18 +20,20 @@
 package org.stathissideris.ascii2image.graphics;
 
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics2D;
-import java.awt.GraphicsEnvironment;
-import java.awt.Rectangle;
 import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.Locale;
-
-import javax.swing.JOptionPane;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Measures text in the font of the diagrams.
+ * 
+ * All measurements are made against an immutable FontRenderContext
+ * and the fonts found for a height or width are kept in concurrent
+ * maps, so one FontMeasurer can be used by many threads at once.
  * 
  * @author Efstathios Sideris
  */
@@ -42,17 +44,33 @@ public class FontMeasurer {
 	
 	private static final boolean DEBUG = false;
 	
+	/**
+	 * FontMetrics.getAscent() rounds the ascent of the font up
+	 * from this fraction of a pixel
+	 */
+	private static final float ASCENT_ROUNDING = 0.95f;
+	
 	private static final FontMeasurer instance = new FontMeasurer();
-	FontRenderContext fakeRenderContext;
-	Graphics2D fakeGraphics;
+	
+	/** The context of an image's graphics, as the text is drawn on images */
+	final FontRenderContext fakeRenderContext;
+	
+	/** How many fitted widths to remember before starting again */
+	private static final int MAX_REMEMBERED_WIDTHS = 4096;
+	
+	private final ConcurrentHashMap<Integer, Font> fontsForHeight =
+		new ConcurrentHashMap<Integer, Font>();
+	private final ConcurrentHashMap<String, Font> fontsForWidth =
+		new ConcurrentHashMap<String, Font>();
 	
 	{   
 		BufferedImage image = new BufferedImage(1,1, BufferedImage.TYPE_INT_RGB);
-		fakeGraphics = image.createGraphics();
+		Graphics2D fakeGraphics = image.createGraphics();
 		
 		if(DEBUG) System.out.println("Locale: "+Locale.getDefault());
 		
 		fakeRenderContext = fakeGraphics.getFontRenderContext();
+		fakeGraphics.dispose();
 	}		 
 	
 
@@ -82,17 +100,30 @@ public class FontMeasurer {
 		return font.getStringBounds(str, fakeRenderContext);
 	}
 	
+	/**
+	 * @return the font whose ascent best fits <code>pixelHeight</code>,
+	 * or null if even the smallest size is too tall. The result for
+	 * each height is remembered.
+	 */
 	public Font getFontFor(int pixelHeight){
-		BufferedImage image = new BufferedImage(1,1, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g2 = image.createGraphics();
-		return getFontFor(pixelHeight, fakeRenderContext);
+		Integer key = Integer.valueOf(pixelHeight);
+		Font result = fontsForHeight.get(key);
+		if(result == null){
+			result = getFontFor(pixelHeight, fakeRenderContext);
+			if(result != null) fontsForHeight.put(key, result);
+		}
+		return result;
 	}
 
+	/**
+	 * @return the ascent of the font in whole pixels, the same as
+	 * FontMetrics.getAscent() on an image's graphics
+	 */
 	public int getAscent(Font font){
-		fakeGraphics.setFont(font);
-		FontMetrics metrics = fakeGraphics.getFontMetrics();
-		if(DEBUG) System.out.println("Ascent: "+metrics.getAscent());
-		return metrics.getAscent();
+		LineMetrics metrics = font.getLineMetrics("", fakeRenderContext);
+		int ascent = (int) (ASCENT_ROUNDING + metrics.getAscent());
+		if(DEBUG) System.out.println("Ascent: "+ascent);
+		return ascent;
 	}
 
 	public int getZHeight(Font font){
@@ -101,78 +132,108 @@ public class FontMeasurer {
 		return height;
 	}
 
+	/**
+	 * @return the biggest font (in whole points) in which
+	 * <code>string</code> fits in <code>maxWidth</code>, or null if
+	 * it does not fit at any size. The result for each string and
+	 * width is remembered.
+	 */
 	public Font getFontFor(int maxWidth, String string){
-		float size = 12;
-		Font currentFont = new Font(fontFamilyName, Font.BOLD, (int) size);
-		//ascent is the distance between the baseline and the tallest character
-		int width = getWidthFor(string, currentFont);
-
-		int direction; //direction of size change (towards smaller or bigger)
-		if(width > maxWidth){
-			currentFont = currentFont.deriveFont(size - 1);
-			size--;
-			direction = -1; 
-		} else {
-			currentFont = currentFont.deriveFont(size + 1);
-			size++;
-			direction = 1;
+		String key = maxWidth + " " + string;
+		Font result = fontsForWidth.get(key);
+		if(result == null){
+			result = findFontFor(maxWidth, string);
+			if(result == null) return null;
+			if(fontsForWidth.size() >= MAX_REMEMBERED_WIDTHS) fontsForWidth.clear();
+			fontsForWidth.put(key, result);
 		}
-		while(size > 0){
-			currentFont = currentFont.deriveFont(size);
-			//rectangle = currentFont.getStringBounds(testString, frc);
-			width = getWidthFor(string, currentFont);
-			if(direction == 1){
-				if(width > maxWidth){
-					size = size - 1;
-					return currentFont.deriveFont(size);
+		return result;
+	}
+
+	/**
+	 * Starting from 12pt, finds the first size (going up or down a
+	 * point at a time) at which the width of the string crosses
+	 * maxWidth. The width grows with the size, so the sizes are
+	 * searched by bisection instead of one by one.
+	 */
+	private Font findFontFor(final int maxWidth, final String string){
+		final Font baseFont = new Font(fontFamilyName, Font.BOLD, 12);
+		if(getWidthFor(string, baseFont) > maxWidth){
+			//the first of 11, 10, ..., 1 at which the string fits
+			int i = findFirst(new SizeTest() {
+				public boolean test(int i){
+					return getWidthFor(string, baseFont.deriveFont(11f - i)) < maxWidth;
 				}
-				else size = size + 1;
-			} else {
-				if(width < maxWidth)
-					return currentFont;
-				else size = size - 1;
-			}
+			}, 0, 10);
+			return i > 10 ? null : baseFont.deriveFont(11f - i);
 		}
-		return null;
+		//the size before the first of 13, 14, ... at which it does not fit
+		int i = findFirst(new SizeTest() {
+			public boolean test(int i){
+				return getWidthFor(string, baseFont.deriveFont(13f + i)) > maxWidth;
+			}
+		}, 0, -1);
+		return baseFont.deriveFont(12f + i);
 	}
 
-
-
 	public Font getFontFor(int pixelHeight, FontRenderContext frc){
-		float size = 12;
-		Font currentFont = new Font(fontFamilyName, Font.BOLD, (int) size);
-//		Font currentFont = new Font("Times", Font.BOLD, (int) size);
-		if(DEBUG) System.out.println(currentFont.getFontName());
+		final Font baseFont = new Font(fontFamilyName, Font.BOLD, 12);
+//		Font baseFont = new Font("Times", Font.BOLD, 12);
+		if(DEBUG) System.out.println(baseFont.getFontName());
 		//ascent is the distance between the baseline and the tallest character
-		int ascent = getAscent(currentFont);
-
-		int direction; //direction of size change (towards smaller or bigger)
-		if(ascent > pixelHeight){
-			currentFont = currentFont.deriveFont(size - 1);
-			size--;
-			direction = -1; 
-		} else {
-			currentFont = currentFont.deriveFont(size + 1);
-			size++;
-			direction = 1;
-		}
-		while(size > 0){
-			currentFont = currentFont.deriveFont(size);
-			//rectangle = currentFont.getStringBounds(testString, frc);
-			ascent = getAscent(currentFont);
-			if(direction == 1){
-				if(ascent > pixelHeight){
-					size = size - 0.5f;
-					return currentFont.deriveFont(size);
+		final int height = pixelHeight;
+		if(getAscent(baseFont) > pixelHeight){
+			//the first of 11, 10.5, ..., 0.5 with a shorter ascent
+			int i = findFirst(new SizeTest() {
+				public boolean test(int i){
+					return getAscent(baseFont.deriveFont(11f - i * 0.5f)) < height;
 				}
-				else size = size + 0.5f;
-			} else {
-				if(ascent < pixelHeight)
-					return currentFont;
-				else size = size - 0.5f;
+			}, 0, 21);
+			return i > 21 ? null : baseFont.deriveFont(11f - i * 0.5f);
+		}
+		//the size before the first of 13, 13.5, ... with a taller ascent
+		int i = findFirst(new SizeTest() {
+			public boolean test(int i){
+				return getAscent(baseFont.deriveFont(13f + i * 0.5f)) > height;
 			}
+		}, 0, -1);
+		return baseFont.deriveFont(12.5f + i * 0.5f);
+	}
+
+	/**
+	 * A test on the i-th size of a sequence of font sizes, which once
+	 * true stays true for the rest of the sequence
+	 */
+	private interface SizeTest {
+		boolean test(int i);
+	}
+
+	/**
+	 * @return the first i between <code>from</code> and <code>to</code>
+	 * for which <code>sizeTest</code> is true, or <code>to + 1</code> if
+	 * there is none. If <code>to</code> is -1 there is no upper bound,
+	 * and the search goes up until the test is true.
+	 */
+	private static int findFirst(SizeTest sizeTest, int from, int to){
+		if(to == -1){
+			//double the step until the test is true
+			int step = 1;
+			to = from;
+			while(!sizeTest.test(to)){
+				from = to + 1;
+				to += step;
+				step *= 2;
+			}
+		} else if(!sizeTest.test(to)){
+			return to + 1;
+		}
+		//the test is true at to
+		while(from < to){
+			int middle = (from + to) >>> 1;
+			if(sizeTest.test(middle)) to = middle;
+			else from = middle + 1;
 		}
-		return null;
+		return to;
 	}
 	
 	public static FontMeasurer instance(){
@@ -0,0 +1,507 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * A Diagram and its image that are kept up to date with a grid that
+ * is edited a little at a time, as in the live preview of an editor.
+ *
+ * The grid is split into bands at its blank rows (as with the
+ * processInBands option), and no shape or text can cross a blank row.
+ * On each update, the bands whose rows have not changed are kept, and
+ * only the new bands are processed. The pixel rows of the bands that
+ * were kept are copied from the previous image (moved up or down if
+ * rows were added or removed above them) and only the rest of the
+ * image is rendered again.
+ *
+ * A band where only text changed, away from the lines and the other
+ * cells that make up its shapes, keeps its shapes. Only the groups of
+ * text next to the changed cells are made again, and only the rows of
+ * pixels of their old and new text are rendered again, with the
+ * shapes and text that reach them. Typing in the boxes of a large
+ * diagram does not process the whole diagram then, even if it has no
+ * blank rows. Any other change processes the whole band again.
+ *
+ * The diagram is the same as processing the whole grid in bands, and
+ * the image is the same as rendering it with BitmapRenderer, except
+ * that the antialiasing of the parts that were rendered on their own
+ * can be off by one or two shades.
+ *
+ * Not thread safe.
+ *
+ * @author Efstathios Sideris
+ */
+public class IncrementalDiagram {
+
+	private static final boolean DEBUG = false;
+
+	private final ConversionOptions options;
+	private final int cellWidth;
+	private final int cellHeight;
+
+	/**
+	 * Rows of pixels closer than this to a row that is rendered
+	 * again, or to the top and bottom of the image, can depend on it
+	 * (through shadows, the blur and shapes that reach out of their cells)
+	 */
+	private final int pad;
+
+	/**
+	 * Whether a cell is text or part of a shape depends on the cells
+	 * at most this many rows away (through arrowheads and the lines
+	 * they are on)
+	 */
+	private static final int TEXT_CONTEXT = 3;
+
+	private int gridWidth = -1;
+	private ArrayList<Band> bands = new ArrayList<Band>();
+	private boolean outlined = false;
+
+	private Diagram diagram;
+	private BufferedImage image;
+
+	public IncrementalDiagram(ConversionOptions options){
+		this.options = options;
+		this.cellWidth = options.renderingOptions.getCellWidth();
+		this.cellHeight = options.renderingOptions.getCellHeight();
+		this.pad = cellHeight;
+	}
+
+	/**
+	 * Brings the diagram and the image up to date with <code>grid</code>.
+	 *
+	 * @return the part of the image that changed, or null if
+	 * nothing changed
+	 */
+	public Rectangle update(TextGrid grid){
+		int width = grid.getWidth() * cellWidth;
+		int height = grid.getHeight() * cellHeight;
+
+		boolean reprocess = grid.getWidth() != gridWidth;
+
+		HashMap<String, ArrayList<Band>> oldBands = new HashMap<String, ArrayList<Band>>();
+		if(!reprocess) {
+			for(Band band : bands) {
+				ArrayList<Band> sameText = oldBands.get(band.text);
+				if(sameText == null) {
+					sameText = new ArrayList<Band>();
+					oldBands.put(band.text, sameText);
+				}
+				sameText.add(band);
+			}
+		}
+
+		ArrayList<int[]> rowsOfBands = Diagram.findBands(grid);
+		ArrayList<String> texts = new ArrayList<String>();
+		ArrayList<Band> newBands = new ArrayList<Band>();
+		for(int[] rows : rowsOfBands) {
+			String text = getText(grid, rows[0], rows[1]);
+			ArrayList<Band> sameText = oldBands.get(text);
+			Band band = null;
+			if(sameText != null && !sameText.isEmpty()) {
+				band = sameText.remove(0);
+				band.moveTo(rows[0]);
+			}
+			texts.add(text);
+			newBands.add(band);
+		}
+
+		//the bands that changed are edited where they were, if only
+		//their text changed, or processed again
+		HashMap<Integer, Band> leftOver = new HashMap<Integer, Band>();
+		for(ArrayList<Band> sameText : oldBands.values()) {
+			for(Band band : sameText) leftOver.put(band.firstRow, band);
+		}
+		int processed = 0, edited = 0;
+		for(int i = 0; i < newBands.size(); i++) {
+			if(newBands.get(i) != null) continue;
+			int[] rows = rowsOfBands.get(i);
+			Band band = leftOver.remove(rows[0]);
+			if(band != null && band.lastRow == rows[1] && band.editText(grid, texts.get(i))) {
+				edited++;
+			} else {
+				band = new Band(grid, texts.get(i), rows[0], rows[1]);
+				processed++;
+			}
+			newBands.set(i, band);
+		}
+
+		//one custom shape anywhere outlines all the text
+		boolean outline = false;
+		for(Band band : newBands) {
+			if(band.diagram.hasCustomShapes()) {
+				outline = true;
+				break;
+			}
+		}
+		if(outlined && !outline) {
+			//the kept bands have their text outlined, start again
+			gridWidth = -1;
+			bands.clear();
+			return update(grid);
+		}
+
+		Diagram newDiagram = new Diagram(width, height, cellWidth, cellHeight);
+		for(Band band : newBands) newDiagram.addBand(band.diagram);
+		newDiagram.outlineTextIfCustomShapes();
+
+		if(DEBUG)
+			System.out.println("Processed "+processed+" and edited the text of "+edited+" of "+newBands.size()+" bands");
+
+		Rectangle result;
+		if(reprocess || image == null || outline != outlined) {
+			image = newImage(width, height);
+			image = (BufferedImage) new BitmapRenderer().render(newDiagram, image, options.renderingOptions);
+			result = new Rectangle(0, 0, width, height);
+		} else {
+			result = updateImage(newBands, width, height);
+		}
+
+		gridWidth = grid.getWidth();
+		bands = newBands;
+		outlined = outline;
+		diagram = newDiagram;
+		for(Band band : bands) band.rendered();
+		return result;
+	}
+
+	/**
+	 * Copies the pixels of the bands that were kept from the current
+	 * image and renders the rest of the rows.
+	 */
+	private Rectangle updateImage(ArrayList<Band> newBands, int width, int height){
+		int oldHeight = image.getHeight();
+
+		//runs of kept bands that moved together, with the rows between them
+		ArrayList<int[]> copies = new ArrayList<int[]>();
+		int i = 0;
+		while(i < newBands.size()) {
+			Band first = newBands.get(i);
+			if(!first.isKept()) {
+				i++;
+				continue;
+			}
+			int delta = first.getDelta();
+			Band last = first;
+			while(i + 1 < newBands.size()
+					&& newBands.get(i + 1).isKept()
+					&& newBands.get(i + 1).getDelta() == delta)
+				last = newBands.get(++i);
+			i++;
+
+			//some shapes reach into the rows around their band
+			int y0 = first.firstRow * cellHeight + pad;
+			int y1 = last.lastRow * cellHeight - pad;
+			//the blur leaves the rows at the edges of the image as they are
+			if(delta != 0) y0 = Math.max(y0, Math.max(pad, pad + delta));
+			if(height - oldHeight != delta) y1 = Math.min(y1, Math.min(height - pad, oldHeight - pad + delta));
+			//the blank rows above the first band and below the last band
+			//only depend on that band, if it was also first or last before
+			if(delta == 0 && first == newBands.get(0) && first == bands.get(0))
+				y0 = 0;
+			if(height == oldHeight && delta == 0
+					&& last == newBands.get(newBands.size() - 1)
+					&& last == bands.get(bands.size() - 1))
+				y1 = height;
+			if(y0 < y1) copies.add(new int[] {y0, y1, delta});
+		}
+
+		//read all the pixels before writing any, as they can overlap
+		BufferedImage newImage = height == oldHeight ? image : newImage(width, height);
+		WritableRaster source = image.getRaster();
+		WritableRaster target = newImage.getRaster();
+		ArrayList<Object> pixels = new ArrayList<Object>();
+		for(int[] copy : copies) {
+			if(newImage == image && copy[2] == 0) pixels.add(null);
+			else pixels.add(source.getDataElements(0, copy[0] - copy[2], width, copy[1] - copy[0], null));
+		}
+		int changedTop = height, changedBottom = 0;
+		for(int j = 0; j < copies.size(); j++) {
+			int[] copy = copies.get(j);
+			if(pixels.get(j) == null) continue;
+			target.setDataElements(0, copy[0], width, copy[1] - copy[0], pixels.get(j));
+			changedTop = Math.min(changedTop, copy[0]);
+			changedBottom = Math.max(changedBottom, copy[1]);
+		}
+		image = newImage;
+
+		//render the rows between the copies
+		int y = 0;
+		for(int j = 0; j <= copies.size(); j++) {
+			int end = j < copies.size() ? copies.get(j)[0] : height;
+			if(y < end) {
+				renderRows(newBands, width, height, y, end);
+				changedTop = Math.min(changedTop, y);
+				changedBottom = Math.max(changedBottom, end);
+			}
+			if(j < copies.size()) y = copies.get(j)[1];
+		}
+
+		//the text that was edited in the bands that were kept
+		for(Band band : newBands) {
+			if(!band.isKept() || band.dirtyTop >= band.dirtyBottom) continue;
+			int y0 = Math.max(0, band.dirtyTop);
+			int y1 = Math.min(height, band.dirtyBottom);
+			if(y0 >= y1) continue;
+			renderRows(newBands, width, height, y0, y1);
+			changedTop = Math.min(changedTop, y0);
+			changedBottom = Math.max(changedBottom, y1);
+		}
+
+		if(changedTop >= changedBottom) return null;
+		return new Rectangle(0, changedTop, width, changedBottom - changedTop);
+	}
+
+	/**
+	 * Renders the rows <code>y0</code> to <code>y1</code> (exclusive)
+	 * of the image, with the bands that are close enough to affect them.
+	 */
+	private void renderRows(ArrayList<Band> newBands, int width, int height, int y0, int y1){
+		int top = Math.max(0, y0 - pad);
+		int bottom = Math.min(height, y1 + pad);
+
+		//only what is close enough, so that editing a band with many
+		//shapes does not draw all of them
+		Diagram part = new Diagram(width, height, cellWidth, cellHeight);
+		for(Band band : newBands) {
+			if((band.lastRow + 1) * cellHeight > top
+					&& (band.firstRow - 1) * cellHeight < bottom)
+				part.addBand(band.diagram, top - pad, bottom + pad);
+		}
+
+		BufferedImage partImage = newImage(width, bottom - top);
+		partImage = (BufferedImage) new BitmapRenderer().render(part, partImage, options.renderingOptions, top);
+		Object pixels = partImage.getRaster().getDataElements(0, y0 - top, width, y1 - y0, null);
+		image.getRaster().setDataElements(0, y0, width, y1 - y0, pixels);
+
+		if(DEBUG)
+			System.out.println("Rendered rows "+y0+" to "+(y1 - 1));
+	}
+
+	private BufferedImage newImage(int width, int height){
+		return new BufferedImage(width, height,
+			options.renderingOptions.needsTransparency() ?
+				BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+	}
+
+	private static String getText(TextGrid grid, int firstRow, int lastRow){
+		StringBuilder text = new StringBuilder();
+		for(int y = firstRow; y < lastRow; y++) text.append(grid.getRow(y)).append('\n');
+		return text.toString();
+	}
+
+	/**
+	 * @return the diagram of the grid passed to the last update()
+	 */
+	public Diagram getDiagram(){
+		return diagram;
+	}
+
+	/**
+	 * @return the image of the grid passed to the last update()
+	 */
+	public BufferedImage getImage(){
+		return image;
+	}
+
+	/**
+	 * A run of rows that are not blank, and its diagram
+	 */
+	private class Band {
+		String text;
+		final Diagram diagram;
+		int firstRow;
+		int lastRow;
+
+		/**
+		 * The rows of the grid that the diagram was made from, with
+		 * the blank rows around them, from row <code>top</code>
+		 */
+		TextGrid grid;
+		int top;
+		/** Only the text of grid, made when it is first edited, or null */
+		TextGrid textGrid;
+		/** The shapes of the diagram where they are now, or null */
+		ShapeIndex shapeIndex;
+
+		/** The first row when the band was last rendered, or -1 if never */
+		int renderedRow = -1;
+		/** The rows of pixels of the text edited since it was last rendered */
+		int dirtyTop = Integer.MAX_VALUE;
+		int dirtyBottom = Integer.MIN_VALUE;
+
+		Band(TextGrid grid, String text, int firstRow, int lastRow){
+			this.text = text;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+			this.grid = Diagram.getBandGrid(grid, firstRow, lastRow);
+			this.top = Math.max(0, firstRow - 1);
+			this.diagram = Diagram.makeBand(this.grid, top, options);
+		}
+
+		void moveTo(int row){
+			diagram.moveBy(0, (row - firstRow) * cellHeight);
+			lastRow += row - firstRow;
+			top += row - firstRow;
+			firstRow = row;
+			shapeIndex = null;
+		}
+
+		/**
+		 * Brings the band up to date with its rows of
+		 * <code>newGrid</code>, if only text changed in them, away
+		 * from the cells of the shapes.
+		 *
+		 * @return false if anything else changed, and the band has to
+		 * be processed again
+		 */
+		boolean editText(TextGrid newGrid, String newText){
+			int width = grid.getWidth();
+			int height = grid.getHeight();
+			if(newGrid.getWidth() != width || top + height > newGrid.getHeight()) return false;
+			TextGrid edited = newGrid.getSubGrid(0, top, width, height);
+
+			CellSet changed = new CellSet();
+			int minY = height, maxY = -1;
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					if(edited.get(x, y) == grid.get(x, y)) continue;
+					changed.add(x, y);
+					minY = Math.min(minY, y);
+					maxY = Math.max(maxY, y);
+				}
+			}
+			if(changed.isEmpty()) return false;
+
+			//what is text, and how the cells are classified, can only
+			//change close to the changed cells, so only the rows around
+			//them are looked at
+			if(textGrid == null) textGrid = Diagram.makeTextGrid(grid);
+			int y0 = Math.max(0, minY - TEXT_CONTEXT);
+			int y1 = Math.min(height, maxY + 1 + TEXT_CONTEXT);
+			int windowTop = Math.max(0, y0 - TEXT_CONTEXT);
+			int windowHeight = Math.min(height, y1 + TEXT_CONTEXT) - windowTop;
+			TextGrid oldWindow = grid.getSubGrid(0, windowTop, width, windowHeight);
+			TextGrid newWindow = edited.getSubGrid(0, windowTop, width, windowHeight);
+			TextGrid oldShapes = Diagram.makeShapeGrid(oldWindow);
+			TextGrid newShapes = Diagram.makeShapeGrid(newWindow);
+			TextGrid editedText = Diagram.makeTextGrid(newWindow);
+
+			//the shapes are made from the same cells if none of them
+			//changed, and they are classified the same way: the
+			//changed cells can only be text, or blank
+			for(int y = y0; y < y1; y++) {
+				int wy = y - windowTop;
+				for(int x = 0; x < width; x++) {
+					boolean wasShape = grid.get(x, y) != ' ' && textGrid.get(x, y) == ' ';
+					boolean isShape = edited.get(x, y) != ' ' && editedText.get(x, wy) == ' ';
+					if(wasShape != isShape) return false;
+					if(oldShapes.getCellType(x, wy) != newShapes.getCellType(x, wy)) return false;
+					if(changed.contains(x, y)) {
+						if(isShape
+								|| oldShapes.get(x, wy) != oldWindow.get(x, wy)
+								|| newShapes.get(x, wy) != newWindow.get(x, wy)) return false;
+					} else if(oldShapes.get(x, wy) != newShapes.get(x, wy)) {
+						return false;
+					}
+				}
+			}
+
+			//a blank between two characters joins them into a group,
+			//so a change reaches the groups two cells across
+			CellSet near = new CellSet();
+			for(TextGrid.Cell cell : changed) {
+				for(int dy = -1; dy <= 1; dy++) {
+					for(int dx = -2; dx <= 2; dx++) {
+						int x = cell.x + dx, y = cell.y + dy;
+						if(x >= 0 && x < width && y >= 0 && y < height) near.add(x, y);
+					}
+				}
+			}
+
+			for(int y = y0; y < y1; y++) textGrid.setRow(y, editedText.getRow(y - windowTop));
+			grid = edited;
+			text = newText;
+
+			//keep the groups of text that are not near the changes
+			HashMap<CellSet, Diagram.TextGroup> kept = new HashMap<CellSet, Diagram.TextGroup>();
+			for(Diagram.TextGroup group : diagram.getTextGroups()) {
+				if(group.cells.hasCommonCells(near)) addDirty(group.text);
+				else kept.put(group.cells, group);
+			}
+			Font font = FontMeasurer.instance().getFontFor(cellHeight);
+			ArrayList<Diagram.TextGroup> groups = new ArrayList<Diagram.TextGroup>();
+			for(CellSet cells : Diagram.findTextGroups(textGrid)) {
+				Diagram.TextGroup group = cells.hasCommonCells(near) ? null : kept.get(cells);
+				if(group == null) {
+					ArrayList<DiagramText> text = diagram.makeText(textGrid, cells, font);
+					if(shapeIndex == null) shapeIndex = new ShapeIndex(diagram.getShapes());
+					for(DiagramText textObject : text) {
+						textObject.setYPos(textObject.getYPos() + top * cellHeight);
+						Diagram.correctTextColor(shapeIndex, textObject);
+					}
+					group = new Diagram.TextGroup(cells, text);
+					addDirty(group.text);
+				}
+				groups.add(group);
+			}
+			diagram.setTextGroups(groups);
+			return true;
+		}
+
+		/** Adds the rows of pixels that <code>text</code> can reach to the ones to render again */
+		private void addDirty(ArrayList<DiagramText> text){
+			for(DiagramText textObject : text) {
+				Rectangle2D bounds = textObject.getBounds();
+				//the outline, and the glyphs that reach out of their bounds
+				int grow = 2 + textObject.getFont().getSize();
+				dirtyTop = Math.min(dirtyTop, (int) Math.floor(bounds.getMinY()) - grow);
+				dirtyBottom = Math.max(dirtyBottom, (int) Math.ceil(bounds.getMaxY()) + grow);
+			}
+		}
+
+		boolean isKept(){
+			return renderedRow != -1;
+		}
+
+		/** @return how many pixels the band moved since it was rendered */
+		int getDelta(){
+			return (firstRow - renderedRow) * cellHeight;
+		}
+
+		void rendered(){
+			renderedRow = firstRow;
+			dirtyTop = Integer.MAX_VALUE;
+			dirtyBottom = Integer.MIN_VALUE;
+		}
+	}
+}
@@ -23,8 +23,14 @@ import java.awt.Color;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.batik.bridge.BridgeContext;
 import org.apache.batik.bridge.GVTBuilder;
@@ -38,10 +44,54 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.svg.SVGDocument;
 import org.w3c.dom.svg.SVGElement;
 
+/**
+ * Renders SVG files to images.
+ *
+ * The shapes of a diagram often use the same SVG file many times at the
+ * same size, so the files that are rendered from a URI are kept at two
+ * levels: the parsed and built tree of each file (for each fill colour
+ * replaced in it), and the images rendered from it (for each size). Both
+ * drop the least recently used entries when they get too big. The
+ * entries of a local file are keyed on its size and modification time
+ * too, so a file that is edited is rendered again.
+ *
+ * The images that are returned from the cache are shared, and should not
+ * be changed. Thread safe.
+ */
 public class OffScreenSVGRenderer {
 		
 	private static final boolean DEBUG = false;
 	
+	/** How many built trees to keep */
+	private static final int MAX_TREES = 64;
+	/** How many bytes of rendered images to keep by default */
+	public static final long DEFAULT_MAX_IMAGE_BYTES = 16L * 1024 * 1024;
+	
+	private final long maxImageBytes;
+	
+	private final LinkedHashMap<String, SVGTree> trees =
+		new LinkedHashMap<String, SVGTree>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, SVGTree> eldest) {
+				return size() > MAX_TREES;
+			}
+		};
+	
+	private final LinkedHashMap<String, BufferedImage> images =
+		new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+	private long imageBytes = 0;
+	
+	public OffScreenSVGRenderer(){
+		this(DEFAULT_MAX_IMAGE_BYTES);
+	}
+	
+	/**
+	 * @param maxImageBytes how many bytes of rendered images to keep,
+	 * counting 4 bytes a pixel
+	 */
+	public OffScreenSVGRenderer(long maxImageBytes){
+		this.maxImageBytes = maxImageBytes;
+	}
+	
 	public BufferedImage renderXMLToImage(String xmlContent, int width, int height) throws IOException {
 		return renderXMLToImage(xmlContent, width, height, false, null, null);
 	}
@@ -63,12 +113,33 @@ public class OffScreenSVGRenderer {
 		return renderToImage(uri, width, height, false, null, null);
 	}
 	
+	/**
+	 * Renders the SVG file at <code>uri</code>, or returns the image of
+	 * an earlier call with the same arguments, if the file has not been
+	 * modified since. The returned image should not be changed.
+	 */
 	public BufferedImage renderToImage(String uri, int width, int height, boolean stretch, String idRegex, Color replacementColor) throws IOException {
-		SAXSVGDocumentFactory df = new SAXSVGDocumentFactory("org.apache.xerces.parsers.SAXParser");
-		SVGDocument document = df.createSVGDocument(uri);
+		String treeKey = uri + getVersion(uri);
 		if(idRegex != null && replacementColor != null)
-			replaceFill(document, idRegex, replacementColor);
-		return renderToImage(document, width, height, stretch);
+			treeKey += " " + idRegex + " " + Integer.toHexString(replacementColor.getRGB());
+		String imageKey = treeKey + " " + width + "x" + height + (stretch ? " stretched" : "");
+		
+		BufferedImage result = getImage(imageKey);
+		if(result != null) return result;
+		
+		SVGTree tree = getTree(treeKey);
+		if(tree == null) {
+			SAXSVGDocumentFactory df = new SAXSVGDocumentFactory("org.apache.xerces.parsers.SAXParser");
+			SVGDocument document = df.createSVGDocument(uri);
+			if(idRegex != null && replacementColor != null)
+				replaceFill(document, idRegex, replacementColor);
+			tree = new SVGTree(document);
+			putTree(treeKey, tree);
+		}
+		
+		result = tree.render(width, height, stretch);
+		putImage(imageKey, result);
+		return result;
 	}
 	
 	public BufferedImage renderToImage(SVGDocument document, int width, int height){
@@ -96,43 +167,121 @@ public class OffScreenSVGRenderer {
 	}
 	
 	public BufferedImage renderToImage(SVGDocument document, int width, int height, boolean stretch){
-		
-		ImageRendererFactory rendererFactory;
-		rendererFactory = new ConcreteImageRendererFactory();
-		ImageRenderer renderer = rendererFactory.createStaticImageRenderer();
-
-		GVTBuilder builder = new GVTBuilder();
-		BridgeContext ctx = new BridgeContext(new UserAgentAdapter());
-		ctx.setDynamicState(BridgeContext.STATIC);
-		GraphicsNode rootNode = builder.build(ctx, document);
-
-		renderer.setTree(rootNode);
-		
-		float docWidth  = (float) ctx.getDocumentSize().getWidth();
-		float docHeight = (float) ctx.getDocumentSize().getHeight();
-		
-		float xscale = width/docWidth;
-		float yscale = height/docHeight;
-		if(!stretch){
-			float scale = Math.min(xscale, yscale);
-			xscale = scale;
-			yscale = scale;
+		return new SVGTree(document).render(width, height, stretch);
+	}
+	
+	/**
+	 * Forgets all the files that were rendered, for when they
+	 * have changed
+	 */
+	public synchronized void clearCache(){
+		trees.clear();
+		images.clear();
+		imageBytes = 0;
+	}
+	
+	/**
+	 * @return the size and modification time of the file at
+	 * <code>uri</code> if it is a file: URI, so that the trees and
+	 * images of a file that changed are not used any more, or an
+	 * empty string
+	 */
+	private static String getVersion(String uri){
+		if(!uri.startsWith("file:")) return "";
+		try {
+			File file = new File(new URI(uri));
+			return " " + file.length() + " " + file.lastModified();
+		} catch (URISyntaxException e) {
+			return "";
+		} catch (IllegalArgumentException e) {
+			//a file: URI with a host or a query
+			return "";
 		}
+	}
+	
+	/**
+	 * @return how many bytes the images that are kept take up
+	 */
+	public synchronized long getImageBytes(){
+		return imageBytes;
+	}
+	
+	private synchronized SVGTree getTree(String key){
+		return trees.get(key);
+	}
+	
+	private synchronized void putTree(String key, SVGTree tree){
+		trees.put(key, tree);
+	}
+	
+	private synchronized BufferedImage getImage(String key){
+		return images.get(key);
+	}
+	
+	private synchronized void putImage(String key, BufferedImage image){
+		long bytes = 4L * image.getWidth() * image.getHeight();
+		if(bytes > maxImageBytes) return;
+		BufferedImage previous = images.put(key, image);
+		if(previous != null) imageBytes -= 4L * previous.getWidth() * previous.getHeight();
+		imageBytes += bytes;
 		
-		AffineTransform px  = AffineTransform.getScaleInstance(xscale, yscale);
+		Iterator<BufferedImage> it = images.values().iterator();
+		while(imageBytes > maxImageBytes && it.hasNext()){
+			BufferedImage eldest = it.next();
+			imageBytes -= 4L * eldest.getWidth() * eldest.getHeight();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * The graphics tree built from an SVG document, which can be
+	 * rendered at any size. Renders one image at a time, as batik's
+	 * trees are not meant to be painted by more than one thread.
+	 */
+	private static class SVGTree {
+		/** Keeps the tree's bridge context alive along with it */
+		private final BridgeContext ctx;
+		private final GraphicsNode rootNode;
+		private final float docWidth;
+		private final float docHeight;
 		
-		double tx = -0 + (width/xscale - docWidth)/2;
-		double ty = -0 + (height/yscale - docHeight)/2;
-		px.translate(tx, ty);
-		//cgn.setViewingTransform(px);
+		SVGTree(SVGDocument document){
+			GVTBuilder builder = new GVTBuilder();
+			ctx = new BridgeContext(new UserAgentAdapter());
+			ctx.setDynamicState(BridgeContext.STATIC);
+			rootNode = builder.build(ctx, document);
+			
+			docWidth  = (float) ctx.getDocumentSize().getWidth();
+			docHeight = (float) ctx.getDocumentSize().getHeight();
+		}
 		
-		renderer.updateOffScreen(width, height);
-		renderer.setTree(rootNode);
-		renderer.setTransform(px);
-		//renderer.clearOffScreen();
-		renderer.repaint(new Rectangle(0, 0, width, height));
-
-		return renderer.getOffScreen();
-
+		synchronized BufferedImage render(int width, int height, boolean stretch){
+			ImageRendererFactory rendererFactory;
+			rendererFactory = new ConcreteImageRendererFactory();
+			ImageRenderer renderer = rendererFactory.createStaticImageRenderer();
+			
+			float xscale = width/docWidth;
+			float yscale = height/docHeight;
+			if(!stretch){
+				float scale = Math.min(xscale, yscale);
+				xscale = scale;
+				yscale = scale;
+			}
+			
+			AffineTransform px  = AffineTransform.getScaleInstance(xscale, yscale);
+			
+			double tx = -0 + (width/xscale - docWidth)/2;
+			double ty = -0 + (height/yscale - docHeight)/2;
+			px.translate(tx, ty);
+			//cgn.setViewingTransform(px);
+			
+			renderer.updateOffScreen(width, height);
+			renderer.setTree(rootNode);
+			renderer.setTransform(px);
+			//renderer.clearOffScreen();
+			renderer.repaint(new Rectangle(0, 0, width, height));
+			
+			return renderer.getOffScreen();
+		}
 	}
 }
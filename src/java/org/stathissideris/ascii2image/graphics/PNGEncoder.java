@@ -0,0 +1,702 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG file a few rows at a time, so that the whole image
+ * never has to be in memory. The rows are filtered and deflated as
+ * they come, and the compressed data is written out in IDAT chunks
+ * as soon as there is enough of it to fill one.
+ *
+ * The image is written as 8-bit RGB, or RGBA if it has transparency,
+ * or with a palette of up to 256 colours if it is asked to and the
+ * image has few enough colours.
+ *
+ * With a pool, the rows are deflated in blocks on the pool, as pigz
+ * does: each block is deflated on its own, starting with the end of
+ * the block before it as its dictionary, and the blocks are joined
+ * into one zlib stream.
+ *
+ * Not thread safe.
+ *
+ * @author Efstathios Sideris
+ */
+public class PNGEncoder {
+
+	/** Each row as it is */
+	public static final int FILTER_NONE = 0;
+	/** Each byte minus the one of the pixel to its left */
+	public static final int FILTER_SUB = 1;
+	/** Each byte minus the one of the pixel above it */
+	public static final int FILTER_UP = 2;
+	/** Each byte minus the average of the left and above ones */
+	public static final int FILTER_AVERAGE = 3;
+	/** Each byte minus the left, above or above left one */
+	public static final int FILTER_PAETH = 4;
+	/**
+	 * For each row, the filter whose bytes add up to the least as
+	 * signed values, as recommended by the PNG specification
+	 */
+	public static final int FILTER_ADAPTIVE = 5;
+
+	private static final byte[] SIGNATURE = {
+		(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'
+	};
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int MAX_PALETTE_SIZE = 256;
+
+	/** How many bytes of filtered rows are deflated together on the pool */
+	private static final int BLOCK_SIZE = 128 * 1024;
+
+	/** How far back deflate can refer to */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final boolean alpha;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	/**
+	 * Diagrams are mostly flat colours, for which taking away the row
+	 * above compresses almost as well as the adaptive filter, in half
+	 * the time
+	 */
+	private int filter = FILTER_UP;
+	private boolean paletteIfPossible = false;
+	private ForkJoinPool pool = null;
+
+	private int bytesPerPixel;
+
+	/**
+	 * The colours of the palette while the image can still have one,
+	 * or null, and a hash table of their indices
+	 */
+	private int[] palette = null;
+	private int paletteSize;
+	private int[] paletteTable;
+	private int lastColor;
+	private int lastIndex = -1;
+
+	/**
+	 * Where the IDAT chunks go: the output, or a buffer if the image
+	 * has a palette, as the palette is only known at the end and has
+	 * to be written before them
+	 */
+	private OutputStream data;
+	private ByteArrayOutputStream buffered;
+	private final CRC32 crc = new CRC32();
+	private byte[] chunk;
+	private int chunkLength = 0;
+
+	/** Deflates the rows in the calling thread, or null if on the pool */
+	private Deflater deflater;
+
+	/** The blocks being deflated on the pool, in order */
+	private ArrayDeque<Future<byte[]>> blocks;
+	private byte[] block;
+	private int blockLength;
+	private byte[] dictionary;
+	private Adler32 adler;
+
+	/** The row being written, and the one before it, unfiltered */
+	private byte[] row;
+	private byte[] previousRow;
+	/** The filter type and the row filtered with it, for each filter */
+	private byte[][] filtered;
+	private int[] pixels;
+
+	private int rowsWritten = -1;
+
+	/**
+	 * @param alpha whether to keep the alpha of the pixels, or write
+	 * them as opaque
+	 */
+	public PNGEncoder(OutputStream out, int width, int height, boolean alpha){
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Cannot encode a "+width+"x"+height+" image");
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.alpha = alpha;
+	}
+
+	/**
+	 * @param level from 0 (no compression, the fastest) to 9 (the
+	 * smallest files), or -1 for the default of zlib
+	 */
+	public void setCompressionLevel(int level){
+		if(level < -1 || level > 9)
+			throw new IllegalArgumentException("Compression level "+level+" is not between -1 and 9");
+		checkNotStarted();
+		compressionLevel = level;
+	}
+
+	public int getCompressionLevel(){
+		return compressionLevel;
+	}
+
+	/**
+	 * @param filter one of the FILTER_ constants. Images with a palette
+	 * are not filtered, as the PNG specification recommends.
+	 */
+	public void setFilter(int filter){
+		if(filter < FILTER_NONE || filter > FILTER_ADAPTIVE)
+			throw new IllegalArgumentException("Unknown filter "+filter);
+		checkNotStarted();
+		this.filter = filter;
+	}
+
+	public int getFilter(){
+		return filter;
+	}
+
+	/**
+	 * @param paletteIfPossible whether to write the image with a
+	 * palette if it has 256 colours or fewer. Nothing is written until
+	 * finish() then, and if the image turns out to have more colours,
+	 * writeRows() returns false and all the rows have to be written
+	 * again.
+	 */
+	public void setPaletteIfPossible(boolean paletteIfPossible){
+		checkNotStarted();
+		this.paletteIfPossible = paletteIfPossible;
+	}
+
+	public boolean isPaletteIfPossible(){
+		return paletteIfPossible;
+	}
+
+	/**
+	 * @param pool the pool to deflate the rows on, or null to deflate
+	 * them in the calling thread
+	 */
+	public void setPool(ForkJoinPool pool){
+		checkNotStarted();
+		this.pool = pool;
+	}
+
+	public ForkJoinPool getPool(){
+		return pool;
+	}
+
+	private void checkNotStarted(){
+		if(rowsWritten != -1)
+			throw new IllegalStateException("The encoder has already started writing");
+	}
+
+	/**
+	 * Writes the next <code>rows</code> rows of the PNG, which are the
+	 * rows of <code>image</code> from <code>y</code>.
+	 *
+	 * @return false if the image was being written with a palette but
+	 * these rows have too many colours for one, in which case all the
+	 * rows have to be written again from the first one
+	 */
+	public boolean writeRows(BufferedImage image, int y, int rows) throws IOException {
+		if(image.getWidth() != width)
+			throw new IllegalArgumentException("The image is "+image.getWidth()+" pixels wide instead of "+width);
+		if(rowsWritten == -1) start();
+		if(rowsWritten + rows > height)
+			throw new IllegalArgumentException("More than "+height+" rows were written");
+
+		int[] data = null;
+		int offset = 0, stride = 0;
+		WritableRaster raster = image.getRaster();
+		if((image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& raster.getParent() == null
+				&& raster.getDataBuffer().getNumBanks() == 1){
+			data = ((DataBufferInt) raster.getDataBuffer()).getData();
+			offset = raster.getDataBuffer().getOffset();
+			stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+		} else if(pixels == null) {
+			pixels = new int[width];
+		}
+
+		for(int j = y; j < y + rows; j++) {
+			int[] rowData = data;
+			int rowOffset = offset + j * stride;
+			boolean hasAlpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+			if(data == null) {
+				image.getRGB(0, j, width, 1, pixels, 0, width);
+				rowData = pixels;
+				rowOffset = 0;
+				hasAlpha = image.getColorModel().hasAlpha();
+			}
+			if(palette == null) {
+				toBytes(rowData, rowOffset, hasAlpha);
+			} else if(!toIndices(rowData, rowOffset, hasAlpha)) {
+				//too many colours, start again without a palette
+				abandon();
+				paletteIfPossible = false;
+				rowsWritten = -1;
+				return false;
+			}
+			writeRow();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the end of the PNG, after all the rows have been written.
+	 * Does not close the stream.
+	 */
+	public void finish() throws IOException {
+		if(rowsWritten != height)
+			throw new IllegalStateException("Only "+Math.max(0, rowsWritten)+" of "+height+" rows were written");
+		if(deflater != null) {
+			deflater.finish();
+			while(!deflater.finished()) deflate();
+			deflater.end();
+		} else {
+			submitBlock(true);
+			while(!blocks.isEmpty()) writeData(getBlock(blocks.remove()));
+			byte[] checksum = new byte[4];
+			putInt(checksum, 0, (int) adler.getValue());
+			writeData(checksum);
+		}
+		writeChunk(data, "IDAT", chunk, chunkLength);
+
+		if(palette != null) {
+			writeHeader();
+			buffered.writeTo(out);
+		}
+		writeChunk(out, "IEND", chunk, 0);
+		out.flush();
+	}
+
+	private void start() throws IOException {
+		if(paletteIfPossible) {
+			bytesPerPixel = 1;
+			palette = new int[MAX_PALETTE_SIZE];
+			paletteSize = 0;
+			paletteTable = new int[MAX_PALETTE_SIZE * 2];
+			Arrays.fill(paletteTable, -1);
+			lastIndex = -1;
+			buffered = new ByteArrayOutputStream();
+			data = buffered;
+		} else {
+			bytesPerPixel = alpha ? 4 : 3;
+			palette = null;
+			data = out;
+			writeHeader();
+		}
+
+		chunk = new byte[CHUNK_SIZE];
+		chunkLength = 0;
+		int rowLength = width * bytesPerPixel;
+		row = new byte[rowLength];
+		previousRow = new byte[rowLength];
+		filtered = new byte[FILTER_ADAPTIVE][rowLength + 1];
+
+		if(pool != null && pool.getParallelism() > 1 && (rowLength + 1L) * height > BLOCK_SIZE) {
+			deflater = null;
+			blocks = new ArrayDeque<Future<byte[]>>();
+			block = new byte[BLOCK_SIZE];
+			blockLength = 0;
+			dictionary = null;
+			adler = new Adler32();
+			writeData(getZlibHeader(compressionLevel));
+		} else {
+			deflater = new Deflater(compressionLevel);
+		}
+		rowsWritten = 0;
+	}
+
+	/**
+	 * Stops deflating the rows written so far
+	 */
+	private void abandon(){
+		if(deflater != null) {
+			deflater.end();
+		} else {
+			for(Future<byte[]> future : blocks) future.cancel(false);
+			blocks.clear();
+		}
+	}
+
+	/**
+	 * Writes the signature, the header and the palette, if there is one
+	 */
+	private void writeHeader() throws IOException {
+		out.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8; //bits per channel, or per index
+		header[9] = (byte) (palette != null ? 3 : alpha ? 6 : 2); //indexed, RGBA or RGB
+		header[10] = 0; //deflate
+		header[11] = 0; //adaptive filtering, with the five basic filters
+		header[12] = 0; //not interlaced
+		writeChunk(out, "IHDR", header, header.length);
+
+		if(palette != null) {
+			byte[] colors = new byte[paletteSize * 3];
+			byte[] alphas = new byte[paletteSize];
+			int alphaLength = 0;
+			for(int i = 0; i < paletteSize; i++) {
+				colors[i * 3] = (byte) (palette[i] >> 16);
+				colors[i * 3 + 1] = (byte) (palette[i] >> 8);
+				colors[i * 3 + 2] = (byte) palette[i];
+				alphas[i] = (byte) (palette[i] >>> 24);
+				if(alphas[i] != (byte) 0xff) alphaLength = i + 1;
+			}
+			writeChunk(out, "PLTE", colors, colors.length);
+			//the colours after the last transparent one are opaque
+			if(alphaLength > 0) writeChunk(out, "tRNS", alphas, alphaLength);
+		}
+	}
+
+	/**
+	 * Puts the pixels from <code>offset</code> into the row, as RGB
+	 * or RGBA bytes
+	 *
+	 * @param hasAlpha whether the alpha of the pixels is set, as it
+	 * is not in the pixels of images without transparency
+	 */
+	private void toBytes(int[] data, int offset, boolean hasAlpha){
+		int i = 0;
+		for(int x = offset; x < offset + width; x++) {
+			int pixel = data[x];
+			row[i++] = (byte) (pixel >> 16);
+			row[i++] = (byte) (pixel >> 8);
+			row[i++] = (byte) pixel;
+			if(alpha) row[i++] = hasAlpha ? (byte) (pixel >>> 24) : (byte) 0xff;
+		}
+	}
+
+	/**
+	 * Puts the indices in the palette of the pixels from
+	 * <code>offset</code> into the row, adding their colours to it
+	 *
+	 * @return false if the palette is full and a pixel is not in it
+	 */
+	private boolean toIndices(int[] data, int offset, boolean hasAlpha){
+		int i = 0;
+		for(int x = offset; x < offset + width; x++) {
+			int color = alpha && hasAlpha ? data[x] : data[x] | 0xff000000;
+			if(color != lastColor || lastIndex == -1) {
+				lastIndex = getIndex(color);
+				if(lastIndex == -1) return false;
+				lastColor = color;
+			}
+			row[i++] = (byte) lastIndex;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index of <code>color</code> in the palette, adding
+	 * it if it is not there, or -1 if the palette is full
+	 */
+	private int getIndex(int color){
+		int mask = paletteTable.length - 1;
+		int slot = (color * 0x9e3779b9) >>> 23 & mask;
+		while(true) {
+			int index = paletteTable[slot];
+			if(index == -1) {
+				if(paletteSize == MAX_PALETTE_SIZE) return -1;
+				palette[paletteSize] = color;
+				paletteTable[slot] = paletteSize;
+				return paletteSize++;
+			}
+			if(palette[index] == color) return index;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void writeRow() throws IOException {
+		byte[] result;
+		if(palette != null) {
+			filterRow(FILTER_NONE);
+			result = filtered[FILTER_NONE];
+		} else if(filter == FILTER_ADAPTIVE) {
+			result = null;
+			long best = Long.MAX_VALUE;
+			for(int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+				long sum = filterRow(type);
+				if(sum < best) {
+					best = sum;
+					result = filtered[type];
+				}
+			}
+		} else {
+			filterRow(filter);
+			result = filtered[filter];
+		}
+
+		if(deflater != null) {
+			deflater.setInput(result, 0, result.length);
+			while(!deflater.needsInput()) deflate();
+		} else {
+			adler.update(result, 0, result.length);
+			int done = 0;
+			while(done < result.length) {
+				int length = Math.min(result.length - done, block.length - blockLength);
+				System.arraycopy(result, done, block, blockLength, length);
+				blockLength += length;
+				done += length;
+				if(blockLength == block.length) submitBlock(false);
+			}
+		}
+
+		byte[] swap = previousRow;
+		previousRow = row;
+		row = swap;
+		rowsWritten++;
+	}
+
+	/**
+	 * Filters the row with the filter <code>type</code> into
+	 * filtered[type].
+	 *
+	 * @return the sum of the filtered bytes as signed values, which
+	 * is smaller for rows that compress better
+	 */
+	private long filterRow(int type){
+		byte[] result = filtered[type];
+		result[0] = (byte) type;
+		int bpp = bytesPerPixel;
+		int length = row.length;
+		//the first row has nothing above it, which is the same as zeros
+		byte[] above = rowsWritten == 0 ? new byte[length] : previousRow;
+		long sum = 0;
+		switch(type) {
+		case FILTER_NONE:
+			for(int i = 0; i < length; i++) {
+				byte value = row[i];
+				result[i + 1] = value;
+				sum += Math.abs(value);
+			}
+			break;
+		case FILTER_SUB:
+			for(int i = 0; i < length; i++) {
+				byte value = i < bpp ? row[i] : (byte) (row[i] - row[i - bpp]);
+				result[i + 1] = value;
+				sum += Math.abs(value);
+			}
+			break;
+		case FILTER_UP:
+			for(int i = 0; i < length; i++) {
+				byte value = (byte) (row[i] - above[i]);
+				result[i + 1] = value;
+				sum += Math.abs(value);
+			}
+			break;
+		case FILTER_AVERAGE:
+			for(int i = 0; i < length; i++) {
+				int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+				byte value = (byte) (row[i] - ((left + (above[i] & 0xff)) >> 1));
+				result[i + 1] = value;
+				sum += Math.abs(value);
+			}
+			break;
+		case FILTER_PAETH:
+			for(int i = 0; i < length; i++) {
+				byte value;
+				if(i < bpp) value = (byte) (row[i] - above[i]);
+				else value = (byte) (row[i] - paeth(row[i - bpp] & 0xff, above[i] & 0xff, above[i - bpp] & 0xff));
+				result[i + 1] = value;
+				sum += Math.abs(value);
+			}
+			break;
+		}
+		return sum;
+	}
+
+	private static int paeth(int left, int up, int upLeft){
+		int estimate = left + up - upLeft;
+		int toLeft = Math.abs(estimate - left);
+		int toUp = Math.abs(estimate - up);
+		int toUpLeft = Math.abs(estimate - upLeft);
+		if(toLeft <= toUp && toLeft <= toUpLeft) return left;
+		if(toUp <= toUpLeft) return up;
+		return upLeft;
+	}
+
+	/**
+	 * Moves the output of the deflater into the chunk, writing the
+	 * chunk when it is full
+	 */
+	private void deflate() throws IOException {
+		chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+		if(chunkLength == chunk.length) {
+			writeChunk(data, "IDAT", chunk, chunkLength);
+			chunkLength = 0;
+		}
+	}
+
+	/**
+	 * Starts deflating the block on the pool, and writes the blocks
+	 * before it that are done if there are too many of them
+	 *
+	 * @param last whether this is the end of the zlib stream
+	 */
+	private void submitBlock(boolean last) throws IOException {
+		blocks.add(pool.submit(new Block(block, blockLength, dictionary, last, compressionLevel)));
+		if(!last) {
+			dictionary = Arrays.copyOfRange(block, Math.max(0, blockLength - DICTIONARY_SIZE), blockLength);
+			block = new byte[BLOCK_SIZE];
+			blockLength = 0;
+		}
+		while(blocks.size() > 2 * pool.getParallelism()) writeData(getBlock(blocks.remove()));
+	}
+
+	private static byte[] getBlock(Future<byte[]> future){
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Adds <code>bytes</code> of the zlib stream to the chunk, writing
+	 * the chunk when it is full
+	 */
+	private void writeData(byte[] bytes) throws IOException {
+		int done = 0;
+		while(done < bytes.length) {
+			int length = Math.min(bytes.length - done, chunk.length - chunkLength);
+			System.arraycopy(bytes, done, chunk, chunkLength, length);
+			chunkLength += length;
+			done += length;
+			if(chunkLength == chunk.length) {
+				writeChunk(data, "IDAT", chunk, chunkLength);
+				chunkLength = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the two bytes that start a zlib stream deflated at
+	 * <code>level</code> with a 32K window
+	 */
+	private static byte[] getZlibHeader(int level){
+		int method = 0x78;
+		int flags;
+		if(level == 0 || level == 1) flags = 0;
+		else if(level >= 2 && level <= 5) flags = 1;
+		else if(level == 6 || level == -1) flags = 2;
+		else flags = 3;
+		flags <<= 6;
+		flags += 31 - (method * 256 + flags) % 31;
+		return new byte[] {(byte) method, (byte) flags};
+	}
+
+	/**
+	 * Deflates a block of the filtered rows on its own, as raw deflate
+	 * data that ends on a whole byte so that the next block can follow
+	 * it
+	 */
+	private static class Block implements Callable<byte[]> {
+		final byte[] input;
+		final int length;
+		final byte[] dictionary;
+		final boolean last;
+		final int level;
+
+		/**
+		 * @param dictionary the end of the block before, or null
+		 * @param last whether to end the deflate stream with this block
+		 */
+		Block(byte[] input, int length, byte[] dictionary, boolean last, int level){
+			this.input = input;
+			this.length = length;
+			this.dictionary = dictionary;
+			this.last = last;
+			this.level = level;
+		}
+
+		public byte[] call(){
+			Deflater deflater = new Deflater(level, true);
+			try {
+				if(dictionary != null) deflater.setDictionary(dictionary);
+				deflater.setInput(input, 0, length);
+				ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+				byte[] buffer = new byte[16 * 1024];
+				if(last) {
+					deflater.finish();
+					while(!deflater.finished()) {
+						int written = deflater.deflate(buffer);
+						result.write(buffer, 0, written);
+					}
+				} else {
+					int written;
+					do {
+						written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						result.write(buffer, 0, written);
+					} while(written == buffer.length);
+				}
+				return result.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	private void writeChunk(OutputStream target, String type, byte[] data, int length) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		for(int i = 0; i < 4; i++) header[4 + i] = (byte) type.charAt(i);
+		target.write(header);
+		target.write(data, 0, length);
+
+		crc.reset();
+		crc.update(header, 4, 4);
+		crc.update(data, 0, length);
+		byte[] checksum = new byte[4];
+		putInt(checksum, 0, (int) crc.getValue());
+		target.write(checksum);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value){
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
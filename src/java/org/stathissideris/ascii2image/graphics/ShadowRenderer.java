@@ -0,0 +1,777 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.stathissideris.ascii2image.core.RenderingOptions;
+
+/**
+ * Draws the blurred shadows of the shapes of a diagram on an image
+ * that has just been filled with the background colour.
+ *
+ * The shadows are drawn on a grey level mask of how much of each pixel
+ * they cover, one mask for each group of shadows that are close to each
+ * other, and the mask is blurred with a box that is 6 pixels wide and
+ * high. The blur is done as a running sum over the rows and then over
+ * the columns of the mask, in bands of rows that can be blurred in
+ * parallel, and its result is written once into the image.
+ *
+ * Diagrams tend to have many shapes of the same size, so the mask of
+ * each shadow outline is kept along with its blur, and a shadow with
+ * the same outline (to the last bit, relative to the pixel it starts
+ * at) is stamped from them instead of being filled and blurred again.
+ * Shadows with outlines too big or too complex to be worth keeping
+ * are filled on the mask of their group.
+ *
+ * The result is the same as filling the shadows on the image and
+ * blurring all of it with a 6x6 ConvolveOp with EDGE_NO_OP (which
+ * is how it used to be done), down to the way ConvolveOp rounds,
+ * except where antialiased shadows overlap, which can be off by one
+ * shade. As with the ConvolveOp, the background away from the edges
+ * of the image ends up one shade darker.
+ *
+ * @author Efstathios Sideris
+ */
+class ShadowRenderer {
+
+	private static final boolean DEBUG = false;
+
+	private static final Color SHADOW_COLOR = new Color(150, 150, 150);
+
+	/** The width and height of the blur box */
+	private static final int BLUR_SIZE = 6;
+	/** How many pixels of the box are before (and after) the blurred pixel */
+	private static final int BEFORE = BLUR_SIZE / 2;
+	private static final int AFTER = BLUR_SIZE - BEFORE - 1;
+	/** How many pixels at each edge of the image ConvolveOp leaves as they are */
+	private static final int EDGE = BLUR_SIZE / 2;
+
+	/**
+	 * ConvolveOp weighs each pixel of the box with 1/36 in 18 bit
+	 * fixed point and truncates the sum
+	 */
+	private static final int WEIGHT = 7281;
+	private static final int WEIGHT_SHIFT = 18;
+
+	/** How far out of its shape the blur of a shadow reaches, rounded up */
+	private static final int MARGIN = BLUR_SIZE;
+
+	/** How many rows of the image are blurred in one task */
+	private static final int BAND_HEIGHT = 64;
+
+	/** The outlines with more segments than this are not kept */
+	private static final int MAX_SPRITE_SEGMENTS = 32;
+	/** The outlines with masks bigger than this are not kept */
+	private static final int MAX_SPRITE_PIXELS = 512 * 512;
+	/** How many bytes of masks and blurs to keep */
+	private static final long MAX_SPRITE_BYTES = 16L * 1024 * 1024;
+
+	/** In order of use, least recently used first */
+	private static final LinkedHashMap<Outline, Sprite> sprites =
+		new LinkedHashMap<Outline, Sprite>(16, 0.75f, true);
+	private static long spriteBytes = 0;
+
+	private final BufferedImage image;
+	private final int width;
+	private final int height;
+	private final int channels;
+	/** Whether to stamp the shadows from sprites where possible */
+	private final boolean useSprites;
+
+	/** The pixel of the image for each level of the mask */
+	private final int[] pixels = new int[256];
+	/** The channels of pixels, in the order of CHANNEL_SHIFTS */
+	private final int[][] levels;
+	private static final int[] CHANNEL_SHIFTS = {16, 8, 0, 24};
+
+	/** What the ConvolveOp would make of the background */
+	private final int blurredBackground;
+
+	private final ArrayList<Group> groups = new ArrayList<Group>();
+
+	/**
+	 * @param image an image that has just been filled with the
+	 * background colour of <code>options</code>
+	 */
+	ShadowRenderer(BufferedImage image, RenderingOptions options){
+		this.image = image;
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.channels = image.getColorModel().hasAlpha() ? 4 : 3;
+		this.useSprites = options.useShadowSprites();
+
+		//fill a shadow on the background with each level of opacity,
+		//to find what the pixels of each level of the mask look like
+		int type = image.getType() == BufferedImage.TYPE_CUSTOM ?
+				BufferedImage.TYPE_INT_ARGB : image.getType();
+		BufferedImage levelImage = new BufferedImage(256, 1, type);
+		Graphics2D g2 = levelImage.createGraphics();
+		g2.setColor(options.getBackgroundColor());
+		g2.fillRect(0, 0, 256, 1);
+		for(int level = 1; level < 256; level++) {
+			g2.setColor(new Color(SHADOW_COLOR.getRed(), SHADOW_COLOR.getGreen(), SHADOW_COLOR.getBlue(), level));
+			g2.fillRect(level, 0, 1, 1);
+		}
+		g2.dispose();
+		levelImage.getRGB(0, 0, 256, 1, pixels, 0, 256);
+
+		levels = new int[channels][256];
+		int background = 0;
+		for(int c = 0; c < channels; c++) {
+			for(int level = 0; level < 256; level++)
+				levels[c][level] = (pixels[level] >> CHANNEL_SHIFTS[c]) & 0xff;
+			background |= blur(BLUR_SIZE * BLUR_SIZE * levels[c][0]) << CHANNEL_SHIFTS[c];
+		}
+		if(channels == 3) background |= 0xff000000;
+		blurredBackground = background;
+	}
+
+	/**
+	 * @return what tells apart the sprites blurred on different
+	 * backgrounds: the type of <code>image</code> and the background
+	 * colour of <code>options</code>
+	 */
+	private static String getLevelsKey(BufferedImage image, RenderingOptions options){
+		int type = image.getType() == BufferedImage.TYPE_CUSTOM ?
+				BufferedImage.TYPE_INT_ARGB : image.getType();
+		return type + " " + Integer.toHexString(options.getBackgroundColor().getRGB());
+	}
+
+	/**
+	 * @return the outlines of the shadows of the <code>shapes</code>
+	 * that drop one, to be drawn on images like <code>image</code>
+	 */
+	static ArrayList<Outline> makeOutlines(Diagram diagram, List<DiagramShape> shapes,
+			RenderingOptions options, BufferedImage image){
+		float offset = diagram.getMinimumOfCellDimension() / 3.333f;
+		AffineTransform translate = new AffineTransform();
+		translate.setToTranslation(offset, offset);
+		String levelsKey = getLevelsKey(image, options);
+
+		ArrayList<Outline> outlines = new ArrayList<Outline>();
+		for(DiagramShape shape : shapes) {
+			if(shape.getPoints().isEmpty()) continue;
+
+			GeneralPath path = shape.makeIntoRenderPath(diagram, options);
+			if(path == null
+					|| !shape.dropsShadow()
+					|| shape.getType() == DiagramShape.TYPE_CUSTOM) continue;
+
+			Outline outline = new Outline(path.getPathIterator(translate), options.performAntialias(), levelsKey);
+			if(!outline.isEmpty()) outlines.add(outline);
+		}
+		return outlines;
+	}
+
+	/**
+	 * Adds the shadows of the <code>outlines</code> that reach the image.
+	 *
+	 * @param outlines made by makeOutlines() for an image like this one
+	 * @param originY the row of the diagram that is the first row
+	 * of the image
+	 */
+	void addShadows(List<Outline> outlines, int originY){
+		Rectangle imageBounds = new Rectangle(0, 0, width, height);
+		for(Outline outline : outlines) {
+			Shadow shadow = new Shadow(outline, originY);
+			Rectangle bounds = shadow.getBounds().intersection(imageBounds);
+			if(bounds.isEmpty()) continue;
+			addToGroup(new Group(bounds, shadow));
+		}
+	}
+
+	/**
+	 * Adds <code>group</code> to the groups, merging it with the groups
+	 * it overlaps, so that the blurs of the shadows of different groups
+	 * never reach each other.
+	 */
+	private void addToGroup(Group group){
+		boolean merged = true;
+		while(merged) {
+			merged = false;
+			for(int i = 0; i < groups.size(); i++) {
+				Group other = groups.get(i);
+				if(other.bounds.intersects(group.bounds)) {
+					group.bounds.add(other.bounds);
+					other.shadows.addAll(group.shadows);
+					group.shadows = other.shadows;
+					groups.remove(i);
+					merged = true;
+					break;
+				}
+			}
+		}
+		groups.add(group);
+	}
+
+	/**
+	 * Blurs the shadows into the image, on <code>pool</code> if it
+	 * is not null.
+	 */
+	void render(ForkJoinPool pool){
+		for(Group group : groups) group.fill();
+
+		if(DEBUG) System.out.println("Blurring "+groups.size()+" groups of shadows");
+
+		if(pool == null || height <= BAND_HEIGHT) {
+			for(int y = 0; y < height; y += BAND_HEIGHT)
+				renderBand(y, Math.min(height, y + BAND_HEIGHT));
+			return;
+		}
+
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int y = 0; y < height; y += BAND_HEIGHT) {
+			final int y0 = y;
+			final int y1 = Math.min(height, y + BAND_HEIGHT);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					renderBand(y0, y1);
+					return null;
+				}
+			});
+		}
+		try {
+			for(Future<Void> band : pool.invokeAll(tasks)) band.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering shadows", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Writes the rows <code>y0</code> to <code>y1</code> (exclusive)
+	 * of the image: the blurred shadows on the blurred background,
+	 * except for the pixels that are too close to the edges of the
+	 * image to have a whole box around them, which are not blurred.
+	 */
+	private void renderBand(int y0, int y1){
+		int[] band = new int[(y1 - y0) * width];
+		int blurredLeft = EDGE, blurredRight = width - EDGE;
+		int blurredTop = EDGE, blurredBottom = height - EDGE;
+		Arrays.fill(band, pixels[0]);
+		if(blurredLeft < blurredRight) {
+			for(int y = Math.max(y0, blurredTop); y < Math.min(y1, blurredBottom); y++) {
+				int row = (y - y0) * width;
+				Arrays.fill(band, row + blurredLeft, row + blurredRight, blurredBackground);
+			}
+		}
+
+		for(Group group : groups) {
+			Rectangle bounds = group.bounds;
+			int top = Math.max(y0, bounds.y);
+			int bottom = Math.min(y1, bounds.y + bounds.height);
+			if(top >= bottom) continue;
+
+			//the pixels that are too close to the edges of the image
+			byte[] mask = group.mask;
+			for(int y = top; y < bottom; y++) {
+				int row = (y - y0) * width;
+				int m = (y - bounds.y) * bounds.width - bounds.x;
+				if(y < blurredTop || y >= blurredBottom) {
+					for(int x = bounds.x; x < bounds.x + bounds.width; x++)
+						band[row + x] = pixels[mask[m + x] & 0xff];
+				} else {
+					for(int x = bounds.x; x < Math.min(blurredLeft, bounds.x + bounds.width); x++)
+						band[row + x] = pixels[mask[m + x] & 0xff];
+					for(int x = Math.max(blurredRight, bounds.x); x < bounds.x + bounds.width; x++)
+						band[row + x] = pixels[mask[m + x] & 0xff];
+				}
+			}
+
+			//the pixels whose box is in the mask, as the rest of the
+			//mask is too far from the shadows to be affected by them
+			top = Math.max(Math.max(top, blurredTop), bounds.y + BEFORE);
+			bottom = Math.min(Math.min(bottom, blurredBottom), bounds.y + bounds.height - AFTER);
+			int left = Math.max(blurredLeft, bounds.x + BEFORE);
+			int right = Math.min(blurredRight, bounds.x + bounds.width - AFTER);
+			if(top >= bottom || left >= right) continue;
+
+			if(group.blurred != null) {
+				//the blur of a sprite, which starts at the first pixel
+				//whose box is in the mask
+				int blurredWidth = bounds.width - BLUR_SIZE + 1;
+				for(int y = top; y < bottom; y++) {
+					System.arraycopy(group.blurred,
+							(y - bounds.y - BEFORE) * blurredWidth + left - bounds.x - BEFORE,
+							band, (y - y0) * width + left, right - left);
+				}
+			} else {
+				blur(mask, bounds, top, bottom, left, right, band, -y0 * width, width);
+			}
+		}
+
+		write(band, y0, y1);
+	}
+
+	/**
+	 * Blurs the pixels from <code>left</code> to <code>right</code> in
+	 * the rows from <code>top</code> to <code>bottom</code> (exclusive),
+	 * whose boxes must be in the <code>mask</code>, into
+	 * <code>target</code>, where pixel x, y is at
+	 * <code>offset + y * stride + x</code>.
+	 */
+	private void blur(byte[] mask, Rectangle bounds, int top, int bottom, int left, int right,
+			int[] target, int offset, int stride){
+		int columns = right - left;
+
+		//the sums of the boxes along the rows, for each row of the
+		//mask that is in the box of a blurred row
+		int first = top - BEFORE;
+		int sumRows = bottom + AFTER - first;
+		int[][][] rowSums = new int[channels][sumRows][columns];
+		for(int c = 0; c < channels; c++) {
+			int[] level = levels[c];
+			for(int r = 0; r < sumRows; r++) {
+				int m = (first + r - bounds.y) * bounds.width - bounds.x;
+				int[] sums = rowSums[c][r];
+				int sum = 0;
+				for(int x = left - BEFORE; x <= left + AFTER; x++)
+					sum += level[mask[m + x] & 0xff];
+				sums[0] = sum;
+				for(int x = left + 1; x < right; x++) {
+					sum += level[mask[m + x + AFTER] & 0xff] - level[mask[m + x - BEFORE - 1] & 0xff];
+					sums[x - left] = sum;
+				}
+			}
+		}
+
+		//then the sums of those along the columns
+		int[][] sums = new int[channels][columns];
+		for(int c = 0; c < channels; c++) {
+			for(int r = 0; r < BLUR_SIZE - 1; r++) {
+				int[] rowSum = rowSums[c][r];
+				for(int i = 0; i < columns; i++) sums[c][i] += rowSum[i];
+			}
+		}
+		for(int y = top; y < bottom; y++) {
+			int r = y - first;
+			int row = offset + y * stride + left;
+			for(int c = 0; c < channels; c++) {
+				int[] sum = sums[c];
+				int[] added = rowSums[c][r + AFTER];
+				for(int i = 0; i < columns; i++) sum[i] += added[i];
+			}
+			for(int i = 0; i < columns; i++) {
+				int pixel = channels == 3 ? 0xff000000 : 0;
+				for(int c = 0; c < channels; c++)
+					pixel |= blur(sums[c][i]) << CHANNEL_SHIFTS[c];
+				target[row + i] = pixel;
+			}
+			for(int c = 0; c < channels; c++) {
+				int[] sum = sums[c];
+				int[] removed = rowSums[c][r - BEFORE];
+				for(int i = 0; i < columns; i++) sum[i] -= removed[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the blurred value of a channel whose values in the
+	 * box add up to <code>sum</code>
+	 */
+	private static int blur(int sum){
+		return (sum * WEIGHT) >> WEIGHT_SHIFT;
+	}
+
+	private void write(int[] band, int y0, int y1){
+		WritableRaster raster = image.getRaster();
+		if(raster.getDataBuffer() instanceof DataBufferInt
+				&& (image.getType() == BufferedImage.TYPE_INT_RGB
+					|| image.getType() == BufferedImage.TYPE_INT_ARGB))
+			raster.setDataElements(0, y0, width, y1 - y0, band);
+		else
+			image.setRGB(0, y0, width, y1 - y0, band, 0, width);
+	}
+
+	/**
+	 * @return the sprite of <code>outline</code>, made now if it
+	 * was not kept, or null if it is not worth keeping
+	 */
+	private static Sprite getSprite(Outline outline){
+		//closer to the top or left of the diagram, the points of the
+		//outline can lose bits when they are moved into the margin
+		if(outline.x < MARGIN || outline.y < MARGIN
+				|| outline.segments > MAX_SPRITE_SEGMENTS
+				|| (long) outline.getMaskWidth() * outline.getMaskHeight() > MAX_SPRITE_PIXELS)
+			return null;
+		Sprite sprite;
+		synchronized(sprites) {
+			sprite = sprites.get(outline);
+		}
+		if(sprite == null) {
+			sprite = new Sprite(outline);
+			putSprite(outline, sprite);
+		}
+		return sprite;
+	}
+
+	private static void putSprite(Outline outline, Sprite sprite){
+		synchronized(sprites) {
+			Sprite previous = sprites.put(outline, sprite);
+			if(previous != null) spriteBytes -= previous.getBytes();
+			spriteBytes += sprite.getBytes();
+
+			Iterator<Sprite> it = sprites.values().iterator();
+			while(spriteBytes > MAX_SPRITE_BYTES && it.hasNext()) {
+				spriteBytes -= it.next().getBytes();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets the masks and blurs of the shadows drawn so far
+	 */
+	static void clearCache(){
+		synchronized(sprites) {
+			sprites.clear();
+			spriteBytes = 0;
+		}
+	}
+
+	/**
+	 * Shadows whose blurs can reach each other, and their mask
+	 */
+	private class Group {
+		final Rectangle bounds;
+		ArrayList<Shadow> shadows = new ArrayList<Shadow>();
+		byte[] mask;
+		/** The blur of the mask, if it is the mask of a sprite */
+		int[] blurred;
+
+		Group(Rectangle bounds, Shadow shadow){
+			this.bounds = bounds;
+			shadows.add(shadow);
+		}
+
+		/**
+		 * Fills the shadows on the mask, with the level of each pixel
+		 * being how much of it they cover
+		 */
+		void fill(){
+			if(shadows.size() == 1 && bounds.equals(shadows.get(0).getBounds())) {
+				//a shadow on its own: use the mask and the blur of its sprite
+				Sprite sprite = useSprites ? getSprite(shadows.get(0).outline) : null;
+				if(sprite != null) {
+					mask = sprite.mask;
+					blurred = sprite.getBlur(ShadowRenderer.this);
+					shadows = null;
+					return;
+				}
+			}
+
+			BufferedImage maskImage = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+			mask = ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData();
+			Graphics2D g2 = null;
+			for(Shadow shadow : shadows) {
+				Sprite sprite = useSprites ? getSprite(shadow.outline) : null;
+				if(sprite != null) {
+					sprite.stampOn(mask, bounds, shadow.getBounds());
+					continue;
+				}
+				if(g2 == null) {
+					g2 = maskImage.createGraphics();
+					g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+							shadow.outline.antialias ?
+								RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+					g2.setColor(Color.white);
+				}
+				g2.setTransform(AffineTransform.getTranslateInstance(
+						-bounds.x, -bounds.y - shadow.originY));
+				g2.fill(shadow.outline.makeIntoPath(shadow.outline.x, shadow.outline.y));
+			}
+			if(g2 != null) g2.dispose();
+			shadows = null;
+		}
+	}
+
+	/**
+	 * The outline of a shadow, and where it is in the image
+	 */
+	private static class Shadow {
+		final Outline outline;
+		final int originY;
+
+		Shadow(Outline outline, int originY){
+			this.outline = outline;
+			this.originY = originY;
+		}
+
+		/**
+		 * @return where the mask of the outline goes in the image
+		 */
+		Rectangle getBounds(){
+			return new Rectangle(
+					outline.x - MARGIN, outline.y - originY - MARGIN,
+					outline.getMaskWidth(), outline.getMaskHeight());
+		}
+	}
+
+	/**
+	 * The segments of a shadow, with their points relative to the pixel
+	 * the shadow starts at. Outlines that are equal are filled the same,
+	 * wherever they are, as moving them by whole pixels does not change
+	 * the bits of their points.
+	 */
+	static class Outline {
+		/** The pixel the shadow starts at */
+		final int x;
+		final int y;
+		final int width;
+		final int height;
+
+		final byte[] types;
+		final float[] points;
+		final int segments;
+		final boolean antialias;
+		/** The sprite of the outline is blurred on this background */
+		final String background;
+		private final int hashCode;
+
+		Outline(PathIterator it, boolean antialias, String background){
+			this.antialias = antialias;
+			this.background = background;
+
+			byte[] types = new byte[16];
+			float[] points = new float[64];
+			int segments = 0, length = 0;
+			float[] coords = new float[6];
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+			for(; !it.isDone(); it.next()) {
+				int type = it.currentSegment(coords);
+				int count = type == PathIterator.SEG_CUBICTO ? 6 :
+					type == PathIterator.SEG_QUADTO ? 4 :
+					type == PathIterator.SEG_CLOSE ? 0 : 2;
+				if(segments == types.length) types = Arrays.copyOf(types, segments * 2);
+				if(length + count > points.length) points = Arrays.copyOf(points, points.length * 2);
+				types[segments++] = (byte) type;
+				for(int i = 0; i < count; i += 2) {
+					minX = Math.min(minX, coords[i]);
+					maxX = Math.max(maxX, coords[i]);
+					minY = Math.min(minY, coords[i + 1]);
+					maxY = Math.max(maxY, coords[i + 1]);
+					points[length++] = coords[i];
+					points[length++] = coords[i + 1];
+				}
+			}
+			if(it.getWindingRule() == PathIterator.WIND_EVEN_ODD)
+				types = Arrays.copyOf(types, segments);
+			else
+				types = Arrays.copyOf(types, segments + 1);
+			this.types = types;
+			this.points = Arrays.copyOf(points, length);
+			this.segments = segments;
+
+			if(length == 0) {
+				x = y = width = height = 0;
+			} else {
+				x = (int) Math.floor(minX);
+				y = (int) Math.floor(minY);
+				width = (int) Math.ceil(maxX) - x + 1;
+				height = (int) Math.ceil(maxY) - y + 1;
+				//exact, as the points are much smaller than 2^24
+				for(int i = 0; i < length; i += 2) {
+					this.points[i] -= x;
+					this.points[i + 1] -= y;
+				}
+			}
+			hashCode = 31 * (31 * Arrays.hashCode(this.types) + Arrays.hashCode(this.points))
+				+ background.hashCode() + (antialias ? 1 : 0);
+		}
+
+		boolean isEmpty(){
+			return points.length == 0;
+		}
+
+		int getMaskWidth(){
+			return width + 2 * MARGIN;
+		}
+
+		int getMaskHeight(){
+			return height + 2 * MARGIN;
+		}
+
+		/**
+		 * @return the first row of the diagram that the blur of the
+		 * shadow reaches
+		 */
+		int getTop(){
+			return y - MARGIN;
+		}
+
+		/**
+		 * @return the row of the diagram after the last one that the
+		 * blur of the shadow reaches
+		 */
+		int getBottom(){
+			return y - MARGIN + getMaskHeight();
+		}
+
+		/**
+		 * @return the outline as a path, moved so that the pixel it
+		 * starts at is <code>x</code>, <code>y</code>
+		 */
+		GeneralPath makeIntoPath(int x, int y){
+			GeneralPath path = new GeneralPath(
+					types.length > segments ? PathIterator.WIND_NON_ZERO : PathIterator.WIND_EVEN_ODD);
+			int p = 0;
+			for(int i = 0; i < segments; i++) {
+				switch(types[i]) {
+				case PathIterator.SEG_MOVETO:
+					path.moveTo(points[p] + x, points[p + 1] + y);
+					p += 2;
+					break;
+				case PathIterator.SEG_LINETO:
+					path.lineTo(points[p] + x, points[p + 1] + y);
+					p += 2;
+					break;
+				case PathIterator.SEG_QUADTO:
+					path.quadTo(points[p] + x, points[p + 1] + y,
+							points[p + 2] + x, points[p + 3] + y);
+					p += 4;
+					break;
+				case PathIterator.SEG_CUBICTO:
+					path.curveTo(points[p] + x, points[p + 1] + y,
+							points[p + 2] + x, points[p + 3] + y,
+							points[p + 4] + x, points[p + 5] + y);
+					p += 6;
+					break;
+				case PathIterator.SEG_CLOSE:
+					path.closePath();
+					break;
+				}
+			}
+			return path;
+		}
+
+		public int hashCode(){
+			return hashCode;
+		}
+
+		public boolean equals(Object object){
+			if(!(object instanceof Outline)) return false;
+			Outline other = (Outline) object;
+			return hashCode == other.hashCode
+				&& antialias == other.antialias
+				&& background.equals(other.background)
+				&& Arrays.equals(types, other.types)
+				&& Arrays.equals(points, other.points);
+		}
+	}
+
+	/**
+	 * The mask of an outline, with a margin for its blur, and the blur
+	 * of the mask, which is only made when a shadow is on its own
+	 */
+	private static class Sprite {
+		final int width;
+		final int height;
+		final byte[] mask;
+		private int[] blur;
+
+		Sprite(Outline outline){
+			width = outline.getMaskWidth();
+			height = outline.getMaskHeight();
+			BufferedImage maskImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			Graphics2D g2 = maskImage.createGraphics();
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					outline.antialias ?
+						RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+			g2.setColor(Color.white);
+			g2.fill(outline.makeIntoPath(MARGIN, MARGIN));
+			g2.dispose();
+			mask = ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData();
+		}
+
+		/**
+		 * @return the blur of the pixels of the mask whose boxes are in
+		 * the mask, with the levels of <code>renderer</code>, which
+		 * has the background of the outline
+		 */
+		synchronized int[] getBlur(ShadowRenderer renderer){
+			if(blur == null) {
+				int blurredWidth = width - BLUR_SIZE + 1;
+				int blurredHeight = height - BLUR_SIZE + 1;
+				int[] result = new int[blurredWidth * blurredHeight];
+				renderer.blur(mask, new Rectangle(0, 0, width, height),
+						BEFORE, height - AFTER, BEFORE, width - AFTER,
+						result, -BEFORE * blurredWidth - BEFORE, blurredWidth);
+				blur = result;
+			}
+			return blur;
+		}
+
+		/**
+		 * @return the bytes of the mask and of its blur, made or not
+		 */
+		long getBytes(){
+			return mask.length + 4L * (width - BLUR_SIZE + 1) * (height - BLUR_SIZE + 1);
+		}
+
+		/**
+		 * Fills the mask on <code>target</code> the way a Graphics2D
+		 * fills a white shape on a grey image, which is the same as
+		 * filling the outline there, as it only moves by whole pixels
+		 */
+		void stampOn(byte[] target, Rectangle targetBounds, Rectangle bounds){
+			Rectangle area = bounds.intersection(targetBounds);
+			for(int y = area.y; y < area.y + area.height; y++) {
+				int s = (y - bounds.y) * width - bounds.x;
+				int t = (y - targetBounds.y) * targetBounds.width - targetBounds.x;
+				for(int x = area.x; x < area.x + area.width; x++) {
+					int a = mask[s + x] & 0xff;
+					if(a == 0) continue;
+					if(a == 0xff) {
+						target[t + x] = (byte) 0xff;
+					} else {
+						int d = target[t + x] & 0xff;
+						target[t + x] = (byte) (a + ((0xff - a) * d + 127) / 0xff);
+					}
+				}
+			}
+		}
+	}
+}
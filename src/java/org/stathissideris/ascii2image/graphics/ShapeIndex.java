@@ -0,0 +1,209 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.Rectangle;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A uniform grid over the bounding boxes of a list of shapes, to find
+ * the smallest shape that contains a point or intersects a rectangle
+ * without testing every shape.
+ *
+ * The shapes are ranked by the area of their bounding box (the size
+ * used by DiagramShape.isSmallerThan()) and then by their position in
+ * the list. Each bin of the grid keeps, in order of rank, the shapes
+ * whose bounding box touches it, so the first shape of a bin that
+ * passes the exact test is the smallest one, and ties go to the shape
+ * that comes first in the list, as they would with a linear scan.
+ *
+ * The paths of the shapes are made once, when the index is built, so
+ * the index must be rebuilt if the shapes change.
+ *
+ * @author Efstathios Sideris
+ */
+class ShapeIndex {
+
+	private static final int MIN_BIN_SIZE = 8;
+
+	/** The shapes, paths and bounds, in order of rank */
+	private final DiagramShape[] shapes;
+	private final GeneralPath[] paths;
+	private final Rectangle2D[] bounds;
+
+	private double minX, minY;
+	private double binSize;
+	private int binsX, binsY;
+
+	/** The ranks of the shapes that touch each bin, in ascending order */
+	private int[][] bins;
+
+	ShapeIndex(List<DiagramShape> shapeList){
+		//shapes without a path can never be found, so leave them out
+		final ArrayList<DiagramShape> indexed = new ArrayList<DiagramShape>();
+		final ArrayList<GeneralPath> indexedPaths = new ArrayList<GeneralPath>();
+		for(DiagramShape shape : shapeList){
+			GeneralPath path = shape.makeIntoPath();
+			if(path == null) continue;
+			indexed.add(shape);
+			indexedPaths.add(path);
+		}
+
+		int count = indexed.size();
+		final int[] areas = new int[count];
+		Integer[] order = new Integer[count];
+		for(int i = 0; i < count; i++){
+			Rectangle box = indexedPaths.get(i).getBounds();
+			areas[i] = box.width * box.height;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				if(areas[i1] != areas[i2]) return areas[i1] < areas[i2] ? -1 : 1;
+				return i1.compareTo(i2);
+			}
+		});
+
+		shapes = new DiagramShape[count];
+		paths = new GeneralPath[count];
+		bounds = new Rectangle2D[count];
+		for(int rank = 0; rank < count; rank++){
+			shapes[rank] = indexed.get(order[rank]);
+			paths[rank] = indexedPaths.get(order[rank]);
+			bounds[rank] = paths[rank].getBounds2D();
+		}
+
+		makeBins();
+	}
+
+	private void makeBins(){
+		if(shapes.length == 0){
+			binsX = binsY = 0;
+			bins = new int[0][];
+			return;
+		}
+
+		Rectangle2D extent = (Rectangle2D) bounds[0].clone();
+		for(Rectangle2D box : bounds) extent.add(box);
+		minX = extent.getMinX();
+		minY = extent.getMinY();
+
+		//about as many bins as shapes
+		binSize = Math.max(MIN_BIN_SIZE,
+				Math.sqrt(extent.getWidth() * extent.getHeight() / shapes.length));
+		binsX = (int) (extent.getWidth() / binSize) + 1;
+		binsY = (int) (extent.getHeight() / binSize) + 1;
+
+		int[] binCounts = new int[binsX * binsY];
+		for(Rectangle2D box : bounds){
+			int x1 = getBinX(box.getMinX()), x2 = getBinX(box.getMaxX());
+			int y1 = getBinY(box.getMinY()), y2 = getBinY(box.getMaxY());
+			for(int y = y1; y <= y2; y++){
+				for(int x = x1; x <= x2; x++) binCounts[y * binsX + x]++;
+			}
+		}
+		bins = new int[binsX * binsY][];
+		for(int i = 0; i < bins.length; i++) bins[i] = new int[binCounts[i]];
+		Arrays.fill(binCounts, 0);
+		//ranks are added in ascending order
+		for(int rank = 0; rank < bounds.length; rank++){
+			Rectangle2D box = bounds[rank];
+			int x1 = getBinX(box.getMinX()), x2 = getBinX(box.getMaxX());
+			int y1 = getBinY(box.getMinY()), y2 = getBinY(box.getMaxY());
+			for(int y = y1; y <= y2; y++){
+				for(int x = x1; x <= x2; x++){
+					int bin = y * binsX + x;
+					bins[bin][binCounts[bin]++] = rank;
+				}
+			}
+		}
+	}
+
+	private int getBinX(double x){
+		return clamp((int) Math.floor((x - minX) / binSize), binsX);
+	}
+
+	private int getBinY(double y){
+		return clamp((int) Math.floor((y - minY) / binSize), binsY);
+	}
+
+	private static int clamp(int bin, int binCount){
+		if(bin < 0) return 0;
+		if(bin >= binCount) return binCount - 1;
+		return bin;
+	}
+
+	/**
+	 * @return the smallest shape that contains <code>point</code>,
+	 * or null if there is none
+	 */
+	DiagramShape findSmallestShapeContaining(ShapePoint point){
+		if(shapes.length == 0) return null;
+		double x = point.getX();
+		double y = point.getY();
+		for(int rank : bins[getBinY(y) * binsX + getBinX(x)]){
+			//a path only contains points within its bounds
+			Rectangle2D box = bounds[rank];
+			if(x >= box.getMinX() && x <= box.getMaxX()
+					&& y >= box.getMinY() && y <= box.getMaxY()
+					&& paths[rank].contains(point))
+				return shapes[rank];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the smallest shape that intersects <code>rect</code>,
+	 * or null if there is none
+	 */
+	DiagramShape findSmallestShapeIntersecting(Rectangle2D rect){
+		if(shapes.length == 0) return null;
+		int x1 = getBinX(rect.getMinX()), x2 = getBinX(rect.getMaxX());
+		int y1 = getBinY(rect.getMinY()), y2 = getBinY(rect.getMaxY());
+		int best = Integer.MAX_VALUE;
+		for(int y = y1; y <= y2; y++){
+			for(int x = x1; x <= x2; x++){
+				for(int rank : bins[y * binsX + x]){
+					if(rank >= best) break;
+					if(overlaps(bounds[rank], rect) && paths[rank].intersects(rect)){
+						best = rank;
+						break;
+					}
+				}
+			}
+		}
+		return best == Integer.MAX_VALUE ? null : shapes[best];
+	}
+
+	/**
+	 * Like Rectangle2D.intersects(), but also true for boxes that only
+	 * touch, or have no width or height, so it never rules out a shape
+	 * that GeneralPath.intersects() would accept.
+	 */
+	private static boolean overlaps(Rectangle2D box, Rectangle2D rect){
+		return box.getMinX() <= rect.getMaxX() && rect.getMinX() <= box.getMaxX()
+			&& box.getMinY() <= rect.getMaxY() && rect.getMinY() <= box.getMaxY();
+	}
+}
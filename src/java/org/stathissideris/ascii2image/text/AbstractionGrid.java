@@ -32,6 +32,9 @@ public class AbstractionGrid {
 	
 	private TextGrid grid;
 	
+	/** The cell of the original TextGrid that cell 0, 0 corresponds to */
+	private int originX, originY;
+	
 	/**
 	 * Makes an AbstractionGrid using <code>internalGrid</code> as
 	 * its internal buffer
@@ -51,15 +54,26 @@ public class AbstractionGrid {
 	 * Makes an AbstractionGrid using the <code>cellSet</code>
 	 * of <code>textGrid</code>.
 	 * 
+	 * The AbstractionGrid only covers the bounds of the cellSet plus
+	 * a margin of one cell (within the bounds of textGrid), so its
+	 * size depends on the size of the set and not of the textGrid.
+	 * Its cell 0, 0 is the cell getOriginX(), getOriginY() of textGrid.
+	 * 
 	 * @param textGrid
 	 * @param cellSet
 	 */
 	public AbstractionGrid(TextGrid textGrid, CellSet cellSet){
-		this(textGrid.getWidth(), textGrid.getHeight());
-		/*this(cellSet.getWidth(), cellSet.getHeight());
-		
-		cellSet = new CellSet(cellSet);
-		cellSet.translate( - cellSet.getMinX(), - cellSet.getMinY());*/
+		if(cellSet.isEmpty()){
+			grid = new TextGrid(textGrid.getWidth() * 3, textGrid.getHeight() * 3);
+		} else {
+			originX = Math.max(0, cellSet.getMinX() - 1);
+			originY = Math.max(0, cellSet.getMinY() - 1);
+			int maxX = Math.min(textGrid.getWidth() - 1, cellSet.getMaxX() + 1);
+			int maxY = Math.min(textGrid.getHeight() - 1, cellSet.getMaxY() + 1);
+			grid = new TextGrid(
+					Math.max(0, maxX - originX + 1) * 3,
+					Math.max(0, maxY - originY + 1) * 3);
+		}
 		
 		if(DEBUG){
 			System.out.println("Making AbstractionGrid using buffer:");
@@ -72,32 +86,35 @@ public class AbstractionGrid {
 		while(it.hasNext()){
 			TextGrid.Cell cell = (TextGrid.Cell) it.next();
 			if(textGrid.isBlank(cell)) continue;
-			if(textGrid.isCross(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCross());
-			} else if(textGrid.isT(cell)){
-				set(cell.x, cell.y, AbstractCell.makeT());
-			} else if(textGrid.isK(cell)){
-				set(cell.x, cell.y, AbstractCell.makeK());
-			} else if(textGrid.isInverseT(cell)){
-				set(cell.x, cell.y, AbstractCell.makeInverseT());
-			} else if(textGrid.isInverseK(cell)){
-				set(cell.x, cell.y, AbstractCell.makeInverseK());
-			} else if(textGrid.isCorner1(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner1());
-			} else if(textGrid.isCorner2(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner2());
-			} else if(textGrid.isCorner3(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner3());
-			} else if(textGrid.isCorner4(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner4());
-			} else if(textGrid.isHorizontalLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeHorizontalLine());
-			} else if(textGrid.isVerticalLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeVerticalLine());
-			} else if(textGrid.isCrossOnLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCross());
-			} else if(textGrid.isStarOnLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeStar());
+			int type = textGrid.getCellType(cell.x, cell.y);
+			int x = cell.x - originX;
+			int y = cell.y - originY;
+			if((type & CellTypeMap.CROSS) != 0){
+				set(x, y, AbstractCell.makeCross());
+			} else if((type & CellTypeMap.T) != 0){
+				set(x, y, AbstractCell.makeT());
+			} else if((type & CellTypeMap.K) != 0){
+				set(x, y, AbstractCell.makeK());
+			} else if((type & CellTypeMap.INVERSE_T) != 0){
+				set(x, y, AbstractCell.makeInverseT());
+			} else if((type & CellTypeMap.INVERSE_K) != 0){
+				set(x, y, AbstractCell.makeInverseK());
+			} else if((type & CellTypeMap.CORNER_1) != 0){
+				set(x, y, AbstractCell.makeCorner1());
+			} else if((type & CellTypeMap.CORNER_2) != 0){
+				set(x, y, AbstractCell.makeCorner2());
+			} else if((type & CellTypeMap.CORNER_3) != 0){
+				set(x, y, AbstractCell.makeCorner3());
+			} else if((type & CellTypeMap.CORNER_4) != 0){
+				set(x, y, AbstractCell.makeCorner4());
+			} else if((type & CellTypeMap.HORIZONTAL_LINE) != 0){
+				set(x, y, AbstractCell.makeHorizontalLine());
+			} else if((type & CellTypeMap.VERTICAL_LINE) != 0){
+				set(x, y, AbstractCell.makeVerticalLine());
+			} else if((type & CellTypeMap.CROSS_ON_LINE) != 0){
+				set(x, y, AbstractCell.makeCross());
+			} else if((type & CellTypeMap.STAR_ON_LINE) != 0){
+				set(x, y, AbstractCell.makeStar());
 			}
 		}
 
@@ -128,6 +145,14 @@ public class AbstractionGrid {
 		return grid.getHeight() / 3;
 	}
 
+	public int getOriginX(){
+		return originX;
+	}
+
+	public int getOriginY(){
+		return originY;
+	}
+
 	public TextGrid getAsTextGrid(){
 		TextGrid result = new TextGrid(getWidth(), getHeight());
 		for(int y = 0; y < grid.getHeight(); y++){
@@ -146,6 +171,10 @@ public class AbstractionGrid {
 		return result;
 	}
 
+	/**
+	 * @return the distinct shapes of the grid, in the
+	 * coordinates of the original TextGrid
+	 */
 	public ArrayList<CellSet> getDistinctShapes(){
 		ArrayList<CellSet> result = new ArrayList<CellSet>();
 		
@@ -157,7 +186,9 @@ public class AbstractionGrid {
 			CellSet set = it.next();
 			AbstractionGrid temp = new AbstractionGrid(this.getWidth(), this.getHeight());
 			temp.fillCells(set);
-			result.add(temp.getAsTextGrid().getAllNonBlank());
+			CellSet shape = temp.getAsTextGrid().getAllNonBlank();
+			shape.translate(originX, originY);
+			result.add(shape);
 		}
 		
 		return result; 
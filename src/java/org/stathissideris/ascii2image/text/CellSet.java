@@ -20,13 +20,21 @@
 package org.stathissideris.ascii2image.text;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
+ * A set of cells, stored as a bitset over a window of rows and
+ * 64-cell wide words that grows to fit the cells added to it.
+ * The words are aligned to multiples of 64 on the x axis, so that
+ * the same cell is always stored in the same bit of a word, and
+ * the set operations between two sets work one word at a time.
+ * 
+ * The cells are iterated row by row, from left to right. The
+ * iterator returns new Cell objects, so changing them does not
+ * affect the set.
  * 
  * @author Efstathios Sideris
  */
@@ -41,44 +49,211 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	public static final int TYPE_HAS_CLOSED_AREA = 3;
 	public static final int TYPE_UNDETERMINED = 4;
 
-	Set<TextGrid.Cell> internalSet = new HashSet<TextGrid.Cell>();
+	private static final long[] NO_WORDS = new long[0];
+
+	/** The Cells returned by the set belong to this grid */
+	private static final TextGrid CELL_OWNER = new TextGrid();
+
+	/**
+	 * The bits of the window, row after row. Bit b of word w of
+	 * a row is the cell ((firstWord + w) * 64 + b, firstRow + row).
+	 */
+	private long[] words = NO_WORDS;
+	private int firstRow;
+	private int rowCount;
+	private int firstWord;
+	private int wordsPerRow;
+	private int size;
 	
 	private int type = TYPE_UNDETERMINED;
 	private boolean typeIsValid = false;
+	/** The grid and the hashCode() of the cells that type was found for */
+	private TextGrid typeGrid;
+	private int typeFingerprint;
 
-	private static final Object FAKE = new Object();
-	
 	public CellSet(){
 		
 	}
 	
 	public CellSet(CellSet other){
-		addAll(other);
+		words = other.words.clone();
+		firstRow = other.firstRow;
+		rowCount = other.rowCount;
+		firstWord = other.firstWord;
+		wordsPerRow = other.wordsPerRow;
+		size = other.size;
 	}
 	
 	public Iterator<TextGrid.Cell> iterator(){
-		return internalSet.iterator();
+		return new CellIterator();
 	}
 
+	/**
+	 * @return a Boolean, true if the cell was not already in the set
+	 */
 	public Object add(TextGrid.Cell cell){
-		return internalSet.add(cell);
+		return add(cell.x, cell.y);
+	}
+
+	public boolean add(int x, int y){
+		int wordX = x >> 6;
+		fitWindowTo(y, y, wordX, wordX);
+		int index = (y - firstRow) * wordsPerRow + wordX - firstWord;
+		long bit = 1L << x;
+		if((words[index] & bit) != 0) return false;
+		words[index] |= bit;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Adds the cells x1 to x2 (inclusive) of row y.
+	 */
+	void addRun(int x1, int x2, int y){
+		if(x1 > x2) return;
+		int firstRunWord = x1 >> 6;
+		int lastRunWord = x2 >> 6;
+		fitWindowTo(y, y, firstRunWord, lastRunWord);
+		int rowStart = (y - firstRow) * wordsPerRow - firstWord;
+		for(int w = firstRunWord; w <= lastRunWord; w++){
+			long mask = -1L;
+			if(w == firstRunWord) mask &= -1L << x1;
+			if(w == lastRunWord) mask &= -1L >>> (63 - (x2 & 63));
+			long added = mask & ~words[rowStart + w];
+			if(added != 0){
+				words[rowStart + w] |= added;
+				size += Long.bitCount(added);
+			}
+		}
 	}
 
 	public void addAll(CellSet set){
-		internalSet.addAll(set.internalSet);
+		if(set.size == 0) return;
+		fitWindowTo(set.firstRow, set.firstRow + set.rowCount - 1,
+				set.firstWord, set.firstWord + set.wordsPerRow - 1);
+		int count = 0;
+		for(int row = 0; row < set.rowCount; row++){
+			int from = row * set.wordsPerRow;
+			int to = (set.firstRow + row - firstRow) * wordsPerRow + set.firstWord - firstWord;
+			for(int w = 0; w < set.wordsPerRow; w++){
+				long added = set.words[from + w] & ~words[to + w];
+				if(added != 0){
+					words[to + w] |= added;
+					count += Long.bitCount(added);
+				}
+			}
+		}
+		size += count;
 	}
 	
 	void clear(){
-		internalSet.clear();
+		words = NO_WORDS;
+		firstRow = rowCount = firstWord = wordsPerRow = 0;
+		size = 0;
 	}
 	
 	public int size() {
-		return internalSet.size();
+		return size;
 	}
 	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * @return the leftmost cell of the top row of the set. Shapes are
+	 * traced from this cell, so their paths start at their top-left
+	 * corner.
+	 */
 	public TextGrid.Cell getFirst(){
-		//return internalSet.get(0);
-		return (TextGrid.Cell) internalSet.iterator().next();
+		return iterator().next();
+	}
+
+	/**
+	 * Makes the window big enough to contain the given rows and words,
+	 * leaving some room to grow in the directions it had to grow.
+	 */
+	private void fitWindowTo(int minRow, int maxRow, int minWord, int maxWord){
+		if(rowCount == 0){
+			words = new long[(maxRow - minRow + 1) * (maxWord - minWord + 1)];
+			firstRow = minRow;
+			rowCount = maxRow - minRow + 1;
+			firstWord = minWord;
+			wordsPerRow = maxWord - minWord + 1;
+			return;
+		}
+		int lastRow = firstRow + rowCount - 1;
+		int lastWord = firstWord + wordsPerRow - 1;
+		if(minRow >= firstRow && maxRow <= lastRow
+				&& minWord >= firstWord && maxWord <= lastWord) return;
+		
+		int newFirstRow = firstRow;
+		int newLastRow = lastRow;
+		int newFirstWord = firstWord;
+		int newLastWord = lastWord;
+		if(minRow < firstRow) newFirstRow = minRow - rowCount / 2;
+		if(maxRow > lastRow) newLastRow = maxRow + rowCount / 2;
+		if(minWord < firstWord) newFirstWord = minWord;
+		if(maxWord > lastWord) newLastWord = maxWord;
+		
+		int newWordsPerRow = newLastWord - newFirstWord + 1;
+		int newRowCount = newLastRow - newFirstRow + 1;
+		long[] newWords = new long[newRowCount * newWordsPerRow];
+		for(int row = 0; row < rowCount; row++){
+			System.arraycopy(words, row * wordsPerRow,
+					newWords, (firstRow + row - newFirstRow) * newWordsPerRow + firstWord - newFirstWord,
+					wordsPerRow);
+		}
+		words = newWords;
+		firstRow = newFirstRow;
+		rowCount = newRowCount;
+		firstWord = newFirstWord;
+		wordsPerRow = newWordsPerRow;
+	}
+
+	/**
+	 * @return the index in words of the word that contains
+	 * x, y, or -1 if the window does not contain it
+	 */
+	private int getWordIndex(int x, int y){
+		int row = y - firstRow;
+		int word = (x >> 6) - firstWord;
+		if(row < 0 || row >= rowCount || word < 0 || word >= wordsPerRow) return -1;
+		return row * wordsPerRow + word;
+	}
+
+	private class CellIterator implements Iterator<TextGrid.Cell> {
+		private int index = -1;
+		private long remaining = 0;
+		private int lastX, lastY;
+		private boolean canRemove = false;
+
+		public boolean hasNext() {
+			while(remaining == 0){
+				if(++index >= words.length) {
+					index = words.length;
+					return false;
+				}
+				remaining = words[index];
+			}
+			return true;
+		}
+
+		public TextGrid.Cell next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			int bit = Long.numberOfTrailingZeros(remaining);
+			remaining &= remaining - 1;
+			lastX = ((firstWord + index % wordsPerRow) << 6) + bit;
+			lastY = firstRow + index / wordsPerRow;
+			canRemove = true;
+			return CELL_OWNER.new Cell(lastX, lastY);
+		}
+
+		public void remove() {
+			if(!canRemove) throw new IllegalStateException();
+			canRemove = false;
+			CellSet.this.remove(lastX, lastY);
+		}
 	}
 	
 	public void printAsGrid(){
@@ -120,16 +295,8 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	 * @return
 	 */
 	public static CellSet copyCellSet(CellSet set) {
-		TextGrid grid = new TextGrid();
-		CellSet newSet = new CellSet();
-		
-		Iterator<TextGrid.Cell> it = set.iterator();
-		while (it.hasNext()) {
-			TextGrid.Cell cell = (TextGrid.Cell) it.next();
-			TextGrid.Cell newCell = grid.new Cell(cell);
-			newSet.add(newCell);
-		}
-		return newSet;
+		//the set does not hold on to any Cell objects
+		return new CellSet(set);
 	}
 
 	/*public BoundarySet(BoundarySet set) {
@@ -140,9 +307,16 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		}
 	}*/
 
+	/**
+	 * The type is remembered until the set is changed, or
+	 * it is asked for with a different grid.
+	 */
 	public int getType(TextGrid grid) {
-		if(typeIsValid) return type;
+		int fingerprint = hashCode();
+		if(typeIsValid && typeGrid == grid && typeFingerprint == fingerprint) return type;
 		typeIsValid = true;
+		typeGrid = grid;
+		typeFingerprint = fingerprint;
 		if(size() == 1) {
 			type = TYPE_OPEN;
 			return TYPE_OPEN;
@@ -181,15 +355,49 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	private int getTypeAccordingToTraceMethod(TextGrid grid) {
 		if(size() < 2) return TYPE_OPEN;
 		
-		TextGrid workGrid = TextGrid.makeSameSizeAs(grid);
+		TextGrid workGrid = grid.borrowScratchGrid();
 		grid.copyCellsTo(this, workGrid);
+		try {
+			return trace(grid, workGrid);
+		} finally {
+			//only the cells of this set were written to the scratch grid
+			for(int row = 0; row < rowCount; row++){
+				for(int w = 0; w < wordsPerRow; w++){
+					long word = words[row * wordsPerRow + w];
+					while(word != 0){
+						int x = ((firstWord + w) << 6) + Long.numberOfTrailingZeros(word);
+						workGrid.set(x, firstRow + row, ' ');
+						word &= word - 1;
+					}
+				}
+			}
+			grid.returnScratchGrid(workGrid);
+		}
+	}
 
+	/**
+	 * Traces the cells of this set, which are the only
+	 * non-blank cells of <code>workGrid</code>
+	 */
+	private int trace(TextGrid grid, TextGrid workGrid) {
 		//start with a line end if it exists or with a "random" cell if not
-		TextGrid.Cell start = null;
-		for(TextGrid.Cell cell : this)
-			if(workGrid.isLinesEnd(cell))
-				start = cell;
-		if(start == null) start = (TextGrid.Cell) getFirst();
+		int startX = 0, startY = 0;
+		boolean foundLinesEnd = false;
+		for(int row = 0; row < rowCount; row++){
+			for(int w = 0; w < wordsPerRow; w++){
+				long word = words[row * wordsPerRow + w];
+				while(word != 0){
+					int x = ((firstWord + w) << 6) + Long.numberOfTrailingZeros(word);
+					if(workGrid.isLinesEnd(x, firstRow + row)){
+						startX = x;
+						startY = firstRow + row;
+						foundLinesEnd = true;
+					}
+					word &= word - 1;
+				}
+			}
+		}
+		TextGrid.Cell start = foundLinesEnd ? find(startX, startY) : getFirst();
 		
 		if (DEBUG)
 			System.out.println("Tracing:\nStarting at "+start+" ("+grid.getCellTypeAsString(start)+")");
@@ -289,26 +497,36 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
 	public void translate(int dx, int dy){
 		typeIsValid = false;
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cCell = it.next();
-			cCell.x += dx;
-			cCell.y += dy;
-		}	
+		if(size == 0) return;
+		firstRow += dy;
+		if(dx % 64 == 0){
+			firstWord += dx / 64;
+			return;
+		}
+		CellSet translated = new CellSet();
+		for(TextGrid.Cell cell : this){
+			translated.add(cell.x + dx, cell.y);
+		}
+		words = translated.words;
+		firstRow = translated.firstRow;
+		rowCount = translated.rowCount;
+		firstWord = translated.firstWord;
+		wordsPerRow = translated.wordsPerRow;
 	}
 
 	public TextGrid.Cell find(TextGrid.Cell cell){
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cCell = it.next();
-			if(cCell.equals(cell)) return cCell;
-		}
-		return null;		
+		if(!contains(cell)) return null;
+		return CELL_OWNER.new Cell(cell.x, cell.y);
 	}
 
 	public boolean contains(TextGrid.Cell cell){
 		if(cell == null) return false;
-		return internalSet.contains(cell);
+		return contains(cell.x, cell.y);
+	}
+
+	public boolean contains(int x, int y){
+		int index = getWordIndex(x, y);
+		return index != -1 && (words[index] & (1L << x)) != 0;
 	}
 	
 //	public boolean contains(TextGrid.Cell cell){
@@ -326,21 +544,123 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	}
 
 	public boolean hasCommonCells(CellSet otherSet){
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(otherSet.contains(cell)) return true;
+		int minRow = Math.max(firstRow, otherSet.firstRow);
+		int maxRow = Math.min(firstRow + rowCount, otherSet.firstRow + otherSet.rowCount) - 1;
+		int minWord = Math.max(firstWord, otherSet.firstWord);
+		int maxWord = Math.min(firstWord + wordsPerRow, otherSet.firstWord + otherSet.wordsPerRow) - 1;
+		for(int row = minRow; row <= maxRow; row++){
+			int index = (row - firstRow) * wordsPerRow - firstWord;
+			int otherIndex = (row - otherSet.firstRow) * otherSet.wordsPerRow - otherSet.firstWord;
+			for(int word = minWord; word <= maxWord; word++){
+				if((words[index + word] & otherSet.words[otherIndex + word]) != 0) return true;
+			}
 		}
 		return false;
 	}
 
-	public TextGrid.Cell find(int x, int y){
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cCell = it.next();
-			if(cCell.x == x && cCell.y == y) return cCell;
+	/**
+	 * @return true if all the cells of <code>otherSet</code> are in this set
+	 */
+	public boolean containsAll(CellSet otherSet){
+		if(otherSet.size > size) return false;
+		for(int row = 0; row < otherSet.rowCount; row++){
+			int y = otherSet.firstRow + row;
+			for(int w = 0; w < otherSet.wordsPerRow; w++){
+				long otherWord = otherSet.words[row * otherSet.wordsPerRow + w];
+				if(otherWord == 0) continue;
+				int index = getWordIndex((otherSet.firstWord + w) << 6, y);
+				if(index == -1 || (otherWord & ~words[index]) != 0) return false;
+			}
 		}
-		return null;		
+		return true;
+	}
+
+	/**
+	 * Same as adding all the cells of <code>sets</code> to a new set,
+	 * cropping it to the rectangle 0, 0, maxX, maxY and comparing it
+	 * with this set, but without making the new set.
+	 *
+	 * @return true if the cells of <code>sets</code> within the rectangle
+	 * are exactly the cells of this set
+	 */
+	public boolean isUnionOf(List<CellSet> sets, int maxX, int maxY){
+		if(maxX < 0 || maxY < 0) return size == 0;
+
+		//this set must be covered by the others, and be within the rectangle
+		long total = 0;
+		for(CellSet set : sets) total += set.size;
+		if(total < size) return false;
+		for(int row = 0; row < rowCount; row++){
+			int y = firstRow + row;
+			for(int w = 0; w < wordsPerRow; w++){
+				long word = words[row * wordsPerRow + w];
+				if(word == 0) continue;
+				int x = (firstWord + w) << 6;
+				if(y < 0 || y > maxY || (word & ~getCropMask(x, 0, maxX)) != 0) return false;
+				for(CellSet set : sets){
+					int index = set.getWordIndex(x, y);
+					if(index != -1) word &= ~set.words[index];
+					if(word == 0) break;
+				}
+				if(word != 0) return false;
+			}
+		}
+
+		//and the others must not have any cells in the rectangle outside this set
+		for(CellSet set : sets){
+			for(int row = 0; row < set.rowCount; row++){
+				int y = set.firstRow + row;
+				if(y < 0 || y > maxY) continue;
+				for(int w = 0; w < set.wordsPerRow; w++){
+					long word = set.words[row * set.wordsPerRow + w];
+					if(word == 0) continue;
+					int x = (set.firstWord + w) << 6;
+					word &= getCropMask(x, 0, maxX);
+					if(word == 0) continue;
+					int index = getWordIndex(x, y);
+					if(index == -1 || (word & ~words[index]) != 0) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bits of the word that starts at x which
+	 * are within minX and maxX (inclusive)
+	 */
+	private static long getCropMask(int x, int minX, int maxX){
+		long mask = -1L;
+		if(minX > x) mask = (minX - x >= 64) ? 0 : mask & (-1L << (minX - x));
+		if(maxX < x + 63) mask = (maxX < x) ? 0 : mask & (-1L >>> (63 - (maxX - x)));
+		return mask;
+	}
+
+	/**
+	 * Removes all the cells that are not within the given rectangle (inclusive).
+	 */
+	public void crop(int minX, int minY, int maxX, int maxY){
+		typeIsValid = false;
+		int count = 0;
+		for(int row = 0; row < rowCount; row++){
+			int y = firstRow + row;
+			for(int w = 0; w < wordsPerRow; w++){
+				int index = row * wordsPerRow + w;
+				if(words[index] == 0) continue;
+				if(y < minY || y > maxY) {
+					words[index] = 0;
+					continue;
+				}
+				words[index] &= getCropMask((firstWord + w) << 6, minX, maxX);
+				count += Long.bitCount(words[index]);
+			}
+		}
+		size = count;
+	}
+
+	public TextGrid.Cell find(int x, int y){
+		if(!contains(x, y)) return null;
+		return CELL_OWNER.new Cell(x, y);
 	}
 	
 	public CellSet getFilledEquivalent(TextGrid textGrid){
@@ -348,27 +668,19 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		TextGrid grid = new TextGrid(getMaxX()+2, getMaxY()+2);
 		grid.fillCellsWith(this, '*');
 		
-		//find a cell that has a blank both on the east and the west
-		TextGrid.Cell cell = null;
-		boolean finished = false;
-		for(int y = 0; y < grid.getHeight() && !finished; y++){
-			for(int x = 0; x < grid.getWidth() && !finished; x++){
-				cell = grid.new Cell(x, y);
-				if(!grid.isBlank(cell)
-					 && grid.isBlank(cell.getEast())
-					 && grid.isBlank(cell.getWest())){
-					finished = true;
+		//find a cell that is not blank but has a blank both on the east
+		//and the west (cells out of the grid do not count as blank)
+		for(int y = 0; y < grid.getHeight(); y++){
+			for(int x = 0; x < grid.getWidth(); x++){
+				if(grid.get(x, y) != ' '
+					 && grid.get(x + 1, y) == ' '
+					 && grid.get(x - 1, y) == ' '){
+					grid.fillContinuousArea(x + 1, y, '*');
+					return grid.getAllNonBlank();
 				}
 			}
 		}
-		if(cell != null){
-			cell = cell.getEast();
-			if(grid.isOutOfBounds(cell)) return new CellSet(this);
-			grid.fillContinuousArea(cell, '*');
-			return grid.getAllNonBlank();
-		}
-		System.err.println("Unexpected error, cannot find the filled equivalent of CellSet");
-		return null;
+		return new CellSet(this);
 	}
 	
 	/**
@@ -405,20 +717,25 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	
 	public void appendSet(CellSet set){
 		typeIsValid = false;
-		Iterator<TextGrid.Cell> it = set.iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(find(cell) == null) add(cell);
-		}	
+		addAll(set);
 	}
 	
 	public void subtractSet(CellSet set){
 		typeIsValid = false;
-		Iterator<TextGrid.Cell> it = set.iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			TextGrid.Cell thisCell = find(cell);
-			if(thisCell != null) remove(thisCell);
+		int minRow = Math.max(firstRow, set.firstRow);
+		int maxRow = Math.min(firstRow + rowCount, set.firstRow + set.rowCount) - 1;
+		int minWord = Math.max(firstWord, set.firstWord);
+		int maxWord = Math.min(firstWord + wordsPerRow, set.firstWord + set.wordsPerRow) - 1;
+		for(int row = minRow; row <= maxRow; row++){
+			int index = (row - firstRow) * wordsPerRow - firstWord;
+			int otherIndex = (row - set.firstRow) * set.wordsPerRow - set.firstWord;
+			for(int word = minWord; word <= maxWord; word++){
+				long removed = words[index + word] & set.words[otherIndex + word];
+				if(removed != 0){
+					words[index + word] &= ~removed;
+					size -= Long.bitCount(removed);
+				}
+			}
 		}
 	}
 
@@ -431,76 +748,118 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		return getMaxY() - getMinY();
 	}
 	
+	/**
+	 * @return the largest x of the cells, or 0 if it is
+	 * negative or if the set is empty
+	 */
 	public int getMaxX(){
 		int result = 0;
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(cell.x > result) result = cell.x;
+		for(int w = wordsPerRow - 1; w >= 0; w--){
+			long column = 0;
+			for(int row = 0; row < rowCount; row++) column |= words[row * wordsPerRow + w];
+			if(column != 0){
+				return Math.max(result, ((firstWord + w) << 6) + 63 - Long.numberOfLeadingZeros(column));
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * @return the smallest x of the cells, or
+	 * Integer.MAX_VALUE if the set is empty
+	 */
 	public int getMinX(){
-		int result = Integer.MAX_VALUE;
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(cell.x < result) result = cell.x;
+		for(int w = 0; w < wordsPerRow; w++){
+			long column = 0;
+			for(int row = 0; row < rowCount; row++) column |= words[row * wordsPerRow + w];
+			if(column != 0){
+				return ((firstWord + w) << 6) + Long.numberOfTrailingZeros(column);
+			}
 		}
-		return result;
+		return Integer.MAX_VALUE;
 	}
 
-
+	/**
+	 * @return the largest y of the cells, or 0 if it is
+	 * negative or if the set is empty
+	 */
 	public int getMaxY(){
-		int result = 0;
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(cell.y > result) result = cell.y;
+		for(int row = rowCount - 1; row >= 0; row--){
+			if(!isRowEmpty(row)) return Math.max(0, firstRow + row);
 		}
-		return result;
+		return 0;
 	}
 
+	/**
+	 * @return the smallest y of the cells, or
+	 * Integer.MAX_VALUE if the set is empty
+	 */
 	public int getMinY(){
-		int result = Integer.MAX_VALUE;
-		Iterator<TextGrid.Cell> it = iterator();
-		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			if(cell.y < result) result = cell.y;
+		for(int row = 0; row < rowCount; row++){
+			if(!isRowEmpty(row)) return firstRow + row;
 		}
-		return result;
+		return Integer.MAX_VALUE;
+	}
+
+	private boolean isRowEmpty(int row){
+		for(int w = row * wordsPerRow; w < (row + 1) * wordsPerRow; w++){
+			if(words[w] != 0) return false;
+		}
+		return true;
 	}
 
 
+	/**
+	 * @return Boolean.TRUE if the cell was removed, null if it
+	 * was not in the set
+	 */
 	public Object remove(TextGrid.Cell cell){
 		typeIsValid = false;
-		cell = find(cell);
-		if(cell != null) return internalSet.remove(cell);
-		else return null;
+		if(cell == null) return null;
+		return remove(cell.x, cell.y) ? Boolean.TRUE : null;
+	}
+
+	private boolean remove(int x, int y){
+		int index = getWordIndex(x, y);
+		if(index == -1 || (words[index] & (1L << x)) == 0) return false;
+		words[index] &= ~(1L << x);
+		size--;
+		return true;
 	}
 
 	public boolean equals(Object o){
 		CellSet otherSet = (CellSet) o;
-		return internalSet.equals(otherSet.internalSet);
+		return size == otherSet.size && containsAll(otherSet);
+	}
+
+	public int hashCode(){
+		//depends only on the cells, not on the layout of the window
+		int result = size;
+		for(int row = 0; row < rowCount; row++){
+			for(int w = 0; w < wordsPerRow; w++){
+				long word = words[row * wordsPerRow + w];
+				if(word == 0) continue;
+				long h = (word ^ (word >>> 29)) * 0x9E3779B97F4A7C15L
+					+ (firstRow + row) * 0x632BE59BD9B4E019L
+					+ (firstWord + w) * 0x85157AF5L;
+				result += (int) (h ^ (h >>> 32));
+			}
+		}
+		return result;
 	}
 
 	
+	/**
+	 * @return the sets of <code>list</code> without the ones that are
+	 * equal to an earlier set, in their original order
+	 */
 	public static ArrayList<CellSet> removeDuplicateSets(ArrayList<CellSet> list) {
 		ArrayList<CellSet> uniqueSets = new ArrayList<CellSet>();
-
-		Iterator<CellSet> it = list.iterator();
-		while(it.hasNext()){
-			CellSet set = it.next();
-			boolean isOriginal = true;
-			Iterator<CellSet> uniquesIt = uniqueSets.iterator();
-			while(uniquesIt.hasNext()){
-				CellSet uniqueSet = uniquesIt.next();
-				if(set.equals(uniqueSet)){
-					isOriginal = false;
-				}
-			}
-			if(isOriginal) uniqueSets.add(set);
+		//hashCode() does not depend on the layout of the sets, so
+		//the full comparison only happens on hash collisions
+		HashSet<CellSet> seen = new HashSet<CellSet>();
+		for(CellSet set : list){
+			if(seen.add(set)) uniqueSets.add(set);
 		}
 		return uniqueSets;
 	}
@@ -658,30 +1017,30 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	}
 	
 	public CellSet makeScaledOneThirdEquivalent(){
-		TextGrid gridBig = this.makeIntoGrid();
-		gridBig.fillCellsWith(this, '*');
 		if (VERBOSE_DEBUG){
 			System.out.println("---> making ScaledOneThirdEquivalent of:");
-			gridBig.printDebug();
+			printAsGrid();
 		}
 
+		//as if drawn on a grid of this size, so the cells that fall
+		//outside it (and any negative cells) are dropped
+		int smallWidth = (getMaxX() + 2) / 3;
+		int smallHeight = (getMaxY() + 2) / 3;
 		
-		TextGrid gridSmall = new TextGrid((getMaxX() + 2) / 3, (getMaxY() + 2) / 3);
-		
-		
-		for(int y = 0; y < gridBig.getHeight(); y++){
-			for(int x = 0; x < gridBig.getWidth(); x++){
-				TextGrid.Cell cell = gridBig.new Cell(x, y);
-				if(!gridBig.isBlank(cell)) gridSmall.set(x/3, y/3, '*');
-			}
+		CellSet result = new CellSet();
+		for(TextGrid.Cell cell : this){
+			if(cell.x < 0 || cell.y < 0) continue;
+			int x = cell.x / 3;
+			int y = cell.y / 3;
+			if(x < smallWidth && y < smallHeight) result.add(x, y);
 		}
 		
 		if (VERBOSE_DEBUG){
-			System.out.println("---> made into grid:");
-			gridSmall.printDebug();
+			System.out.println("---> made into:");
+			result.printAsGrid();
 		}
 		
-		return gridSmall.getAllNonBlank();
+		return result;
 	}
 	
 }
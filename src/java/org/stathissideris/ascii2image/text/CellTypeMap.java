@@ -0,0 +1,265 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The classification of every cell of a TextGrid, as a combination
+ * of the flags below. Each flag corresponds to one of the predicates
+ * of TextGrid (CORNER_1 to isCorner1(), T to isT() etc.)
+ *
+ * All the patterns of the static GridPatternGroupS are compiled into
+ * a single classifier, so a cell is tested against all of them in one
+ * go. Cells are classified the first time they are looked up (or all
+ * at once with {@link #classifyAll()}) and the result is kept until
+ * the cell or one of its neighbours is changed through TextGrid.set().
+ *
+ * @author Efstathios Sideris
+ */
+public class CellTypeMap {
+
+	public static final int CORNER_1 = 1;
+	public static final int CORNER_2 = 1 << 1;
+	public static final int CORNER_3 = 1 << 2;
+	public static final int CORNER_4 = 1 << 3;
+	public static final int NORMAL_CORNER = 1 << 4;
+	public static final int ROUND_CORNER = 1 << 5;
+	public static final int CROSS = 1 << 6;
+	public static final int K = 1 << 7;
+	public static final int INVERSE_K = 1 << 8;
+	public static final int T = 1 << 9;
+	public static final int INVERSE_T = 1 << 10;
+	public static final int INTERSECTION = 1 << 11;
+	public static final int STUB = 1 << 12;
+	public static final int LINES_END = 1 << 13;
+	public static final int HORIZONTAL_LINES_END = 1 << 14;
+	public static final int VERTICAL_LINES_END = 1 << 15;
+	public static final int CROSS_ON_LINE = 1 << 16;
+	public static final int HORIZONTAL_CROSS_ON_LINE = 1 << 17;
+	public static final int VERTICAL_CROSS_ON_LINE = 1 << 18;
+	public static final int STAR_ON_LINE = 1 << 19;
+	public static final int HORIZONTAL_STAR_ON_LINE = 1 << 20;
+	public static final int VERTICAL_STAR_ON_LINE = 1 << 21;
+	public static final int LONE_DIAGONAL = 1 << 22;
+	public static final int HORIZONTAL_LINE = 1 << 23;
+	public static final int VERTICAL_LINE = 1 << 24;
+	public static final int BOUNDARY = 1 << 25;
+	public static final int ARROWHEAD = 1 << 26;
+
+	public static final int CORNER = CORNER_1 | CORNER_2 | CORNER_3 | CORNER_4;
+	public static final int LINE = HORIZONTAL_LINE | VERTICAL_LINE;
+	public static final int POINT = CORNER | INTERSECTION | STUB | LINES_END;
+
+	/** Set for the cells that have been classified */
+	private static final int CLASSIFIED = 1 << 30;
+
+	private static final GridPatternGroup[] groups = {
+		GridPatternGroup.corner1Criteria,
+		GridPatternGroup.corner2Criteria,
+		GridPatternGroup.corner3Criteria,
+		GridPatternGroup.corner4Criteria,
+		GridPatternGroup.normalCornerCriteria,
+		GridPatternGroup.roundCornerCriteria,
+		GridPatternGroup.crossCriteria,
+		GridPatternGroup.KCriteria,
+		GridPatternGroup.inverseKCriteria,
+		GridPatternGroup.TCriteria,
+		GridPatternGroup.inverseTCriteria,
+		GridPatternGroup.intersectionCriteria,
+		GridPatternGroup.stubCriteria,
+		GridPatternGroup.linesEndCriteria,
+		GridPatternGroup.horizontalLinesEndCriteria,
+		GridPatternGroup.verticalLinesEndCriteria,
+		GridPatternGroup.crossOnLineCriteria,
+		GridPatternGroup.horizontalCrossOnLineCriteria,
+		GridPatternGroup.verticalCrossOnLineCriteria,
+		GridPatternGroup.starOnLineCriteria,
+		GridPatternGroup.horizontalStarOnLineCriteria,
+		GridPatternGroup.verticalStarOnLineCriteria,
+		GridPatternGroup.loneDiagonalCriteria
+	};
+
+	private static final int[] groupFlags = {
+		CORNER_1, CORNER_2, CORNER_3, CORNER_4, NORMAL_CORNER, ROUND_CORNER,
+		CROSS, K, INVERSE_K, T, INVERSE_T, INTERSECTION,
+		STUB, LINES_END, HORIZONTAL_LINES_END, VERTICAL_LINES_END,
+		CROSS_ON_LINE, HORIZONTAL_CROSS_ON_LINE, VERTICAL_CROSS_ON_LINE,
+		STAR_ON_LINE, HORIZONTAL_STAR_ON_LINE, VERTICAL_STAR_ON_LINE,
+		LONE_DIAGONAL
+	};
+
+	private static volatile Classifier classifier;
+
+	private final TextGrid grid;
+	private final Classifier cellClassifier;
+
+	/** Indexed like the cells of the grid, see TextGrid.index() */
+	private final int[] types;
+
+	CellTypeMap(TextGrid grid){
+		this.grid = grid;
+		this.cellClassifier = getClassifier();
+		this.types = new int[grid.cells.length];
+	}
+
+	private CellTypeMap(TextGrid grid, CellTypeMap other){
+		this.grid = grid;
+		this.cellClassifier = other.cellClassifier;
+		this.types = other.types.clone();
+	}
+
+	/**
+	 * @return a copy of this map for <code>grid</code>, which
+	 * must have the same contents as the grid of this map
+	 */
+	CellTypeMap copyFor(TextGrid grid){
+		return new CellTypeMap(grid, this);
+	}
+
+	/**
+	 * Classifies all the cells of the grid in one pass.
+	 */
+	public void classifyAll(){
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				get(x, y);
+			}
+		}
+	}
+
+	/**
+	 * @return the flags of the cell x, y, which must be within the grid
+	 */
+	int get(int x, int y){
+		int index = grid.index(x, y);
+		int type = types[index];
+		if(type == 0){
+			type = cellClassifier.classify(grid, x, y) | CLASSIFIED;
+			types[index] = type;
+		}
+		return type;
+	}
+
+	/**
+	 * Forgets the classification of the cell x, y and its neighbours,
+	 * as it depends on their contents. The cell must be within the grid.
+	 */
+	void invalidate(int x, int y){
+		invalidateAt(grid.index(x, y));
+	}
+
+	/**
+	 * Same as invalidate(), for the cell at <code>index</code>
+	 * in the cells of the grid.
+	 */
+	void invalidateAt(int index){
+		int stride = grid.stride;
+		types[index - stride - 1] = 0;
+		types[index - stride] = 0;
+		types[index - stride + 1] = 0;
+		types[index - 1] = 0;
+		types[index] = 0;
+		types[index + 1] = 0;
+		types[index + stride - 1] = 0;
+		types[index + stride] = 0;
+		types[index + stride + 1] = 0;
+	}
+
+	/**
+	 * @return the flags of the cell x, y of <code>grid</code>, which
+	 * can be anywhere (the map is not used)
+	 */
+	static int classify(TextGrid grid, int x, int y){
+		return getClassifier().classify(grid, x, y);
+	}
+
+	private static Classifier getClassifier(){
+		Classifier result = classifier;
+		if(result == null || !result.isUpToDate()){
+			result = new Classifier();
+			classifier = result;
+		}
+		return result;
+	}
+
+	/**
+	 * The patterns of all the groups, compiled together
+	 */
+	private static class Classifier {
+		private final int[] modCounts = new int[groups.length];
+		private final CompiledPatternGroup patterns;
+		private final int[] patternFlags;
+
+		Classifier(){
+			//the composite groups share their patterns with the simple ones
+			IdentityHashMap<GridPattern, Integer> indices = new IdentityHashMap<GridPattern, Integer>();
+			ArrayList<GridPattern> union = new ArrayList<GridPattern>();
+			ArrayList<Integer> flags = new ArrayList<Integer>();
+			for(int i = 0; i < groups.length; i++){
+				modCounts[i] = groups[i].getModCount();
+				for(GridPattern pattern : groups[i]){
+					Integer index = indices.get(pattern);
+					if(index == null){
+						index = union.size();
+						indices.put(pattern, index);
+						union.add(pattern);
+						flags.add(0);
+					}
+					flags.set(index, flags.get(index) | groupFlags[i]);
+				}
+			}
+			patterns = new CompiledPatternGroup(union, 0);
+			patternFlags = new int[flags.size()];
+			for(int i = 0; i < patternFlags.length; i++) patternFlags[i] = flags.get(i);
+		}
+
+		boolean isUpToDate(){
+			for(int i = 0; i < groups.length; i++){
+				if(groups[i].getModCount() != modCounts[i]) return false;
+			}
+			return true;
+		}
+
+		int classify(TextGrid grid, int x, int y){
+			int type = patterns.getMatchedFlags(grid, x, y, patternFlags);
+			char c = grid.get(x, y);
+			if(TextGrid.isHorizontalLine(c)) type |= HORIZONTAL_LINE;
+			if(TextGrid.isVerticalLine(c)) type |= VERTICAL_LINE;
+
+			//see TextGrid.isBoundary()
+			if('+' == c || '\\' == c || '/' == c){
+				if((type & (INTERSECTION | CORNER | STUB | CROSS_ON_LINE)) != 0)
+					type |= BOUNDARY;
+			} else if(TextGrid.isBoundary(c) && (type & LONE_DIAGONAL) == 0){
+				type |= BOUNDARY;
+			}
+
+			if(c == '^' || c == '>' || c == '<'
+				|| ((c == 'v' || c == 'V') && TextGrid.isVerticalLine(grid.get(x, y - 1))))
+				type |= ARROWHEAD;
+
+			return type;
+		}
+	}
+}
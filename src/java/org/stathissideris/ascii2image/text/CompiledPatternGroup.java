@@ -0,0 +1,257 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A group of 3x3 GridPatternS compiled into lookup tables, so that
+ * the neighbourhood of a cell can be tested against all of them
+ * without building a sub-grid or running any regular expressions.
+ *
+ * Every token of the custom syntax matches exactly one character,
+ * so a pattern matches a neighbourhood if each of the 9 tokens
+ * matches the character at its position. For each position the
+ * table holds, per character class, a bitmask of the patterns
+ * whose token at that position accepts the class. A neighbourhood
+ * matches if the masks of its 9 characters have a bit in common.
+ *
+ * The tables are filled in by running the regular expression of
+ * each token against a representative of each character class,
+ * so the semantics are exactly those of GridPattern.isMatchedBy().
+ * Patterns that use standard syntax, or tokens that are not a
+ * single character (which only happens if a pattern contains
+ * regular expression syntax), are kept aside and tested with
+ * their regular expressions.
+ *
+ * @author Efstathios Sideris
+ */
+final class CompiledPatternGroup {
+
+	//classes 0 to 127 are the ASCII characters themselves
+	private static final int LINE_TERMINATOR_CLASS = 128;
+	private static final int OTHER_CLASS = 129;
+	private static final int CLASSES = 130;
+
+	/**
+	 * Characters of a surrogate pair are matched as one code point by
+	 * the regular expressions, so they cannot be matched one at a time.
+	 */
+	private static final int SURROGATE_CLASS = -1;
+
+	/** The modCount of the group at the time it was compiled */
+	final int modCount;
+
+	private final int words;
+	private final long[][] table = new long[9][];
+	private final GridPattern[] patterns;
+	private final GridPattern[] uncompiled;
+
+	//the indices in patterns of the compiled and uncompiled patterns
+	private final int[] compiledIndices;
+	private final int[] uncompiledIndices;
+
+	CompiledPatternGroup(List<GridPattern> patterns, int modCount){
+		this.modCount = modCount;
+		this.patterns = patterns.toArray(new GridPattern[patterns.size()]);
+
+		ArrayList<ArrayList<String>> compilable = new ArrayList<ArrayList<String>>();
+		ArrayList<Integer> compilableIndices = new ArrayList<Integer>();
+		ArrayList<Integer> otherIndices = new ArrayList<Integer>();
+		for(int index = 0; index < this.patterns.length; index++){
+			ArrayList<ArrayList<String>> rows = this.patterns[index].getRegExpTokens();
+			if(rows == null || rows.size() != 3) {
+				otherIndices.add(index);
+				continue;
+			}
+			ArrayList<String> tokens = new ArrayList<String>(9);
+			boolean matchesAnything = true;
+			boolean isCompilable = true;
+			for(ArrayList<String> row : rows){
+				//rows with more or less than 3 tokens never match a 3x3 grid
+				if(row.size() != 3) matchesAnything = false;
+				for(String token : row){
+					if(!isSingleCharacterToken(token)) isCompilable = false;
+				}
+				tokens.addAll(row);
+			}
+			if(!isCompilable) {
+				otherIndices.add(index);
+			} else if(matchesAnything) {
+				compilable.add(tokens);
+				compilableIndices.add(index);
+			}
+		}
+		compiledIndices = toArray(compilableIndices);
+		uncompiledIndices = toArray(otherIndices);
+		uncompiled = new GridPattern[uncompiledIndices.length];
+		for(int i = 0; i < uncompiled.length; i++){
+			uncompiled[i] = this.patterns[uncompiledIndices[i]];
+		}
+
+		words = Math.max(1, (compilable.size() + 63) / 64);
+		for(int position = 0; position < 9; position++){
+			table[position] = new long[CLASSES * words];
+		}
+		for(int i = 0; i < compilable.size(); i++){
+			ArrayList<String> tokens = compilable.get(i);
+			int word = i / 64;
+			long bit = 1L << (i % 64);
+			for(int position = 0; position < 9; position++){
+				Pattern token = Pattern.compile(tokens.get(position));
+				for(int c = 0; c < CLASSES; c++){
+					String representative = String.valueOf(getRepresentative(c));
+					if(token.matcher(representative).matches())
+						table[position][c * words + word] |= bit;
+				}
+			}
+		}
+	}
+
+	private static int[] toArray(ArrayList<Integer> list){
+		int[] result = new int[list.size()];
+		for(int i = 0; i < result.length; i++) result[i] = list.get(i);
+		return result;
+	}
+
+	private static boolean isSingleCharacterToken(String token){
+		if(token.length() == 0) return false;
+		char c = token.charAt(0);
+		if(token.length() == 1){
+			return c < 128 && "\\^$|?*+()[]{}".indexOf(c) == -1;
+		}
+		//multi-character tokens are the classes and escapes that
+		//the custom syntax is translated to
+		if(c != '[' && c != '\\') return false;
+		try {
+			Pattern.compile(token);
+		} catch (PatternSyntaxException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static char getRepresentative(int charClass){
+		if(charClass == LINE_TERMINATOR_CLASS) return '\u0085';
+		if(charClass == OTHER_CLASS) return '\u00e9';
+		return (char) charClass;
+	}
+
+	private static int getClass(char c){
+		if(c < 128) return c;
+		if(c == '\u0085' || c == '\u2028' || c == '\u2029') return LINE_TERMINATOR_CLASS;
+		if(Character.isSurrogate(c)) return SURROGATE_CLASS;
+		return OTHER_CLASS;
+	}
+
+	/**
+	 * @return true if the 3x3 neighbourhood of the cell x, y
+	 * of <code>grid</code> is matched by any of the patterns
+	 */
+	boolean isAnyMatchedBy(TextGrid grid, int x, int y){
+		return match(grid, x, y, null) != 0;
+	}
+
+	/**
+	 * @param patternFlags the flags of each pattern of the group,
+	 * in the order they were passed to the constructor
+	 * @return the bitwise OR of the flags of all the patterns that
+	 * match the 3x3 neighbourhood of the cell x, y of <code>grid</code>
+	 */
+	int getMatchedFlags(TextGrid grid, int x, int y, int[] patternFlags){
+		return match(grid, x, y, patternFlags);
+	}
+
+	/**
+	 * If patternFlags is null, returns 1 as soon as a pattern matches.
+	 */
+	private int match(TextGrid grid, int x, int y, int[] patternFlags){
+		int c0, c1, c2, c3, c4, c5, c6, c7, c8;
+		if(x >= 0 && y >= 0 && x < grid.getWidth() && y < grid.getHeight()){
+			//the border of the grid makes all the neighbours readable
+			char[] cells = grid.cells;
+			int stride = grid.stride;
+			int i = grid.index(x, y);
+			c0 = getClass(cells[i - stride - 1]);
+			c1 = getClass(cells[i - stride]);
+			c2 = getClass(cells[i - stride + 1]);
+			c3 = getClass(cells[i - 1]);
+			c4 = getClass(cells[i]);
+			c5 = getClass(cells[i + 1]);
+			c6 = getClass(cells[i + stride - 1]);
+			c7 = getClass(cells[i + stride]);
+			c8 = getClass(cells[i + stride + 1]);
+		} else {
+			c0 = getClass(grid.get(x - 1, y - 1));
+			c1 = getClass(grid.get(x, y - 1));
+			c2 = getClass(grid.get(x + 1, y - 1));
+			c3 = getClass(grid.get(x - 1, y));
+			c4 = getClass(grid.get(x, y));
+			c5 = getClass(grid.get(x + 1, y));
+			c6 = getClass(grid.get(x - 1, y + 1));
+			c7 = getClass(grid.get(x, y + 1));
+			c8 = getClass(grid.get(x + 1, y + 1));
+		}
+
+		if((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7 | c8) < 0)
+			return matchRegExps(grid, x, y, patternFlags, true);
+
+		int result = 0;
+		long[][] t = table;
+		for(int word = 0; word < words; word++){
+			long matches = t[0][c0 * words + word]
+				& t[1][c1 * words + word]
+				& t[2][c2 * words + word]
+				& t[3][c3 * words + word]
+				& t[4][c4 * words + word]
+				& t[5][c5 * words + word]
+				& t[6][c6 * words + word]
+				& t[7][c7 * words + word]
+				& t[8][c8 * words + word];
+			if(matches == 0) continue;
+			if(patternFlags == null) return 1;
+			while(matches != 0){
+				int bit = Long.numberOfTrailingZeros(matches);
+				result |= patternFlags[compiledIndices[word * 64 + bit]];
+				matches &= matches - 1;
+			}
+		}
+
+		if(uncompiled.length == 0) return result;
+		return result | matchRegExps(grid, x, y, patternFlags, false);
+	}
+
+	private int matchRegExps(TextGrid grid, int x, int y, int[] patternFlags, boolean allPatterns){
+		TextGrid subGrid = grid.getSubGrid(x - 1, y - 1, 3, 3);
+		int result = 0;
+		int count = allPatterns ? patterns.length : uncompiled.length;
+		for(int i = 0; i < count; i++){
+			int index = allPatterns ? i : uncompiledIndices[i];
+			if(patterns[index].isMatchedBy(subGrid)){
+				if(patternFlags == null) return 1;
+				result |= patternFlags[index];
+			}
+		}
+		return result;
+	}
+}
@@ -141,10 +141,35 @@ public class GridPattern extends TextGrid {
 		}
 	}
 	
+	/**
+	 * Returns the regular expressions that the rows of this pattern
+	 * are translated to, one per token of the custom syntax (every token
+	 * of a row is matched against one character of the corresponding row
+	 * of the grid). Returns null if the pattern uses standard syntax.
+	 */
+	ArrayList<ArrayList<String>> getRegExpTokens(){
+		if(usesStandardSyntax) return null;
+		ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>();
+		for(StringBuilder row : getRows()) {
+			result.add(makeRegExpTokens(row.toString()));
+		}
+		return result;
+	}
+	
 	private String makeRegExp(String pattern){
+		StringBuilder result = new StringBuilder();
+		for(String token : makeRegExpTokens(pattern)) {
+			result.append(token);
+		}
+		return result.toString();
+	}
+
+	private static ArrayList<String> makeRegExpTokens(String pattern){
+		ArrayList<String> tokens = new ArrayList<String>();
 		StringBuilder result = new StringBuilder();
 		int tokensHandled = 0;
 		for(int i = 0; i < pattern.length() && tokensHandled < 3; i++){
+			int tokenStart = result.length();
 			char c = pattern.charAt(i);
 			if(c == '[') {
 				result.append("[^|:]");
@@ -230,9 +255,10 @@ public class GridPattern extends TextGrid {
 					result.append("[^-=+\\/\\\\]");
 				}
 			} else result.append(String.valueOf(c));
+			tokens.add(result.substring(tokenStart));
 			tokensHandled++;
 		}
-		return result.toString();
+		return tokens;
 	}
 
 
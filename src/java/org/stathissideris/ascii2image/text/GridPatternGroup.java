@@ -44,6 +44,32 @@ public class GridPatternGroup extends ArrayList<GridPattern> {
 		}
 		return false;
 	}
+
+	private transient volatile CompiledPatternGroup compiled;
+
+	/**
+	 * Tests the 3x3 neighbourhood of the cell x, y of <code>grid</code>
+	 * against the patterns of this group. This is equivalent to calling
+	 * isAnyMatchedBy() with the testing sub-grid of the cell, but it
+	 * uses lookup tables that are compiled from the patterns the first
+	 * time it is called (and every time the group has been changed since),
+	 * so it does not allocate anything or run any regular expressions.
+	 * 
+	 * The patterns themselves should not be changed after they have
+	 * been added to the group.
+	 */
+	public boolean isAnyMatchedBy(TextGrid grid, int x, int y){
+		CompiledPatternGroup compiled = this.compiled;
+		if(compiled == null || compiled.modCount != modCount){
+			compiled = new CompiledPatternGroup(this, modCount);
+			this.compiled = compiled;
+		}
+		return compiled.isAnyMatchedBy(grid, x, y);
+	}
+
+	int getModCount(){
+		return modCount;
+	}
 	
 	
 	public void add(GridPattern... patterns) {
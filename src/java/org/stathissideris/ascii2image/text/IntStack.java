@@ -0,0 +1,62 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.Arrays;
+
+/**
+ * A growable stack of ints. It keeps its storage when emptied,
+ * so that it can be reused from one fill to the next.
+ * 
+ * @author Efstathios Sideris
+ */
+final class IntStack {
+	private int[] items;
+	private int size = 0;
+
+	IntStack(){
+		this(64);
+	}
+
+	IntStack(int initialCapacity){
+		items = new int[Math.max(1, initialCapacity)];
+	}
+
+	void push(int item){
+		if(size == items.length) items = Arrays.copyOf(items, size * 2);
+		items[size++] = item;
+	}
+
+	int pop(){
+		return items[--size];
+	}
+
+	boolean isEmpty(){
+		return size == 0;
+	}
+
+	int size(){
+		return size;
+	}
+
+	void clear(){
+		size = 0;
+	}
+}
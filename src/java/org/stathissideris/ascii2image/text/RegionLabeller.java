@@ -0,0 +1,188 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.ArrayList;
+
+/**
+ * Splits the blank cells of a grid (usually the buffer of an
+ * AbstractionGrid) into 4-connected regions, and finds the '*'
+ * cells that touch each region. This gives the same boundaries
+ * as calling TextGrid.findBoundariesExpandingFrom() once for
+ * each region, but in two passes over the grid.
+ *
+ * The first pass gives each blank cell the label of its west or
+ * north neighbour, or a new label if neither is blank, and records
+ * that the two labels are equivalent when both neighbours are
+ * blank. The second pass resolves every label to the smallest one
+ * of its region, which is the label of the first cell of the region
+ * in row-major order, and adds each '*' cell to the boundaries of
+ * the regions around it.
+ *
+ * Regions are numbered from 0 in the order of their first cell.
+ *
+ * @author Efstathios Sideris
+ */
+public class RegionLabeller {
+
+	private final TextGrid grid;
+
+	/** The region of each cell, indexed like the cells of the grid, or -1 */
+	private final int[] regions;
+	private int regionCount;
+
+	public RegionLabeller(TextGrid grid){
+		this.grid = grid;
+		this.regions = new int[grid.cells.length];
+		label();
+	}
+
+	private void label(){
+		char[] cells = grid.cells;
+		int stride = grid.stride;
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+
+		//label 0 is "no label", so that the border needs no special case
+		int[] labels = regions;
+		int[] parents = new int[64];
+		int labelCount = 1;
+
+		for(int y = 0; y < height; y++){
+			int index = grid.index(0, y);
+			for(int x = 0; x < width; x++, index++){
+				if(cells[index] != ' ') continue;
+				int west = labels[index - 1];
+				int north = labels[index - stride];
+				if(west == 0 && north == 0){
+					if(labelCount == parents.length) parents = grow(parents);
+					parents[labelCount] = labelCount;
+					labels[index] = labelCount++;
+				} else if(north == 0){
+					labels[index] = west;
+				} else if(west == 0 || west == north){
+					labels[index] = north;
+				} else {
+					labels[index] = union(parents, west, north);
+				}
+			}
+		}
+
+		//number the regions in the order of their smallest label
+		int[] regionOfLabel = new int[labelCount];
+		regionCount = 0;
+		for(int label = 1; label < labelCount; label++){
+			int root = find(parents, label);
+			if(root == label) regionOfLabel[label] = regionCount++;
+			else regionOfLabel[label] = regionOfLabel[root];
+		}
+
+		for(int i = 0; i < labels.length; i++){
+			int label = labels[i];
+			regions[i] = label == 0 ? -1 : regionOfLabel[label];
+		}
+	}
+
+	private static int[] grow(int[] array){
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int find(int[] parents, int label){
+		int root = label;
+		while(parents[root] != root) root = parents[root];
+		while(parents[label] != root){
+			int next = parents[label];
+			parents[label] = root;
+			label = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Merges the sets of the two labels, keeping the smaller
+	 * root as the root of the merged set.
+	 *
+	 * @return the root of the merged set
+	 */
+	private static int union(int[] parents, int label1, int label2){
+		int root1 = find(parents, label1);
+		int root2 = find(parents, label2);
+		if(root1 < root2){
+			parents[root2] = root1;
+			return root1;
+		}
+		parents[root1] = root2;
+		return root2;
+	}
+
+	public int getRegionCount(){
+		return regionCount;
+	}
+
+	/**
+	 * @return the region of the cell x, y, or -1 if
+	 * it is not blank or is out of the grid
+	 */
+	public int getRegion(int x, int y){
+		if(grid.isOutOfBounds(x, y)) return -1;
+		return regions[grid.index(x, y)];
+	}
+
+	/**
+	 * @return for each region that touches any '*' cells, the set
+	 * of these cells, in the order of the regions
+	 */
+	public ArrayList<CellSet> getBoundaries(){
+		CellSet[] boundaries = new CellSet[regionCount];
+
+		char[] cells = grid.cells;
+		int stride = grid.stride;
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		for(int y = 0; y < height; y++){
+			int index = grid.index(0, y);
+			for(int x = 0; x < width; x++, index++){
+				if(cells[index] != '*') continue;
+				int north = regions[index - stride];
+				int south = regions[index + stride];
+				int east = regions[index + 1];
+				int west = regions[index - 1];
+				addBoundary(boundaries, north, x, y);
+				if(south != north) addBoundary(boundaries, south, x, y);
+				if(east != north && east != south) addBoundary(boundaries, east, x, y);
+				if(west != north && west != south && west != east) addBoundary(boundaries, west, x, y);
+			}
+		}
+
+		ArrayList<CellSet> result = new ArrayList<CellSet>();
+		for(CellSet set : boundaries){
+			if(set != null) result.add(set);
+		}
+		return result;
+	}
+
+	private static void addBoundary(CellSet[] boundaries, int region, int x, int y){
+		if(region < 0) return;
+		if(boundaries[region] == null) boundaries[region] = new CellSet();
+		boundaries[region].add(x, y);
+	}
+}
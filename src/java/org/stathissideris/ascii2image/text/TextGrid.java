@@ -38,7 +38,28 @@ public class TextGrid {
 
 	private static final boolean DEBUG = false;
 
-	private ArrayList<StringBuilder> rows;
+	private int width;
+	private int height;
+
+	/**
+	 * The contents of the grid, row after row. Every row is surrounded
+	 * by a border of one cell that always contains 0 (the value that
+	 * get() returns for cells out of bounds), so that the neighbours
+	 * of any cell of the grid can be read without bounds checks.
+	 * 
+	 * Package-private so that the classifiers of this package can
+	 * read it directly, see {@link #index(int, int)}.
+	 */
+	char[] cells;
+	int stride;
+
+	private CellTypeMap typeMap;
+
+	/** Reused by the fills, see scanlineFill() */
+	private IntStack fillStack;
+
+	/** A blank grid of the same size, see borrowScratchGrid() */
+	private TextGrid scratchGrid;
 
 	private static char[] boundaries = {'/', '\\', '|', '-', '*', '=', ':'};
 	private static char[] undisputableBoundaries = {'|', '-', '*', '=', ':'};
@@ -105,83 +126,175 @@ public class TextGrid {
 
 
 	public TextGrid(){
-		rows = new ArrayList<StringBuilder>();
+		allocate(0, 0);
 	}
 	
 	public TextGrid(int width, int height){
-		String space = StringUtils.repeatString(" ", width);
-		rows = new ArrayList<StringBuilder>();
-		for(int i = 0; i < height; i++)
-			rows.add(new StringBuilder(space));
+		allocate(width, height);
+		clear();
 	}
 
 	public static TextGrid makeSameSizeAs(TextGrid grid){
 		return new TextGrid(grid.getWidth(), grid.getHeight());
 	}
 
+	/**
+	 * Lends out a blank grid of the same size as this one, so that the
+	 * work that needs one (like CellSet.getType()) does not have to make
+	 * a new one every time. If it is already lent out, a new one is made.
+	 *
+	 * The grid must be blank again when it is given back with
+	 * {@link #returnScratchGrid(TextGrid)}.
+	 */
+	synchronized TextGrid borrowScratchGrid(){
+		TextGrid result = scratchGrid;
+		scratchGrid = null;
+		if(result == null || result.width != width || result.height != height)
+			result = makeSameSizeAs(this);
+		return result;
+	}
+
+	synchronized void returnScratchGrid(TextGrid scratch){
+		scratchGrid = scratch;
+	}
+
 
 	public TextGrid(TextGrid otherGrid){
-		rows = new ArrayList<StringBuilder>();
-		for(StringBuilder row : otherGrid.getRows()) {
-			rows.add(new StringBuilder(row));
-		}		
+		width = otherGrid.width;
+		height = otherGrid.height;
+		stride = otherGrid.stride;
+		cells = otherGrid.cells.clone();
+		if(otherGrid.typeMap != null) typeMap = otherGrid.typeMap.copyFor(this);
+	}
+
+	private void allocate(int width, int height){
+		this.width = width;
+		this.height = height;
+		stride = width + 2;
+		cells = new char[stride * (height + 2)];
+		typeMap = null;
+	}
+
+	/**
+	 * @return the index of the cell x, y in <code>cells</code>.
+	 * Valid for -1 &lt;= x &lt;= width and -1 &lt;= y &lt;= height.
+	 */
+	final int index(int x, int y){
+		return (y + 1) * stride + x + 1;
+	}
+
+	/** @return the x of the cell at <code>index</code> in <code>cells</code> */
+	final int xOf(int index){
+		return index % stride - 1;
+	}
+
+	/** @return the y of the cell at <code>index</code> in <code>cells</code> */
+	final int yOf(int index){
+		return index / stride - 1;
 	}
 
 	public void clear(){
-		String blank = StringUtils.repeatString(" ", getWidth());
-		int height = getHeight();
-		rows.clear();
-		for(int i = 0; i < height; i++)
-			rows.add(new StringBuilder(blank)); 
+		typeMap = null;
+		for(int y = 0; y < height; y++){
+			int start = index(0, y);
+			Arrays.fill(cells, start, start + width, ' ');
+		}
 	}
 
 //	duplicated code due to lots of hits to this function
 	public char get(int x, int y){
-		if(x > getWidth() - 1
-			|| y > getHeight() - 1
+		if(x >= width
+			|| y >= height
 			|| x < 0
 			|| y < 0) return 0;
-		return rows.get(y).charAt(x);
+		return cells[(y + 1) * stride + x + 1];
 	}
 
 	//duplicated code due to lots of hits to this function
 	public char get(Cell cell){
-		if(cell.x > getWidth() - 1
-			|| cell.y > getHeight() - 1
-			|| cell.x < 0
-			|| cell.y < 0) return 0;
-		return rows.get(cell.y).charAt(cell.x);
+		int x = cell.x;
+		int y = cell.y;
+		if(x >= width
+			|| y >= height
+			|| x < 0
+			|| y < 0) return 0;
+		return cells[(y + 1) * stride + x + 1];
 	}
 	
+	/**
+	 * Returns a copy of row <code>y</code>. Changes to the
+	 * returned buffer are not reflected in the grid, use
+	 * {@link #setRow(int, StringBuilder)} for that.
+	 */
 	public StringBuilder getRow(int y){
-		return rows.get(y);
+		if(y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("Row "+y+" is out of bounds");
+		return new StringBuilder(width).append(cells, index(0, y), width);
+	}
+
+	/**
+	 * @return true if all the cells of row y are blank
+	 * (or if the row is out of the grid)
+	 */
+	public boolean isRowBlank(int y){
+		if(y < 0 || y >= height) return true;
+		for(int i = index(0, y), end = i + width; i < end; i++){
+			if(cells[i] != ' ') return false;
+		}
+		return true;
 	}
 
+	/**
+	 * Returns a copy of the area of the grid with its top left corner at
+	 * x, y. Any part of the area that lies outside the grid is filled
+	 * with 0, the same value {@link #get(int, int)} returns for such cells.
+	 */
 	public TextGrid getSubGrid(int x, int y, int width, int height){
 		TextGrid grid = new TextGrid(width, height);
-		for(int i = 0; i < height; i++){
-			grid.setRow(i, new StringBuilder(getRow(y + i).subSequence(x, x + width)));
+		if(x >= 0 && y >= 0 && x + width <= this.width && y + height <= this.height){
+			for(int i = 0; i < height; i++){
+				System.arraycopy(cells, index(x, y + i), grid.cells, grid.index(0, i), width);
+			}
+		} else {
+			for(int yi = 0; yi < height; yi++){
+				for(int xi = 0; xi < width; xi++){
+					grid.cells[grid.index(xi, yi)] = get(x + xi, y + yi);
+				}
+			}
 		}
 		return grid;
 	}
 
 	public TextGrid getTestingSubGrid(Cell cell){
-		return getSubGrid(cell.x - 1, cell.y - 1, 3, 3);
+		int x = cell.x;
+		int y = cell.y;
+		if(x < 0 || y < 0 || x >= width || y >= height)
+			return getSubGrid(x - 1, y - 1, 3, 3);
+		//thanks to the border, the 3x3 area around a cell of the
+		//grid is always within cells, and its parts outside the
+		//grid are already 0
+		TextGrid grid = new TextGrid(3, 3);
+		System.arraycopy(cells, index(x - 1, y - 1), grid.cells, grid.index(0, 0), 3);
+		System.arraycopy(cells, index(x - 1, y), grid.cells, grid.index(0, 1), 3);
+		System.arraycopy(cells, index(x - 1, y + 1), grid.cells, grid.index(0, 2), 3);
+		return grid;
 	}
 
 
-	public String getStringAt(int x, int y, int length){
-		return getStringAt(new Cell(x, y), length);
+	public String getStringAt(Cell cell, int length){
+		return getStringAt(cell.x, cell.y, length);
 	}
 
-	public String getStringAt(Cell cell, int length){
-		int x = cell.x;
-		int y = cell.y;
-		if(x > getWidth() - 1
-			|| y > getHeight() - 1
+	/**
+	 * @return the <code>length</code> characters starting at x, y, or
+	 * fewer if the row ends before that. Null if x, y is out of bounds.
+	 */
+	public String getStringAt(int x, int y, int length){
+		if(x >= width
+			|| y >= height
 			|| x < 0
 			|| y < 0) return null;
-		return rows.get(y).substring(x, x + length);		
+		return new String(cells, index(x, y), Math.min(length, width - x));
 	}
 
 	public char getNorthOf(int x, int y){ return get(x, y - 1); }
@@ -198,9 +311,15 @@ public class TextGrid {
 		writeStringTo(new Cell(x, y), str);
 	}
 
+	/**
+	 * Writes <code>str</code> starting at <code>cell</code>. Any part
+	 * of the string that does not fit in the row is dropped.
+	 */
 	public void writeStringTo(Cell cell, String str){
 		if(isOutOfBounds(cell)) return;
-		rows.get(cell.y).replace(cell.x, cell.x + str.length(), str);
+		typeMap = null;
+		int length = Math.min(str.length(), width - cell.x);
+		str.getChars(0, length, cells, index(cell.x, cell.y));
 	}
 
 	public void set(Cell cell, char c){
@@ -208,62 +327,92 @@ public class TextGrid {
 	}
 
 	public void set(int x, int y, char c){
-		if(x > getWidth() - 1 || y > getHeight() - 1) return;
-		StringBuilder row = rows.get(y);
-		row.setCharAt(x, c);
+		if(x >= width || y >= height || x < 0 || y < 0) return;
+		int index = (y + 1) * stride + x + 1;
+		if(typeMap != null && cells[index] != c) typeMap.invalidate(x, y);
+		cells[index] = c;
+	}
+
+	/**
+	 * Same as set(), for the cell at <code>index</code> in
+	 * <code>cells</code>, which must be within the grid.
+	 */
+	private void setAt(int index, char c){
+		if(typeMap != null && cells[index] != c) typeMap.invalidateAt(index);
+		cells[index] = c;
 	}
 	
 	public void setRow(int y, String row){
-		if(y > getHeight() || row.length() != getWidth())
+		if(y < 0 || y >= height || row.length() != width)
 			throw new IllegalArgumentException("setRow out of bounds or string wrong size");
-		rows.set(y, new StringBuilder(row));
+		typeMap = null;
+		row.getChars(0, width, cells, index(0, y));
 	}
 
 	public void setRow(int y, StringBuilder row){
-		if(y > getHeight() || row.length() != getWidth())
+		if(y < 0 || y >= height || row.length() != width)
 			throw new IllegalArgumentException("setRow out of bounds or string wrong size");
-		rows.set(y, row);
+		typeMap = null;
+		row.getChars(0, width, cells, index(0, y));
 	}
 	
 	public int getWidth(){
-		if(rows.size() == 0) return 0; //empty buffer
-		return rows.get(0).length();
+		return width;
+	}
+
+	/**
+	 * @return the classification of the cells of this grid, which is
+	 * kept up to date as the grid changes
+	 */
+	public CellTypeMap getCellTypeMap(){
+		if(typeMap == null) typeMap = new CellTypeMap(this);
+		return typeMap;
+	}
+
+	/**
+	 * @return the CellTypeMap flags of the cell x, y
+	 */
+	public int getCellType(int x, int y){
+		if(x >= width || y >= height || x < 0 || y < 0)
+			return CellTypeMap.classify(this, x, y);
+		return getCellTypeMap().get(x, y);
+	}
+
+	/**
+	 * @return true if the cell x, y has any of the CellTypeMap <code>flags</code>
+	 */
+	public boolean hasCellType(int x, int y, int flags){
+		return (getCellType(x, y) & flags) != 0;
 	}
 
 	public int getHeight(){
-		return rows.size();
+		return height;
 	}
 
 	public void printDebug(){
-		Iterator<StringBuilder> it = rows.iterator();
-		int i = 0;
 		System.out.println(
 			"    "
 			+StringUtils.repeatString("0123456789", (int) Math.floor(getWidth()/10)+1));
-		while(it.hasNext()){
-			String row = it.next().toString();
+		for(int i = 0; i < height; i++){
+			String row = new String(cells, index(0, i), width);
 			String index = new Integer(i).toString();
 			if(i < 10) index = " "+index;
 			System.out.println(index+" ("+row+")");
-			i++; 
 		}
 	}
 
 	public String getDebugString(){
 		StringBuilder buffer = new StringBuilder();
-		Iterator<StringBuilder> it = rows.iterator();
-		int i = 0;
 		buffer.append(
 			"    "
 			+StringUtils.repeatString("0123456789", (int) Math.floor(getWidth()/10)+1)+"\n");
-		while(it.hasNext()){
-			String row = it.next().toString();
+		for(int i = 0; i < height; i++){
+			String row = new String(cells, index(0, i), width);
 			String index = new Integer(i).toString();
 			if(i < 10) index = " "+index;
 			row = row.replaceAll("\n", "\\\\n");
 			row = row.replaceAll("\r", "\\\\r");
 			buffer.append(index+" ("+row+")\n");
-			i++; 
 		}
 		return buffer.toString();
 	}
@@ -329,20 +478,19 @@ public class TextGrid {
 		for(int yi = 0; yi < height; yi++){
 			for(int xi = 0; xi < width; xi++){
 				char c = get(xi, yi);
-				Cell cell = new Cell(xi, yi);
 				if(StringUtils.isOneOf(c, pointMarkers)
-						&& isStarOnLine(cell)){
+						&& hasCellType(xi, yi, CellTypeMap.STAR_ON_LINE)){
 					
 					boolean isOnHorizontalLine = false;
-					if(StringUtils.isOneOf(get(cell.getEast()), horizontalLines))
+					if(StringUtils.isOneOf(get(xi + 1, yi), horizontalLines))
 						isOnHorizontalLine = true;
-					if(StringUtils.isOneOf(get(cell.getWest()), horizontalLines))
+					if(StringUtils.isOneOf(get(xi - 1, yi), horizontalLines))
 						isOnHorizontalLine = true;
 
 					boolean isOnVerticalLine = false;
-					if(StringUtils.isOneOf(get(cell.getNorth()), verticalLines))
+					if(StringUtils.isOneOf(get(xi, yi - 1), verticalLines))
 						isOnVerticalLine = true;
-					if(StringUtils.isOneOf(get(cell.getSouth()), verticalLines))
+					if(StringUtils.isOneOf(get(xi, yi + 1), verticalLines))
 						isOnVerticalLine = true;
  
 					if(isOnHorizontalLine && isOnVerticalLine){
@@ -380,7 +528,7 @@ public class TextGrid {
 	public void replaceHumanColorCodes(){
 		int height = getHeight();
 		for(int y = 0; y < height; y++){
-			String row = rows.get(y).toString();
+			String row = getRow(y).toString();
 			Iterator it = humanColorCodes.keySet().iterator();
 			while(it.hasNext()){
 				String humanCode = (String) it.next();
@@ -389,10 +537,10 @@ public class TextGrid {
 					humanCode = "c" + humanCode;
 					hexCode = "c" + hexCode;
 					row = row.replaceAll(humanCode, hexCode);
-					rows.set(y, new StringBuilder(row)); //TODO: this is not the most efficient way to do this
-					row = rows.get(y).toString();
 				}
 			}
+			//the codes are all of the same length, so the row keeps its width
+			setRow(y, row);
 		}		
 	}
 
@@ -434,8 +582,7 @@ public class TextGrid {
 		int height = getHeight();
 		for(int y = 0; y < height; y++){
 			for(int x = 0; x < width; x++){
-				Cell cell = new Cell(x, y);
-				if(!isBlank(cell)) set.add(cell);
+				if(get(x, y) != ' ') set.add(x, y);
 			}
 		}
 		return set;
@@ -513,8 +660,11 @@ public class TextGrid {
 	 * @return
 	 */
 	public boolean hasEntryPoint(Cell cell, int entryPointId){
-		String result = "";
-		char c = get(cell);
+		return hasEntryPoint(cell.x, cell.y, entryPointId);
+	}
+
+	public boolean hasEntryPoint(int x, int y, int entryPointId){
+		char c = get(x, y);
 		if(entryPointId == 1) {
 			return StringUtils.isOneOf(c, entryPoints1);
 		
@@ -664,7 +814,7 @@ public class TextGrid {
 				Cell cell = new Cell(x, y);
 				char c = get(cell);
 				if(c == '{'){
-					String rowPart = rows.get(y).substring(x);
+					String rowPart = getStringAt(x, y, width - x);
 					Matcher matcher = tagPattern.matcher(rowPart);
 					if(matcher.find()){
 						String tagName = matcher.group(1);
@@ -725,25 +875,15 @@ public class TextGrid {
 	public static boolean isBoundary(char c){
 		return StringUtils.isOneOf(c, boundaries);
 	}
-	public boolean isBoundary(int x, int y){ return isBoundary(new Cell(x, y)); }
-	public boolean isBoundary(Cell cell){
-		char c = get(cell.x, cell.y);
-		if(0 == c) return false;
-		if('+' == c || '\\' == c || '/' == c){
-			System.out.print("");
-			if(
-			       isIntersection(cell) 
-				|| isCorner(cell)
-				|| isStub(cell) 
-				|| isCrossOnLine(cell)){
-				return true;
-			} else return false;
-		}
-		//return StringUtils.isOneOf(c, undisputableBoundaries);
-		if(StringUtils.isOneOf(c, boundaries) && !isLoneDiagonal(cell)){
-			return true;
-		}
-		return false;
+	public boolean isBoundary(Cell cell){ return isBoundary(cell.x, cell.y); }
+	/**
+	 * A +, \ or / is a boundary if it is an intersection, a corner,
+	 * a stub or a cross on a line. Any other boundary character is a
+	 * boundary unless it is a lone diagonal.
+	 * See CellTypeMap for the actual classification.
+	 */
+	public boolean isBoundary(int x, int y){
+		return hasCellType(x, y, CellTypeMap.BOUNDARY);
 	}
 
 	public boolean isLine(Cell cell){
@@ -771,7 +911,7 @@ public class TextGrid {
 	}
 
 	public boolean isLinesEnd(int x, int y){
-		return isLinesEnd(new Cell(x, y));
+		return hasCellType(x, y, CellTypeMap.LINES_END);
 	}
 	
 	/**
@@ -781,24 +921,20 @@ public class TextGrid {
 	 * @return
 	 */
 	public boolean isLinesEnd(Cell cell){
-		return matchesAny(cell, GridPatternGroup.linesEndCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.LINES_END);
 	}
 
 	public boolean isVerticalLinesEnd(Cell cell){
-		return matchesAny(cell, GridPatternGroup.verticalLinesEndCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.VERTICAL_LINES_END);
 	}
 
 	public boolean isHorizontalLinesEnd(Cell cell){
-		return matchesAny(cell, GridPatternGroup.horizontalLinesEndCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.HORIZONTAL_LINES_END);
 	}
 
 
 	public boolean isPointCell(Cell cell){
-		return (
-			isCorner(cell)
-			|| isIntersection(cell)
-			|| isStub(cell)
-			|| isLinesEnd(cell));
+		return hasCellType(cell.x, cell.y, CellTypeMap.POINT);
 	}
 
 
@@ -836,43 +972,40 @@ public class TextGrid {
 	 */
 
 	public boolean isStub(Cell cell){
-		return matchesAny(cell, GridPatternGroup.stubCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.STUB);
 	}
 
 	public boolean isCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.crossOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CROSS_ON_LINE);
 	}
 
 	public boolean isHorizontalCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.horizontalCrossOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.HORIZONTAL_CROSS_ON_LINE);
 	}
 
 	public boolean isVerticalCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.verticalCrossOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.VERTICAL_CROSS_ON_LINE);
 	}
 
 	public boolean isStarOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.starOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.STAR_ON_LINE);
 	}
 
 	public boolean isLoneDiagonal(Cell cell){
-		return matchesAny(cell, GridPatternGroup.loneDiagonalCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.LONE_DIAGONAL);
 	}
 
 
 	public boolean isHorizontalStarOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.horizontalStarOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.HORIZONTAL_STAR_ON_LINE);
 	}
 
 	public boolean isVerticalStarOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.verticalStarOnLineCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.VERTICAL_STAR_ON_LINE);
 	}
 
 	public boolean isArrowhead(Cell cell){
-		return (isNorthArrowhead(cell)
-				|| isSouthArrowhead(cell)
-				|| isWestArrowhead(cell)
-				|| isEastArrowhead(cell));
+		return hasCellType(cell.x, cell.y, CellTypeMap.ARROWHEAD);
 	}
 	
 	public boolean isNorthArrowhead(Cell cell){
@@ -1002,18 +1135,23 @@ public class TextGrid {
 	public CellSet followIntersection(Cell cell, Cell blocked){
 		if(!isIntersection(cell)) return null;
 		CellSet result = new CellSet();
-		Cell cN = cell.getNorth();
-		Cell cS = cell.getSouth();
-		Cell cE = cell.getEast();
-		Cell cW = cell.getWest();
-		if(hasEntryPoint(cN, 6)) result.add(cN);
-		if(hasEntryPoint(cS, 2)) result.add(cS);
-		if(hasEntryPoint(cE, 8)) result.add(cE);
-		if(hasEntryPoint(cW, 4)) result.add(cW);
-		if(result.contains(blocked)) result.remove(blocked);
+		int x = cell.x;
+		int y = cell.y;
+		if(hasEntryPoint(x, y - 1, 6)) addUnlessBlocked(result, x, y - 1, blocked);
+		if(hasEntryPoint(x, y + 1, 2)) addUnlessBlocked(result, x, y + 1, blocked);
+		if(hasEntryPoint(x + 1, y, 8)) addUnlessBlocked(result, x + 1, y, blocked);
+		if(hasEntryPoint(x - 1, y, 4)) addUnlessBlocked(result, x - 1, y, blocked);
 		return result;
 	}
 
+	/**
+	 * The follow methods work on coordinates rather than on the
+	 * neighbours of the cell, so that no CellS are created.
+	 */
+	private static void addUnlessBlocked(CellSet set, int x, int y, Cell blocked){
+		if(blocked == null || blocked.x != x || blocked.y != y) set.add(x, y);
+	}
+
 	/**
 	 * Returns the neighbours of a line-cell that are boundaries
 	 *  (0 to 2 cells are returned)
@@ -1022,26 +1160,26 @@ public class TextGrid {
 	 * @return null if the cell is not a line
 	 */
 	public CellSet followLine(Cell cell){
+		return followLine(cell, null);
+	}
+
+	public CellSet followLine(Cell cell, Cell blocked){
+		int x = cell.x;
+		int y = cell.y;
 		if(isHorizontalLine(cell)){
 			CellSet result = new CellSet();
-			if(isBoundary(cell.getEast())) result.add(cell.getEast());
-			if(isBoundary(cell.getWest())) result.add(cell.getWest());
+			if(isBoundary(x + 1, y)) addUnlessBlocked(result, x + 1, y, blocked);
+			if(isBoundary(x - 1, y)) addUnlessBlocked(result, x - 1, y, blocked);
 			return result;
 		} else if (isVerticalLine(cell)){
 			CellSet result = new CellSet();
-			if(isBoundary(cell.getNorth())) result.add(cell.getNorth());
-			if(isBoundary(cell.getSouth())) result.add(cell.getSouth());
+			if(isBoundary(x, y - 1)) addUnlessBlocked(result, x, y - 1, blocked);
+			if(isBoundary(x, y + 1)) addUnlessBlocked(result, x, y + 1, blocked);
 			return result;			
 		}
 		return null;
 	}
 
-	public CellSet followLine(Cell cell, Cell blocked){
-		CellSet nextCells = followLine(cell);
-		if(nextCells.contains(blocked)) nextCells.remove(blocked);
-		return nextCells;
-	}
-
 	public CellSet followCorner(Cell cell){
 		return followCorner(cell, null);
 	}
@@ -1061,8 +1199,8 @@ public class TextGrid {
 	public CellSet followCorner1(Cell cell, Cell blocked){
 		if(!isCorner1(cell)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-		if(!cell.getEast().equals(blocked)) result.add(cell.getEast());
+		addUnlessBlocked(result, cell.x, cell.y + 1, blocked);
+		addUnlessBlocked(result, cell.x + 1, cell.y, blocked);
 		return result;
 	}
 
@@ -1072,8 +1210,8 @@ public class TextGrid {
 	public CellSet followCorner2(Cell cell, Cell blocked){
 		if(!isCorner2(cell)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-		if(!cell.getWest().equals(blocked)) result.add(cell.getWest());
+		addUnlessBlocked(result, cell.x, cell.y + 1, blocked);
+		addUnlessBlocked(result, cell.x - 1, cell.y, blocked);
 		return result;
 	}
 
@@ -1083,8 +1221,8 @@ public class TextGrid {
 	public CellSet followCorner3(Cell cell, Cell blocked){
 		if(!isCorner3(cell)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-		if(!cell.getWest().equals(blocked)) result.add(cell.getWest());
+		addUnlessBlocked(result, cell.x, cell.y - 1, blocked);
+		addUnlessBlocked(result, cell.x - 1, cell.y, blocked);
 		return result;
 	}
 
@@ -1094,8 +1232,8 @@ public class TextGrid {
 	public CellSet followCorner4(Cell cell, Cell blocked){
 		if(!isCorner4(cell)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-		if(!cell.getEast().equals(blocked)) result.add(cell.getEast());
+		addUnlessBlocked(result, cell.x, cell.y - 1, blocked);
+		addUnlessBlocked(result, cell.x + 1, cell.y, blocked);
 		return result;
 	}
 
@@ -1106,11 +1244,12 @@ public class TextGrid {
 	public CellSet followStub(Cell cell, Cell blocked){
 		if(!isStub(cell)) return null;
 		CellSet result = new CellSet();
-		if(isBoundary(cell.getEast())) result.add(cell.getEast());
-		else if(isBoundary(cell.getWest())) result.add(cell.getWest());
-		else if(isBoundary(cell.getNorth())) result.add(cell.getNorth());
-		else if(isBoundary(cell.getSouth())) result.add(cell.getSouth());
-		if(result.contains(blocked)) result.remove(blocked);
+		int x = cell.x;
+		int y = cell.y;
+		if(isBoundary(x + 1, y)) addUnlessBlocked(result, x + 1, y, blocked);
+		else if(isBoundary(x - 1, y)) addUnlessBlocked(result, x - 1, y, blocked);
+		else if(isBoundary(x, y - 1)) addUnlessBlocked(result, x, y - 1, blocked);
+		else if(isBoundary(x, y + 1)) addUnlessBlocked(result, x, y + 1, blocked);
 		return result;
 	}
 	
@@ -1119,11 +1258,12 @@ public class TextGrid {
 	}
 	
 	public CellSet followCell(Cell cell, Cell blocked){
-		if(isIntersection(cell)) return followIntersection(cell, blocked);
-		if(isCorner(cell)) return followCorner(cell, blocked);
-		if(isLine(cell)) return followLine(cell, blocked);
-		if(isStub(cell)) return followStub(cell, blocked);
-		if(isCrossOnLine(cell)) return followCrossOnLine(cell, blocked);
+		int type = getCellType(cell.x, cell.y);
+		if((type & CellTypeMap.INTERSECTION) != 0) return followIntersection(cell, blocked);
+		if((type & CellTypeMap.CORNER) != 0) return followCorner(cell, blocked);
+		if((type & CellTypeMap.LINE) != 0) return followLine(cell, blocked);
+		if((type & CellTypeMap.STUB) != 0) return followStub(cell, blocked);
+		if((type & CellTypeMap.CROSS_ON_LINE) != 0) return followCrossOnLine(cell, blocked);
 		System.err.println("Ambiguous input at position "+cell+":");
 		TextGrid subGrid = getTestingSubGrid(cell);
 		subGrid.printDebug();
@@ -1149,13 +1289,12 @@ public class TextGrid {
 	public CellSet followCrossOnLine(Cell cell, Cell blocked){
 		CellSet result = new CellSet();
 		if(isHorizontalCrossOnLine(cell)){
-			result.add(cell.getEast());
-			result.add(cell.getWest());
+			addUnlessBlocked(result, cell.x + 1, cell.y, blocked);
+			addUnlessBlocked(result, cell.x - 1, cell.y, blocked);
 		} else if(isVerticalCrossOnLine(cell)){
-			result.add(cell.getNorth());
-			result.add(cell.getSouth());
+			addUnlessBlocked(result, cell.x, cell.y - 1, blocked);
+			addUnlessBlocked(result, cell.x, cell.y + 1, blocked);
 		}
-		if(result.contains(blocked)) result.remove(blocked);
 		return result;
 	}
 
@@ -1189,71 +1328,70 @@ public class TextGrid {
 		return isCorner(cell.x, cell.y);
 	}
 	public boolean isCorner(int x, int y){
-		return (isNormalCorner(x,y) || isRoundCorner(x,y));
+		return hasCellType(x, y, CellTypeMap.CORNER);
 	}
 
 
 	public boolean matchesAny(Cell cell, GridPatternGroup criteria){
-		TextGrid subGrid = getTestingSubGrid(cell);
-		return subGrid.matchesAny(criteria);
+		return criteria.isAnyMatchedBy(this, cell.x, cell.y);
 	}
 	
 	public boolean isCorner1(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner1Criteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CORNER_1);
 	}
 
 	public boolean isCorner2(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner2Criteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CORNER_2);
 	}
 
 	public boolean isCorner3(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner3Criteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CORNER_3);
 	}
 
 	public boolean isCorner4(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner4Criteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CORNER_4);
 	}
 
 	public boolean isCross(Cell cell){
-		return matchesAny(cell, GridPatternGroup.crossCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.CROSS);
 	}
 
 	public boolean isK(Cell cell){
-		return matchesAny(cell, GridPatternGroup.KCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.K);
 	}
 
 	public boolean isInverseK(Cell cell){
-		return matchesAny(cell, GridPatternGroup.inverseKCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.INVERSE_K);
 	}
 
 	public boolean isT(Cell cell){
-		return matchesAny(cell, GridPatternGroup.TCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.T);
 	}
 
 	public boolean isInverseT(Cell cell){
-		return matchesAny(cell, GridPatternGroup.inverseTCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.INVERSE_T);
 	}
 
 	public boolean isNormalCorner(Cell cell){
-		return matchesAny(cell, GridPatternGroup.normalCornerCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.NORMAL_CORNER);
 	}
 	public boolean isNormalCorner(int x, int y){
-		return isNormalCorner(new Cell(x, y));
+		return hasCellType(x, y, CellTypeMap.NORMAL_CORNER);
 	}
 
 	public boolean isRoundCorner(Cell cell){
-		return matchesAny(cell, GridPatternGroup.roundCornerCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.ROUND_CORNER);
 	}
 
 	public boolean isRoundCorner(int x, int y){
-		return isRoundCorner(new Cell(x, y));
+		return hasCellType(x, y, CellTypeMap.ROUND_CORNER);
 	}
 
 	public boolean isIntersection(Cell cell){
-		return matchesAny(cell, GridPatternGroup.intersectionCriteria);
+		return hasCellType(cell.x, cell.y, CellTypeMap.INTERSECTION);
 	}
 	public boolean isIntersection(int x, int y){
-		return isIntersection(new Cell(x, y));
+		return hasCellType(x, y, CellTypeMap.INTERSECTION);
 	}
 
 	public void copyCellsTo(CellSet cells, TextGrid grid){
@@ -1270,13 +1408,8 @@ public class TextGrid {
 			){
 			return false;
 		}
-		int height = grid.getHeight();
-		for(int i = 0; i < height; i++){
-			String row1 = this.getRow(i).toString();
-			String row2 = grid.getRow(i).toString();
-			if(!row1.equals(row2)) return false;
-		}
-		return true;
+		//the borders are always 0, so they can be compared too
+		return Arrays.equals(cells, grid.cells);
 	}
 	
 	/**
@@ -1317,72 +1450,13 @@ public class TextGrid {
 
 	public CellSet fillContinuousArea(Cell cell, char c){
 		if(isOutOfBounds(cell)) throw new IllegalArgumentException("Attempted to fill area out of bounds: "+cell);
-		return seedFillOld(cell, c);
-	}
-
-	private CellSet seedFill(Cell seed, char newChar){
 		CellSet cellsFilled = new CellSet();
-		char oldChar = get(seed);
-		
-		if(oldChar == newChar) return cellsFilled;
-		if(isOutOfBounds(seed)) return cellsFilled;
-
-		Stack<Cell> stack = new Stack<Cell>();
-
-		stack.push(seed);
-		
-		while(!stack.isEmpty()){
-			Cell cell = (Cell) stack.pop();
-			
-			//set(cell, newChar);
-			cellsFilled.add(cell);
-
-			Cell nCell = cell.getNorth();
-			Cell sCell = cell.getSouth();
-			Cell eCell = cell.getEast();
-			Cell wCell = cell.getWest();
-			
-			if(get(nCell) == oldChar && !cellsFilled.contains(nCell)) stack.push(nCell);
-			if(get(sCell) == oldChar && !cellsFilled.contains(sCell)) stack.push(sCell);
-			if(get(eCell) == oldChar && !cellsFilled.contains(eCell)) stack.push(eCell);
-			if(get(wCell) == oldChar && !cellsFilled.contains(wCell)) stack.push(wCell);
-		}
-		
-		return cellsFilled;
-	}
-
-	private CellSet seedFillOld(Cell seed, char newChar){
-		CellSet cellsFilled = new CellSet();
-		char oldChar = get(seed);
-		
-		if(oldChar == newChar) return cellsFilled;
-		if(isOutOfBounds(seed)) return cellsFilled;
-
-		Stack<Cell> stack = new Stack<Cell>();
-
-		stack.push(seed);
-		
-		while(!stack.isEmpty()){
-			Cell cell = (Cell) stack.pop();
-			
-			set(cell, newChar);
-			cellsFilled.add(cell);
-
-			Cell nCell = cell.getNorth();
-			Cell sCell = cell.getSouth();
-			Cell eCell = cell.getEast();
-			Cell wCell = cell.getWest();
-			
-			if(get(nCell) == oldChar) stack.push(nCell);
-			if(get(sCell) == oldChar) stack.push(sCell);
-			if(get(eCell) == oldChar) stack.push(eCell);
-			if(get(wCell) == oldChar) stack.push(wCell);
-		}
-		
+		char oldChar = get(cell);
+		if(oldChar == c || oldChar == 0) return cellsFilled;
+		scanlineFill(index(cell.x, cell.y), oldChar, c, cellsFilled, null);
 		return cellsFilled;
 	}
 
-
 	/**
 	 * 
 	 * Locates and returns the '*' boundaries that we would
@@ -1398,95 +1472,78 @@ public class TextGrid {
 		if(isOutOfBounds(seed)) return boundaries;
 
 		char newChar = 1; //TODO: kludge
+		if(oldChar == newChar || oldChar == 0) return boundaries;
 
-		Stack<Cell> stack = new Stack<Cell>();
+		scanlineFill(index(seed.x, seed.y), oldChar, newChar, null, boundaries);
+		
+		return boundaries;
+	}
 
-		stack.push(seed);
+	/**
+	 * Replaces <code>oldChar</code> with <code>newChar</code> in the
+	 * 4-connected area of <code>oldChar</code> cells that contains the
+	 * cell at <code>seedIndex</code> (an index in <code>cells</code>).
+	 * 
+	 * The area is filled a horizontal run of cells at a time: the stack
+	 * holds one cell of every run that is still to be filled, and the
+	 * rows above and below each filled run are scanned for more runs.
+	 * The zero border of the grid stops the fill, so oldChar must not
+	 * be 0 (and it must differ from newChar).
+	 * 
+	 * @param filled if not null, the filled cells are added to it
+	 * @param boundaries if not null, the '*' cells next to the area
+	 * are added to it
+	 */
+	private void scanlineFill(int seedIndex, char oldChar, char newChar, CellSet filled, CellSet boundaries){
+		IntStack stack = fillStack;
+		if(stack == null) stack = fillStack = new IntStack();
+		stack.clear();
+		stack.push(seedIndex);
 		
 		while(!stack.isEmpty()){
-			Cell cell = (Cell) stack.pop();
-			
-			set(cell, newChar);
+			int index = stack.pop();
+			if(cells[index] != oldChar) continue; //filled since it was pushed
 
-			Cell nCell = cell.getNorth();
-			Cell sCell = cell.getSouth();
-			Cell eCell = cell.getEast();
-			Cell wCell = cell.getWest();
-			
-			if(get(nCell) == oldChar) stack.push(nCell);
-			else if(get(nCell) == '*') boundaries.add(nCell);
-			
-			if(get(sCell) == oldChar) stack.push(sCell);
-			else if(get(sCell) == '*') boundaries.add(sCell);
+			int left = index;
+			while(cells[left - 1] == oldChar) left--;
+			int right = index;
+			while(cells[right + 1] == oldChar) right++;
+
+			for(int i = left; i <= right; i++) setAt(i, newChar);
 			
-			if(get(eCell) == oldChar) stack.push(eCell);
-			else if(get(eCell) == '*') boundaries.add(eCell);
+			if(filled != null){
+				int x = xOf(left);
+				filled.addRun(x, x + right - left, yOf(left));
+			}
+			if(boundaries != null){
+				addIfBoundary(boundaries, left - 1);
+				addIfBoundary(boundaries, right + 1);
+			}
 			
-			if(get(wCell) == oldChar) stack.push(wCell);
-			else if(get(wCell) == '*') boundaries.add(wCell);
+			scanRow(stack, left - stride, right - stride, oldChar, boundaries);
+			scanRow(stack, left + stride, right + stride, oldChar, boundaries);
 		}
-		
-		return boundaries;
 	}
 	
-	
-	//TODO: incomplete method seedFillLine()
-	private CellSet seedFillLine(Cell cell, char newChar){
-		CellSet cellsFilled = new CellSet();
-		
-		Stack stack = new Stack();
-		
-		char oldChar = get(cell);
-		
-		if(oldChar == newChar) return cellsFilled;
-		if(isOutOfBounds(cell)) return cellsFilled;
-		
-		stack.push(new LineSegment(cell.x, cell.x, cell.y, 1));
-		stack.push(new LineSegment(cell.x, cell.x, cell.y + 1, -1));
-		
-		int left;
-		while(!stack.isEmpty()){
-			LineSegment segment = (LineSegment) stack.pop();
-			int x;
-			//expand to the left
-			for(
-					x = segment.x1;
-					x >= 0 && get(x, segment.y) == oldChar;
-					--x){
-				set(x, segment.y, newChar);
-				cellsFilled.add(new Cell(x, segment.y));
-			}
-			
-			left = cell.getEast().x;
-			boolean skip = (x > segment.x1)? true : false; 
-
-			if(left < segment.x1){ //leak on left?
-				//TODO: i think the first param should be x
-				stack.push(
-				        //new LineSegment(segment.y, left, segment.x1 - 1, -segment.dy));
-				        new LineSegment(x, left, segment.y - 1, -segment.dy));
+	/**
+	 * Pushes the first cell of every run of <code>oldChar</code> cells
+	 * between the indices <code>from</code> and <code>to</code>.
+	 */
+	private void scanRow(IntStack stack, int from, int to, char oldChar, CellSet boundaries){
+		boolean inRun = false;
+		for(int i = from; i <= to; i++){
+			if(cells[i] == oldChar){
+				if(!inRun) stack.push(i);
+				inRun = true;
+			} else {
+				inRun = false;
+				if(boundaries != null) addIfBoundary(boundaries, i);
 			}
-
-			x = segment.x1 + 1;
-			do {
-			    if(!skip) {
-			       	for( ; x < getWidth() && get(x, segment.y) == oldChar; ++x){
-			       	    set(x, segment.y, newChar);
-			       	    cellsFilled.add(new Cell(x, segment.y));
-			       	}
-					
-			       	stack.push(new LineSegment(left, x - 1, segment.y, segment.dy));
-				   	if(x > segment.x2 + 1) //leak on right?
-			        stack.push(new LineSegment(segment.x2 + 1, x - 1, segment.y, -segment.dy));
-			    }
-				skip = false; //skip only once
-				
-				for(++x; x <= segment.x2 && get(x, segment.y) != oldChar; ++x){;}
-				left = x;
-			} while( x < segment.x2);
 		}
-
-		return cellsFilled;
+	}
+	
+	private void addIfBoundary(CellSet boundaries, int index){
+		if(cells[index] == '*') boundaries.add(xOf(index), yOf(index));
 	}
 	
 	public boolean cellContainsDashedLineChar(Cell cell){
@@ -1537,10 +1594,10 @@ public class TextGrid {
 			StringBuilder row = lines.get(i);
 			if(!StringUtils.isBlank(row.toString())) done = true;
 		}
-		rows = new ArrayList<StringBuilder>(lines.subList(0, i + 2));
+		ArrayList<StringBuilder> rows = new ArrayList<StringBuilder>(lines.subList(0, i + 2));
 
-		if(options != null) fixTabs(options.getTabSize());
-		else fixTabs(options.DEFAULT_TAB_SIZE);
+		if(options != null) fixTabs(rows, options.getTabSize());
+		else fixTabs(rows, options.DEFAULT_TAB_SIZE);
 
 
 		// make all lines of equal length
@@ -1596,7 +1653,11 @@ public class TextGrid {
 		//TODO: make the following depend on blankBorderSize
 		newRows.add(topBottomRow);
 		newRows.add(topBottomRow);
-		rows = newRows;
+
+		allocate(maxLength + blankBorderSize * 2, newRows.size());
+		for(int y = 0; y < newRows.size(); y++){
+			setRow(y, newRows.get(y));
+		}
 		
 		replaceBullets();
 		replaceHumanColorCodes();
@@ -1604,7 +1665,7 @@ public class TextGrid {
 		return true;
 	}
 	
-	private void fixTabs(int tabSize){
+	private static void fixTabs(ArrayList<StringBuilder> rows, int tabSize){
 
 		int rowIndex = 0;
 		Iterator<StringBuilder> it = rows.iterator();
@@ -1633,10 +1694,14 @@ public class TextGrid {
 	}
 	
 	/**
-	 * @return
+	 * @return a copy of the rows of the grid
 	 */
 	protected ArrayList<StringBuilder> getRows() {
-		return rows;
+		ArrayList<StringBuilder> result = new ArrayList<StringBuilder>(height);
+		for(int y = 0; y < height; y++){
+			result.add(getRow(y));
+		}
+		return result;
 	}
 	
 	public class CellColorPair{
@@ -1693,10 +1758,10 @@ public class TextGrid {
 		public CellSet getNeighbours4(){
 			CellSet result = new CellSet();
 
-			result.add(getNorth());
-			result.add(getSouth());
-			result.add(getWest());
-			result.add(getEast());
+			result.add(x, y - 1);
+			result.add(x, y + 1);
+			result.add(x - 1, y);
+			result.add(x + 1, y);
 
 			return result;
 		}
@@ -1704,15 +1769,15 @@ public class TextGrid {
 		public CellSet getNeighbours8(){
 			CellSet result = new CellSet();
 
-			result.add(getNorth());
-			result.add(getSouth());
-			result.add(getWest());
-			result.add(getEast());
+			result.add(x, y - 1);
+			result.add(x, y + 1);
+			result.add(x - 1, y);
+			result.add(x + 1, y);
 
-			result.add(getNW());
-			result.add(getNE());
-			result.add(getSW());
-			result.add(getSE());
+			result.add(x - 1, y - 1);
+			result.add(x + 1, y - 1);
+			result.add(x - 1, y + 1);
+			result.add(x + 1, y + 1);
 
 			return result;
 		}
@@ -1772,15 +1837,5 @@ public class TextGrid {
 		}
 		
 	}
-
-	private class LineSegment{
-		int x1, x2, y, dy;
-		public LineSegment(int x1, int x2, int y, int dy){
-			this.x1 = x1;
-			this.x2 = x2;
-			this.y = y;
-			this.dy = dy;
-		}
-	}
 }
 
@@ -0,0 +1,238 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class BitmapRendererTest {
+
+	private static final String[] FILES = {
+		"art1.txt", "art10.txt", "logo.txt", "ditaa_bug.txt"
+	};
+
+	@Test public void testSameImageOnPool() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for(String filename : FILES){
+				for(int variant = 0; variant < 3; variant++){
+					ConversionOptions options = new ConversionOptions();
+					if(variant == 1) options.renderingOptions.setBackgroundColor(new Color(0, 0, 0, 0));
+					if(variant == 2) {
+						options.renderingOptions.setAntialias(false);
+						options.renderingOptions.setDropShadows(false);
+					}
+					BufferedImage expected = render(filename, options);
+					options.renderingOptions.setRenderingPool(pool);
+					assertSameImage(filename, expected, render(filename, options));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The shadows of the shapes are stamped from masks and blurs that
+	 * are kept for the next time, and should be the same as filling
+	 * and blurring each shadow where it is
+	 */
+	@Test public void testSameImageFromSprites() throws IOException {
+		for(String filename : FILES){
+			for(float scale : new float[] {1, 2.5f}){
+				ConversionOptions options = new ConversionOptions();
+				options.renderingOptions.setScale(scale);
+				//sprites are kept for each background, so none of them
+				//were made by the other tests
+				options.renderingOptions.setBackgroundColor(new Color(250, 251, 252));
+				options.renderingOptions.setUseShadowSprites(false);
+				BufferedImage expected = render(filename, options);
+				options.renderingOptions.setUseShadowSprites(true);
+				//made the first time, kept the second time
+				assertSameImage(filename, expected, render(filename, options));
+				assertSameImage(filename, expected, render(filename, options));
+			}
+		}
+	}
+
+	/**
+	 * The PNG is rendered a band of rows at a time, with a palette if
+	 * it is asked for and the image has few enough colours, and
+	 * compressed on the pool if there is one
+	 */
+	@Test public void testSameImageAsPNG() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		File shapeFile = makeWidePNG();
+		try {
+			for(int variant = 0; variant < 4; variant++){
+				ConversionOptions options = new ConversionOptions();
+				if(variant == 1) {
+					options.renderingOptions.setBackgroundColor(new Color(0, 0, 0, 0));
+					options.renderingOptions.setUsePNGPalette(true);
+				}
+				if(variant == 2) {
+					options.renderingOptions.setUsePNGPalette(true);
+					options.renderingOptions.setAntialias(false);
+					options.renderingOptions.setDropShadows(false);
+				}
+				if(variant == 3) options.renderingOptions.setRenderingPool(pool);
+				for(String filename : FILES)
+					assertSameAsPNG(filename, options);
+
+				//a PNG that does not stretch is placed by its own
+				//size, far above the shape and in another band
+				CustomShapeDefinition definition = new CustomShapeDefinition();
+				definition.setTag("d");
+				definition.setFilename(shapeFile.getPath());
+				options.processingOptions.setCustomShapes(new HashMap<String, CustomShapeDefinition>());
+				options.processingOptions.getCustomShapes().put(definition.getTag(), definition);
+				StringBuilder text = new StringBuilder();
+				for(int i = 0; i < 40; i++) text.append('\n');
+				text.append("+-------------------+\n");
+				text.append("| {d}               |\n");
+				for(int i = 0; i < 4; i++) text.append("|                   |\n");
+				text.append("+-------------------+\n");
+				TextGrid grid = new TextGrid();
+				grid.initialiseWithText(text.toString(), options.processingOptions);
+				Diagram diagram = new Diagram(grid, options);
+				BufferedImage image = (BufferedImage) new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+				assertTrue(countPixels(image, 0xffff0000) > 0);
+				assertSameAsPNG("wide custom shape", diagram, options);
+			}
+		} finally {
+			shapeFile.delete();
+			pool.shutdown();
+		}
+	}
+
+	private static File makeWidePNG() throws IOException {
+		BufferedImage image = new BufferedImage(4000, 1000, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2 = image.createGraphics();
+		g2.setColor(Color.red);
+		g2.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g2.dispose();
+		File file = File.createTempFile("ditaa", ".png");
+		ImageIO.write(image, "png", file);
+		return file;
+	}
+
+	private static int countPixels(BufferedImage image, int argb){
+		int count = 0;
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				if(image.getRGB(x, y) == argb) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Each band of the PNG only draws the shapes and shadows that
+	 * reach it
+	 */
+	@Test public void testTallImageAsPNG() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 60; i++){
+			text.append("+-------+   /-----\\\n");
+			text.append("| cBLU  |-->| "+(i % 10)+"   |\n");
+			text.append("+---+---+   \\--+--/\n");
+			text.append("    |          |\n");
+		}
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text.toString(), options.processingOptions);
+		assertSameAsPNG("tall", new Diagram(grid, options), options);
+	}
+
+	private static void assertSameAsPNG(String filename, ConversionOptions options) throws IOException {
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(new File("test-resources/text", filename).getPath(), options.processingOptions);
+		assertSameAsPNG(filename, new Diagram(grid, options), options);
+	}
+
+	private static void assertSameAsPNG(String name, Diagram diagram, ConversionOptions options) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BitmapRenderer().renderToPNG(diagram, out, options.renderingOptions);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertSameImage(name,
+				(BufferedImage) new BitmapRenderer().renderToImage(diagram, options.renderingOptions), image);
+	}
+
+	/**
+	 * The shadows used to be blurred with a ConvolveOp over the whole
+	 * image, which leaves the edges as they are and makes the rest of
+	 * the background a shade darker
+	 */
+	@Test public void testBackgroundAsBlurred() throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText("+--+\n|  |\n+--+\n\n\n\n", options.processingOptions);
+		BufferedImage image = (BufferedImage) new BitmapRenderer().renderToImage(
+				new Diagram(grid, options), options.renderingOptions);
+
+		int bottom = image.getHeight() - 1;
+		assertEquals(0xffffffff, image.getRGB(2, bottom));
+		assertEquals(0xffffffff, image.getRGB(3, bottom - 2));
+		assertEquals(0xfffefefe, image.getRGB(3, bottom - 3));
+		assertEquals(0xffffffff, image.getRGB(image.getWidth() - 3, bottom - 3));
+
+		options.renderingOptions.setDropShadows(false);
+		image = (BufferedImage) new BitmapRenderer().renderToImage(
+				new Diagram(grid, options), options.renderingOptions);
+		assertEquals(0xffffffff, image.getRGB(3, bottom - 3));
+	}
+
+	private static BufferedImage render(String filename, ConversionOptions options) throws IOException {
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(new File("test-resources/text", filename).getPath(), options.processingOptions);
+		return (BufferedImage) new BitmapRenderer().renderToImage(
+				new Diagram(grid, options), options.renderingOptions);
+	}
+
+	private static void assertSameImage(String name, BufferedImage expected, BufferedImage image){
+		assertEquals(expected.getWidth(), image.getWidth());
+		assertEquals(expected.getHeight(), image.getHeight());
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				if(expected.getRGB(x, y) != image.getRGB(x, y))
+					fail("Pixel "+x+", "+y+" of "+name+" differs");
+			}
+		}
+	}
+}
@@ -21,6 +21,9 @@ package org.stathissideris.ascii2image.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.CellSet;
@@ -45,4 +48,127 @@ public class CellSetTest {
 		assertTrue(cell1.equals(cell2));
 		assertTrue(set.contains(cell1));
 	}
+
+	@Test public void testFirstIsTopLeft() {
+		assertEquals(g.new Cell(10, 20), set.getFirst());
+
+		CellSet other = new CellSet();
+		other.add(g.new Cell(300, 7));
+		other.add(g.new Cell(-5, 8));
+		other.add(g.new Cell(70, 7));
+		assertEquals(g.new Cell(70, 7), other.getFirst());
+	}
+
+	@Test public void testRemoveDuplicateSets() {
+		//the same cells, added in a different order so that the
+		//sets are laid out differently
+		CellSet sameSet = new CellSet();
+		sameSet.add(g.new Cell(60, 20));
+		sameSet.add(g.new Cell(10, 60));
+		sameSet.add(g.new Cell(10, 30));
+		sameSet.add(g.new Cell(10, 20));
+		
+		CellSet otherSet = new CellSet(set);
+		otherSet.add(g.new Cell(200, 20));
+		
+		ArrayList<CellSet> list = new ArrayList<CellSet>();
+		list.add(otherSet);
+		list.add(set);
+		list.add(new CellSet(otherSet));
+		list.add(sameSet);
+		
+		ArrayList<CellSet> unique = CellSet.removeDuplicateSets(list);
+		assertEquals(2, unique.size());
+		assertSame(otherSet, unique.get(0));
+		assertSame(set, unique.get(1));
+	}
+
+	@Test public void testGetTypeAfterChange() {
+		TextGrid grid = new TextGrid(7, 4);
+		grid.setRow(0, "+---+  ");
+		grid.setRow(1, "|   |  ");
+		grid.setRow(2, "+---+--");
+		grid.setRow(3, "       ");
+		
+		CellSet box = new CellSet();
+		for(int x = 0; x <= 4; x++){
+			box.add(x, 0);
+			box.add(x, 2);
+		}
+		box.add(0, 1);
+		box.add(4, 1);
+		assertEquals(CellSet.TYPE_CLOSED, box.getType(grid));
+		
+		//the type must not be remembered once the set has changed
+		box.add(5, 2);
+		box.add(6, 2);
+		assertEquals(CellSet.TYPE_MIXED, box.getType(grid));
+		box.crop(0, 0, 4, 3);
+		assertEquals(CellSet.TYPE_CLOSED, box.getType(grid));
+	}
+	
+	@Test public void testBreakIntoDistinctBoundariesAwayFromOrigin() {
+		TextGrid grid = new TextGrid(40, 20);
+		grid.setRow(10, "                           +--+  +-+    ");
+		grid.setRow(11, "                           |  |  | |    ");
+		grid.setRow(12, "                           +--+  +-+    ");
+		
+		CellSet boundaries = grid.getAllBoundaries();
+		ArrayList<CellSet> distinct = boundaries.breakIntoDistinctBoundaries(grid);
+		assertEquals(2, distinct.size());
+		
+		CellSet first = distinct.get(0);
+		assertEquals(10, first.size());
+		assertEquals(27, first.getMinX());
+		assertEquals(30, first.getMaxX());
+		assertEquals(10, first.getMinY());
+		assertEquals(12, first.getMaxY());
+		
+		CellSet second = distinct.get(1);
+		assertEquals(8, second.size());
+		assertEquals(33, second.getMinX());
+		assertEquals(35, second.getMaxX());
+	}
+	
+	@Test public void testIsUnionOfOnRandomSets() {
+		Random random = new Random(7);
+		for(int i = 0; i < 500; i++){
+			CellSet largest = makeRandomSet(random);
+			if(random.nextBoolean()) largest.crop(0, 0, 200, 200);
+			ArrayList<CellSet> sets = new ArrayList<CellSet>();
+			//often split largest in two, so that the answer varies
+			if(random.nextBoolean()){
+				int split = random.nextInt(140) - 5;
+				sets.add(makePart(largest, Integer.MIN_VALUE, split));
+				sets.add(makePart(largest, split, Integer.MAX_VALUE));
+			}
+			int count = random.nextInt(3);
+			for(int j = 0; j < count; j++) sets.add(makeRandomSet(random));
+			int maxX = random.nextBoolean() ? 200 : random.nextInt(140) - 5;
+			int maxY = random.nextBoolean() ? 200 : random.nextInt(20) - 2;
+			
+			CellSet sum = new CellSet();
+			for(CellSet part : sets) sum.addAll(part);
+			sum.crop(0, 0, maxX, maxY);
+			
+			assertEquals(largest.equals(sum), largest.isUnionOf(sets, maxX, maxY));
+		}
+	}
+	
+	private static CellSet makeRandomSet(Random random){
+		CellSet result = new CellSet();
+		int count = random.nextInt(30);
+		for(int i = 0; i < count; i++){
+			result.add(random.nextInt(140) - 5, random.nextInt(20) - 2);
+		}
+		return result;
+	}
+	
+	private static CellSet makePart(CellSet set, int minX, int maxX){
+		CellSet result = new CellSet();
+		for(TextGrid.Cell cell : set){
+			if(cell.x >= minX && cell.x < maxX) result.add(cell);
+		}
+		return result;
+	}
 }
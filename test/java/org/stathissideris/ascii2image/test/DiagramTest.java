@@ -0,0 +1,117 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.DiagramShape;
+import org.stathissideris.ascii2image.graphics.DiagramText;
+import org.stathissideris.ascii2image.graphics.ShapePoint;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class DiagramTest {
+
+	private static final String TALL_DIAGRAM =
+		"+--------+   +-----+\n" +
+		"| cBLU   |-->| one |\n" +
+		"+--------+   +-----+\n" +
+		"\n" +
+		"   some text\n" +
+		"\n" +
+		"  /------\\\n" +
+		"  | two  +----+\n" +
+		"  \\------/    |\n" +
+		"              v\n" +
+		"          +-------+\n" +
+		"          | three |\n" +
+		"          +-------+\n";
+
+	@Test public void testBandsGiveSameDiagram() throws UnsupportedEncodingException {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(TALL_DIAGRAM, options.processingOptions);
+		Diagram whole = new Diagram(grid, options);
+
+		options.processingOptions.setProcessInBands(true);
+		Diagram banded = new Diagram(grid, options);
+
+		assertEquals(whole.getWidth(), banded.getWidth());
+		assertEquals(whole.getHeight(), banded.getHeight());
+		//the shapes are in a different order, which does not matter
+		//as nothing in one band can overlap anything in another
+		assertEquals(describeShapes(whole), describeShapes(banded));
+		assertEquals(describeText(whole), describeText(banded));
+	}
+
+	/**
+	 * Closed shapes are traced from their top-left cell, so the paths
+	 * of the boxes start at their top-left corner
+	 */
+	@Test public void testShapesStartAtTopLeft() throws UnsupportedEncodingException {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(TALL_DIAGRAM, options.processingOptions);
+		Diagram diagram = new Diagram(grid, options);
+
+		int boxes = 0;
+		for(DiagramShape shape : diagram.getAllDiagramShapes()){
+			if(!shape.isClosed() || !shape.isRectangle()) continue;
+			ShapePoint start = shape.getPoint(0);
+			for(int i = 1; i < shape.getPoints().size(); i++){
+				ShapePoint point = shape.getPoint(i);
+				assertTrue(start.y <= point.y);
+				if(start.y == point.y) assertTrue(start.x <= point.x);
+			}
+			boxes++;
+		}
+		assertTrue(boxes > 0);
+	}
+
+	private static ArrayList<String> describeShapes(Diagram diagram){
+		ArrayList<String> result = new ArrayList<String>();
+		for(DiagramShape shape : diagram.getAllDiagramShapes()){
+			StringBuilder description = new StringBuilder();
+			description.append(shape.getType()).append(' ').append(shape.getFillColor());
+			for(Object point : shape.getPoints()){
+				description.append(' ').append((ShapePoint) point);
+			}
+			result.add(description.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private static ArrayList<String> describeText(Diagram diagram){
+		ArrayList<String> result = new ArrayList<String>();
+		for(DiagramText text : diagram.getTextObjects()){
+			result.add(text.getText() + " " + text.getXPos() + " " + text.getYPos()
+					+ " " + text.getColor());
+		}
+		Collections.sort(result);
+		return result;
+	}
+}
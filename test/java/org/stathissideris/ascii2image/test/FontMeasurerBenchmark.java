@@ -0,0 +1,93 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.stathissideris.ascii2image.graphics.FontMeasurer;
+
+/**
+ * Measures how FontMeasurer scales when it is shared by many
+ * rendering threads, as in the servlet. Each thread makes the same
+ * calls that Diagram and DiagramText make for every string.
+ */
+public class FontMeasurerBenchmark {
+
+	private static final String[] STRINGS = {
+		"a", "some text", "cBLU", "a much longer string of text", "{d}", "one", "two", "three"
+	};
+
+	private static final int ITERATIONS_PER_THREAD = 50000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int[] threadCounts = {1, 4, 16};
+		//warm up
+		run(FontMeasurer.instance(), 4);
+
+		for(int threads : threadCounts){
+			long best = Long.MAX_VALUE;
+			for(int round = 0; round < ROUNDS; round++)
+				best = Math.min(best, run(FontMeasurer.instance(), threads));
+			long iterations = (long) threads * ITERATIONS_PER_THREAD;
+			System.out.println(threads+" threads: "+iterations+" iterations in "+best+" ms, "
+					+(iterations / Math.max(1, best))+" iterations/ms");
+		}
+	}
+
+	/**
+	 * @return how many milliseconds it took <code>threads</code>
+	 * threads to make ITERATIONS_PER_THREAD iterations each
+	 */
+	private static long run(final FontMeasurer measurer, int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+			for(int t = 0; t < threads; t++){
+				tasks.add(new Callable<Integer>() {
+					public Integer call() {
+						int sum = 0;
+						for(int i = 0; i < ITERATIONS_PER_THREAD; i++){
+							String string = STRINGS[i % STRINGS.length];
+							Font font = measurer.getFontFor(14);
+							sum += measurer.getWidthFor(string, font);
+							sum += measurer.getAscent(font);
+							sum += measurer.getZHeight(font);
+							Font lessWide = measurer.getFontFor(20 + i % 50, string);
+							if(lessWide != null) sum += lessWide.getSize();
+						}
+						return sum;
+					}
+				});
+			}
+			long start = System.currentTimeMillis();
+			for(Future<Integer> result : executor.invokeAll(tasks)) result.get();
+			return System.currentTimeMillis() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
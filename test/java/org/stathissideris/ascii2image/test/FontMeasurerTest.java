@@ -0,0 +1,126 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.FontMeasurer;
+
+public class FontMeasurerTest {
+
+	private static final String[] STRINGS = {
+		"a", "W", "some text", "a much longer string of text"
+	};
+
+	@Test public void testFontForHeightMatchesStepping() {
+		FontMeasurer measurer = new FontMeasurer();
+		for(int height = 0; height <= 100; height++){
+			assertEquals("height "+height, getFontForHeightByStepping(measurer, height), measurer.getFontFor(height));
+			//and again, from what was remembered
+			assertEquals("height "+height, getFontForHeightByStepping(measurer, height), measurer.getFontFor(height));
+		}
+	}
+
+	@Test public void testFontForWidthMatchesStepping() {
+		FontMeasurer measurer = new FontMeasurer();
+		for(String string : STRINGS){
+			for(int width = -1; width <= 500; width += 7){
+				String message = "\""+string+"\" in "+width;
+				assertEquals(message, getFontForWidthByStepping(measurer, width, string), measurer.getFontFor(width, string));
+				assertEquals(message, getFontForWidthByStepping(measurer, width, string), measurer.getFontFor(width, string));
+			}
+		}
+	}
+
+	@Test public void testConcurrentMeasuring() throws Exception {
+		final FontMeasurer sequential = new FontMeasurer();
+		final FontMeasurer shared = new FontMeasurer();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(int t = 0; t < 16; t++){
+				final int offset = t;
+				results.add(executor.submit(new Callable<String>() {
+					public String call() {
+						for(int i = 0; i < 200; i++){
+							int height = (i + offset) % 60;
+							String string = STRINGS[(i + offset) % STRINGS.length];
+							if(!equal(sequential.getFontFor(height), shared.getFontFor(height)))
+								return "height "+height;
+							if(sequential.getAscent(shared.getFontFor(40)) != shared.getAscent(sequential.getFontFor(40)))
+								return "ascent";
+							if(!equal(sequential.getFontFor(i, string), shared.getFontFor(i, string)))
+								return "\""+string+"\" in "+i;
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<String> result : results) assertNull(result.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static boolean equal(Font a, Font b){
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * How FontMeasurer used to find the font for a height, half a point at a time
+	 */
+	private static Font getFontForHeightByStepping(FontMeasurer measurer, int pixelHeight){
+		Font font = new Font("Dialog", Font.BOLD, 12);
+		if(measurer.getAscent(font) > pixelHeight){
+			for(float size = 11; size > 0; size -= 0.5f){
+				if(measurer.getAscent(font.deriveFont(size)) < pixelHeight) return font.deriveFont(size);
+			}
+			return null;
+		}
+		for(float size = 13; ; size += 0.5f){
+			if(measurer.getAscent(font.deriveFont(size)) > pixelHeight) return font.deriveFont(size - 0.5f);
+		}
+	}
+
+	/**
+	 * How FontMeasurer used to fit a string in a width, a point at a time
+	 */
+	private static Font getFontForWidthByStepping(FontMeasurer measurer, int maxWidth, String string){
+		Font font = new Font("Dialog", Font.BOLD, 12);
+		if(measurer.getWidthFor(string, font) > maxWidth){
+			for(float size = 11; size > 0; size--){
+				if(measurer.getWidthFor(string, font.deriveFont(size)) < maxWidth) return font.deriveFont(size);
+			}
+			return null;
+		}
+		for(float size = 13; ; size++){
+			if(measurer.getWidthFor(string, font.deriveFont(size)) > maxWidth) return font.deriveFont(size - 1);
+		}
+	}
+}
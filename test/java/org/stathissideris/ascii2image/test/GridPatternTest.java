@@ -21,10 +21,18 @@ package org.stathissideris.ascii2image.test;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.CellSet;
 import org.stathissideris.ascii2image.text.GridPattern;
+import org.stathissideris.ascii2image.text.GridPatternGroup;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 public class GridPatternTest {
@@ -46,4 +54,64 @@ public class GridPatternTest {
 		pattern.isMatchedBy(g);
 	}
 
+	/**
+	 * The lookup tables of isAnyMatchedBy(grid, x, y) must give the same
+	 * results as the regular expressions for every cell of the test files
+	 * (and the cells just outside them).
+	 */
+	@Test public void testCompiledGroupsOnTestFiles() throws IOException, IllegalAccessException {
+		ArrayList<GridPatternGroup> groups = getStaticGroups();
+		File[] files = new File("test-resources/text").listFiles();
+		assertNotNull(files);
+		for(File file : files){
+			if(!file.getName().endsWith(".txt")) continue;
+			TextGrid grid = new TextGrid();
+			grid.loadFrom(file.getPath());
+			assertCompiledGroupsMatchRegExps(groups, grid, file.getName());
+		}
+	}
+
+	/**
+	 * Same as above, for random grids that also contain characters
+	 * which are not likely to appear in the test files.
+	 */
+	@Test public void testCompiledGroupsOnRandomGrids() throws IllegalAccessException {
+		ArrayList<GridPatternGroup> groups = getStaticGroups();
+		String alphabet = "  -=|:+/\\*<>^vV.'`#{}()[]%1a\t\n\r\0\u0085\u2028\u00e9\ud83d\ude00";
+		Random random = new Random(12345);
+		for(int i = 0; i < 50; i++){
+			TextGrid grid = new TextGrid(20, 20);
+			for(int y = 0; y < 20; y++){
+				for(int x = 0; x < 20; x++){
+					grid.set(x, y, alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+			}
+			assertCompiledGroupsMatchRegExps(groups, grid, "random grid "+i);
+		}
+	}
+
+	private static void assertCompiledGroupsMatchRegExps(ArrayList<GridPatternGroup> groups, TextGrid grid, String name){
+		for(int y = -1; y <= grid.getHeight(); y++){
+			for(int x = -1; x <= grid.getWidth(); x++){
+				TextGrid subGrid = grid.getTestingSubGrid(grid.new Cell(x, y));
+				for(GridPatternGroup group : groups){
+					assertEquals("cell ("+x+", "+y+") of "+name,
+							group.isAnyMatchedBy(subGrid),
+							group.isAnyMatchedBy(grid, x, y));
+				}
+			}
+		}
+	}
+
+	private static ArrayList<GridPatternGroup> getStaticGroups() throws IllegalAccessException {
+		ArrayList<GridPatternGroup> groups = new ArrayList<GridPatternGroup>();
+		for(Field field : GridPatternGroup.class.getFields()){
+			if(Modifier.isStatic(field.getModifiers())
+					&& field.getType() == GridPatternGroup.class){
+				groups.add((GridPatternGroup) field.get(null));
+			}
+		}
+		assertFalse(groups.isEmpty());
+		return groups;
+	}
 }
@@ -0,0 +1,74 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import java.util.Arrays;
+
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.IncrementalDiagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Measures how long IncrementalDiagram takes to bring the live
+ * preview up to date when a character is typed in a box of a large
+ * diagram that is all connected, so it is all one band, compared to
+ * processing and rendering it from scratch.
+ */
+public class IncrementalDiagramBenchmark {
+
+	private static final int COLUMNS = 12;
+	private static final int ROWS = 25;
+	private static final int WARM_UP = 200;
+	private static final int EDITS = 200;
+
+	public static void main(String[] args) throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		char[][] cells = IncrementalDiagramTest.makeConnectedBoxes(COLUMNS, ROWS);
+		TextGrid grid = IncrementalDiagramTest.toGrid(cells, options);
+
+		long start = System.nanoTime();
+		Diagram diagram = new Diagram(grid, options);
+		long processed = System.nanoTime();
+		new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+		long rendered = System.nanoTime();
+		System.out.println(grid.getWidth()+"x"+grid.getHeight()+" cells, "
+				+diagram.getAllDiagramShapes().size()+" shapes: processed in "
+				+(processed - start) / 1000000+" ms, rendered in "+(rendered - processed) / 1000000+" ms");
+
+		IncrementalDiagram incremental = new IncrementalDiagram(options);
+		incremental.update(grid);
+		//type in the box in the middle
+		int y = 5 * (ROWS / 2) + 1;
+		int x = 12 * (COLUMNS / 2) + 3;
+		long[] times = new long[EDITS];
+		for(int i = 0; i < WARM_UP + EDITS; i++){
+			cells[y][x] = (char) ('a' + i % 26);
+			grid = IncrementalDiagramTest.toGrid(cells, options);
+			start = System.nanoTime();
+			incremental.update(grid);
+			if(i >= WARM_UP) times[i - WARM_UP] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		System.out.println("one character typed: median "+times[EDITS / 2] / 1000+" us, 90th percentile "
+				+times[EDITS * 9 / 10] / 1000+" us, worst "+times[EDITS - 1] / 1000+" us");
+	}
+}
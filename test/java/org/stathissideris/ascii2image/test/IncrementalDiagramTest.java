@@ -0,0 +1,194 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.IncrementalDiagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class IncrementalDiagramTest {
+
+	private static final String[][] BLOCKS = {
+		{"+--------+   +-----+",
+		 "| cBLU   |-->| one |",
+		 "+--------+   +-----+"},
+		{"   some text"},
+		{"  /------\\",
+		 "  | two  +----+",
+		 "  \\------/    |",
+		 "              v",
+		 "          +-------+",
+		 "          | three |",
+		 "          +-------+"},
+		{"  +----+",
+		 "  |{d} |",
+		 "  +----+"},
+		{"  ---=----> four"},
+	};
+
+	@Test public void testUpdatesGiveSameImage() throws UnsupportedEncodingException {
+		ConversionOptions options = new ConversionOptions();
+		IncrementalDiagram incremental = new IncrementalDiagram(options);
+		Random random = new Random(16);
+
+		//the first line keeps the width of the grid the same
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add("title ---------------------------------");
+		int partialUpdates = 0;
+		for(int i = 0; i < 60; i++){
+			edit(lines, random);
+
+			TextGrid grid = new TextGrid();
+			grid.initialiseWithText(join(lines), options.processingOptions);
+			Rectangle changed = incremental.update(grid);
+			if(changed != null && changed.height < incremental.getImage().getHeight())
+				partialUpdates++;
+
+			BufferedImage image = incremental.getImage();
+			BufferedImage expected = (BufferedImage) new BitmapRenderer().renderToImage(
+					incremental.getDiagram(), options.renderingOptions);
+			assertEquals(expected.getWidth(), image.getWidth());
+			assertEquals(expected.getHeight(), image.getHeight());
+			for(int y = 0; y < image.getHeight(); y++){
+				for(int x = 0; x < image.getWidth(); x++){
+					if(!isClose(expected.getRGB(x, y), image.getRGB(x, y)))
+						fail("Pixel "+x+", "+y+" differs after edit "+i+" (changed: "+changed+")");
+				}
+			}
+		}
+		assertTrue(partialUpdates > 0);
+	}
+
+	/**
+	 * Types into the boxes of a diagram that is all one band, and
+	 * has to be brought up to date without processing it again.
+	 */
+	@Test public void testTextEditsInOneBand() throws UnsupportedEncodingException {
+		ConversionOptions options = new ConversionOptions();
+		IncrementalDiagram incremental = new IncrementalDiagram(options);
+		Random random = new Random(16);
+
+		char[][] cells = makeConnectedBoxes(4, 3);
+		incremental.update(toGrid(cells, options));
+		int partialUpdates = 0;
+		for(int i = 0; i < 40; i++){
+			//anywhere in a box, even next to its lines, and sometimes
+			//something that changes the shapes
+			int y = 5 * random.nextInt(3) + 1 + random.nextInt(2);
+			int x = 12 * random.nextInt(4) + 1 + random.nextInt(7);
+			cells[y][x] = "abc XYZ12 _-|v*{}"
+					.charAt(random.nextInt(i % 4 == 3 ? 17 : 10));
+
+			TextGrid grid = toGrid(cells, options);
+			Rectangle changed = incremental.update(grid);
+			if(changed != null && changed.height < incremental.getImage().getHeight() / 2)
+				partialUpdates++;
+
+			IncrementalDiagram processed = new IncrementalDiagram(options);
+			processed.update(grid);
+			BufferedImage expected = processed.getImage();
+			BufferedImage image = incremental.getImage();
+			assertEquals(expected.getHeight(), image.getHeight());
+			for(y = 0; y < image.getHeight(); y++){
+				for(x = 0; x < image.getWidth(); x++){
+					if(!isClose(expected.getRGB(x, y), image.getRGB(x, y)))
+						fail("Pixel "+x+", "+y+" differs after edit "+i+" (changed: "+changed+")");
+				}
+			}
+		}
+		assertTrue(partialUpdates > 20);
+	}
+
+	/**
+	 * @return a grid of boxes with two lines of text, all connected
+	 * by lines, with no blank rows
+	 */
+	static char[][] makeConnectedBoxes(int columns, int rows){
+		String[] box = {
+			"+-------+   ",
+			"| one   |---",
+			"| cBLU  |   ",
+			"+---+---+   ",
+			"    |       "
+		};
+		char[][] cells = new char[5 * rows - 1][];
+		for(int y = 0; y < cells.length; y++){
+			StringBuilder line = new StringBuilder();
+			for(int column = 0; column < columns; column++) line.append(box[y % 5]);
+			cells[y] = line.toString().toCharArray();
+		}
+		return cells;
+	}
+
+	static TextGrid toGrid(char[][] cells, ConversionOptions options) throws UnsupportedEncodingException {
+		StringBuilder text = new StringBuilder();
+		for(char[] line : cells) text.append(line).append('\n');
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text.toString(), options.processingOptions);
+		return grid;
+	}
+
+	/**
+	 * The antialiasing of the rows that are rendered on their
+	 * own can be a shade or two off
+	 */
+	private static boolean isClose(int rgb1, int rgb2){
+		for(int shift = 0; shift < 32; shift += 8){
+			if(Math.abs(((rgb1 >> shift) & 0xff) - ((rgb2 >> shift) & 0xff)) > 2) return false;
+		}
+		return true;
+	}
+
+	private static void edit(ArrayList<String> lines, Random random){
+		int line = 1 + random.nextInt(lines.size());
+		switch(random.nextInt(4)){
+		case 0:
+			String[] block = BLOCKS[random.nextInt(BLOCKS.length)];
+			lines.add(line, "");
+			for(int i = block.length - 1; i >= 0; i--) lines.add(line, block[i]);
+			break;
+		case 1:
+			lines.add(line, "");
+			break;
+		case 2:
+			if(line < lines.size()) lines.remove(line);
+			break;
+		case 3:
+			if(line < lines.size()) lines.set(line, lines.get(line).replace(' ', '-'));
+			break;
+		}
+	}
+
+	private static String join(ArrayList<String> lines){
+		StringBuilder text = new StringBuilder();
+		for(String line : lines) text.append(line).append('\n');
+		return text.toString();
+	}
+}
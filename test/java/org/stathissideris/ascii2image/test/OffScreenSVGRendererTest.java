@@ -0,0 +1,149 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.OffScreenSVGRenderer;
+
+public class OffScreenSVGRendererTest {
+
+	private static final String SVG =
+		"<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"10\" height=\"10\">" +
+		"<circle id=\"fill\" cx=\"5\" cy=\"5\" r=\"4\" style=\"fill:#%s\"/>" +
+		"</svg>";
+
+	private File file;
+	private String uri;
+
+	@Before public void setUp() throws IOException {
+		file = File.createTempFile("ditaa", ".svg");
+		writeSVG("ff0000");
+		uri = file.toURI().toString();
+	}
+
+	@After public void tearDown(){
+		file.delete();
+	}
+
+	@Test public void testSameImageFromCache() throws IOException {
+		OffScreenSVGRenderer renderer = new OffScreenSVGRenderer();
+		BufferedImage image = renderer.renderToImage(uri, 40, 30);
+		assertSame(image, renderer.renderToImage(uri, 40, 30));
+		assertNotSame(image, renderer.renderToImage(uri, 30, 40));
+
+		renderer.clearCache();
+		BufferedImage again = renderer.renderToImage(uri, 40, 30);
+		assertNotSame(image, again);
+		assertSameImage(image, again);
+	}
+
+	@Test public void testChangedFileRenderedAgain() throws IOException {
+		OffScreenSVGRenderer renderer = new OffScreenSVGRenderer();
+		BufferedImage image = renderer.renderToImage(uri, 40, 40);
+		assertEquals(0xffff0000, image.getRGB(20, 20));
+
+		long modified = file.lastModified();
+		writeSVG("0000ff");
+		//file systems can keep the time in whole seconds
+		file.setLastModified(modified + 2000);
+		image = renderer.renderToImage(uri, 40, 40);
+		assertEquals(0xff0000ff, image.getRGB(20, 20));
+	}
+
+	@Test public void testImagesAreBounded() throws IOException {
+		long maxBytes = 3 * 4 * 50 * 50;
+		OffScreenSVGRenderer renderer = new OffScreenSVGRenderer(maxBytes);
+		BufferedImage first = renderer.renderToImage(uri, 50, 50);
+		for(int i = 1; i < 10; i++){
+			renderer.renderToImage(uri, 50, 50 - i);
+			assertTrue(renderer.getImageBytes() <= maxBytes);
+		}
+		//the first one was dropped
+		assertNotSame(first, renderer.renderToImage(uri, 50, 50));
+
+		//too big to keep
+		renderer.renderToImage(uri, 100, 100);
+		assertTrue(renderer.getImageBytes() <= maxBytes);
+	}
+
+	@Test public void testConcurrentRenders() throws Exception {
+		final OffScreenSVGRenderer renderer = new OffScreenSVGRenderer(4 * 20 * 20 * 5);
+		OffScreenSVGRenderer reference = new OffScreenSVGRenderer();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ArrayList<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+			for(int i = 0; i < 200; i++){
+				final int size = 20 + i % 7;
+				final Color color = i % 2 == 0 ? null : Color.green;
+				futures.add(executor.submit(new Callable<BufferedImage>() {
+					public BufferedImage call() throws IOException {
+						return renderer.renderToImage(uri, size, size, false, "fill", color);
+					}
+				}));
+			}
+			for(int i = 0; i < futures.size(); i++){
+				int size = 20 + i % 7;
+				Color color = i % 2 == 0 ? null : Color.green;
+				assertSameImage(reference.renderToImage(uri, size, size, false, "fill", color),
+						futures.get(i).get());
+			}
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void writeSVG(String color) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(String.format(SVG, color).getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void assertSameImage(BufferedImage expected, BufferedImage image){
+		assertEquals(expected.getWidth(), image.getWidth());
+		assertEquals(expected.getHeight(), image.getHeight());
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				if(expected.getRGB(x, y) != image.getRGB(x, y))
+					fail("Pixel "+x+", "+y+" differs");
+			}
+		}
+	}
+}
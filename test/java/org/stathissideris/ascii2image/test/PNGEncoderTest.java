@@ -0,0 +1,219 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.PNGEncoder;
+
+public class PNGEncoderTest {
+
+	@Test public void testAllFilters() throws IOException {
+		for(int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR}){
+			BufferedImage image = makeImage(type);
+			for(int filter = PNGEncoder.FILTER_NONE; filter <= PNGEncoder.FILTER_ADAPTIVE; filter++){
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(),
+						image.getColorModel().hasAlpha());
+				encoder.setFilter(filter);
+				//in two bands
+				encoder.writeRows(image, 0, 7);
+				encoder.writeRows(image, 7, image.getHeight() - 7);
+				encoder.finish();
+
+				BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+				for(int y = 0; y < image.getHeight(); y++){
+					for(int x = 0; x < image.getWidth(); x++){
+						assertEquals("Pixel "+x+", "+y+" with filter "+filter,
+								image.getRGB(x, y), decoded.getRGB(x, y));
+					}
+				}
+			}
+		}
+	}
+
+	@Test public void testCompressionLevels() throws IOException {
+		BufferedImage image = makeImage(BufferedImage.TYPE_INT_RGB);
+		long previous = Long.MAX_VALUE;
+		for(int level : new int[] {0, 9}){
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(), false);
+			encoder.setCompressionLevel(level);
+			encoder.writeRows(image, 0, image.getHeight());
+			encoder.finish();
+			assertTrue(out.size() < previous);
+			previous = out.size();
+		}
+	}
+
+	@Test public void testMissingRows() throws IOException {
+		BufferedImage image = makeImage(BufferedImage.TYPE_INT_RGB);
+		PNGEncoder encoder = new PNGEncoder(new ByteArrayOutputStream(), image.getWidth(), image.getHeight(), false);
+		encoder.writeRows(image, 0, image.getHeight() - 1);
+		try {
+			encoder.finish();
+			fail("Finished without the last row");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+	}
+
+	@Test public void testPalette() throws IOException {
+		for(int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}){
+			BufferedImage image = new BufferedImage(37, 23, type);
+			for(int y = 0; y < image.getHeight(); y++){
+				for(int x = 0; x < image.getWidth(); x++){
+					//more than 256 colours as they are, but not when opaque
+					int pixel = (x * y % 200) << 8 | (x % 2 == 0 ? 0xff000000 : 0x40000000);
+					image.setRGB(x, y, pixel);
+				}
+			}
+			boolean alpha = image.getColorModel().hasAlpha();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(), alpha);
+			encoder.setPaletteIfPossible(true);
+			boolean written = encoder.writeRows(image, 0, image.getHeight());
+			if(alpha) {
+				assertFalse(written);
+				assertTrue(encoder.writeRows(image, 0, image.getHeight()));
+			} else {
+				assertTrue(written);
+			}
+			encoder.finish();
+			assertEquals(alpha ? 6 : 3, getColorType(out.toByteArray()));
+			assertSameImage(image, out.toByteArray());
+		}
+	}
+
+	@Test public void testPaletteWithAlpha() throws IOException {
+		BufferedImage image = new BufferedImage(37, 23, BufferedImage.TYPE_INT_ARGB);
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				image.setRGB(x, y, x < 10 ? 0 : x < 20 ? 0x80ff0000 : 0xff0000ff - y);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(), true);
+		encoder.setPaletteIfPossible(true);
+		//in two bands
+		assertTrue(encoder.writeRows(image, 0, 7));
+		assertTrue(encoder.writeRows(image, 7, image.getHeight() - 7));
+		encoder.finish();
+		assertEquals(3, getColorType(out.toByteArray()));
+		assertSameImage(image, out.toByteArray());
+	}
+
+	/**
+	 * Too many colours are only found in the second band, and all the
+	 * rows are written again
+	 */
+	@Test public void testPaletteOverflow() throws IOException {
+		BufferedImage image = makeImage(BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(), false);
+		encoder.setPaletteIfPossible(true);
+		assertTrue(encoder.writeRows(image, 0, 7));
+		assertFalse(encoder.writeRows(image, 7, image.getHeight() - 7));
+		assertEquals(0, out.size());
+		assertTrue(encoder.writeRows(image, 0, 7));
+		assertTrue(encoder.writeRows(image, 7, image.getHeight() - 7));
+		encoder.finish();
+		assertEquals(2, getColorType(out.toByteArray()));
+		assertSameImage(image, out.toByteArray());
+	}
+
+	/**
+	 * Large enough to be deflated in several blocks on the pool
+	 */
+	@Test public void testParallelDeflate() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for(int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}){
+				BufferedImage image = makeImage(type, 501, 409);
+				for(int level : new int[] {1, 6}){
+					for(int band : new int[] {1, 100, image.getHeight()}){
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						PNGEncoder encoder = new PNGEncoder(out, image.getWidth(), image.getHeight(),
+								image.getColorModel().hasAlpha());
+						encoder.setCompressionLevel(level);
+						encoder.setPool(pool);
+						for(int y = 0; y < image.getHeight(); y += band)
+							encoder.writeRows(image, y, Math.min(band, image.getHeight() - y));
+						encoder.finish();
+						assertSameImage(image, out.toByteArray());
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static int getColorType(byte[] png){
+		//after the signature, the length and type of IHDR, the size and the depth
+		return png[8 + 8 + 8 + 1];
+	}
+
+	private static void assertSameImage(BufferedImage image, byte[] png) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				int pixel = image.getRGB(x, y);
+				//transparent pixels can come back as any colour
+				if((pixel >>> 24) == 0) assertEquals("Pixel "+x+", "+y, 0, decoded.getRGB(x, y) >>> 24);
+				else assertEquals("Pixel "+x+", "+y, pixel, decoded.getRGB(x, y));
+			}
+		}
+	}
+
+	private static BufferedImage makeImage(int type){
+		return makeImage(type, 37, 23);
+	}
+
+	/**
+	 * Flat areas, as in diagrams, and noise, so that each filter
+	 * is picked for some rows
+	 */
+	private static BufferedImage makeImage(int type, int width, int height){
+		BufferedImage image = new BufferedImage(width, height, type);
+		Random random = new Random(7);
+		for(int y = 0; y < image.getHeight(); y++){
+			for(int x = 0; x < image.getWidth(); x++){
+				int pixel;
+				if(y % 5 == 0) pixel = random.nextInt();
+				else if(x < 20) pixel = 0xff3366cc;
+				else pixel = 0x80000000 | (x * 7 << 16) | (y * 11 << 8) | (x * y);
+				if(!image.getColorModel().hasAlpha()) pixel |= 0xff000000;
+				image.setRGB(x, y, pixel);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderCache;
+import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class RenderCacheTest {
+
+	private static final String DIAGRAM =
+		"+--------+   +-----+\n" +
+		"| cBLU   |-->| one |\n" +
+		"+--------+   +-----+\n";
+
+	@Test public void testSameGridAndOptionsHit() throws IOException {
+		RenderCache cache = new RenderCache();
+		ConversionOptions options = new ConversionOptions();
+		byte[] first = cache.render(makeGrid(DIAGRAM, options), options);
+		//trailing blank lines and a different line ending give the same grid
+		byte[] second = cache.render(makeGrid(DIAGRAM.replace("\n", "\r\n") + "\n\n", options), options);
+
+		assertSame(first, second);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertArrayEquals(RenderCache.renderFile(makeGrid(DIAGRAM, options), options), first);
+	}
+
+	@Test public void testStreamSameAsCached() throws IOException {
+		RenderCache cache = new RenderCache();
+		ConversionOptions options = new ConversionOptions();
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		cache.render(makeGrid(DIAGRAM, options), options, first);
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		cache.render(makeGrid(DIAGRAM, options), options, second);
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertArrayEquals(first.toByteArray(), second.toByteArray());
+		assertArrayEquals(cache.render(makeGrid(DIAGRAM, options), options), first.toByteArray());
+	}
+
+	@Test public void testOptionsChangeKey() throws UnsupportedEncodingException {
+		ConversionOptions options = new ConversionOptions();
+		String key = RenderCache.getKey(makeGrid(DIAGRAM, options), options);
+
+		ConversionOptions noShadows = new ConversionOptions();
+		noShadows.renderingOptions.setDropShadows(false);
+		assertNotEquals(key, RenderCache.getKey(makeGrid(DIAGRAM, noShadows), noShadows));
+
+		ConversionOptions scaled = new ConversionOptions();
+		scaled.renderingOptions.setScale(2);
+		assertNotEquals(key, RenderCache.getKey(makeGrid(DIAGRAM, scaled), scaled));
+
+		//this only changes how the diagram is processed
+		ConversionOptions banded = new ConversionOptions();
+		banded.processingOptions.setProcessInBands(true);
+		assertEquals(key, RenderCache.getKey(makeGrid(DIAGRAM, banded), banded));
+	}
+
+	@Test public void testShapeFileChangesKey() throws IOException {
+		File file = File.createTempFile("ditaa", ".svg");
+		try {
+			writeFile(file, "<svg/>");
+			CustomShapeDefinition shape = new CustomShapeDefinition();
+			shape.setTag("SHP");
+			shape.setFilename(file.getPath());
+			ConversionOptions options = new ConversionOptions();
+			options.processingOptions.setCustomShapes(new HashMap<String, CustomShapeDefinition>());
+			options.processingOptions.getCustomShapes().put(shape.getTag(), shape);
+			String key = RenderCache.getKey(makeGrid(DIAGRAM, options), options);
+			assertEquals(key, RenderCache.getKey(makeGrid(DIAGRAM, options), options));
+
+			writeFile(file, "<svg width=\"10\"/>");
+			assertNotEquals(key, RenderCache.getKey(makeGrid(DIAGRAM, options), options));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test public void testMemoryIsBounded() throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		long size = RenderCache.renderFile(makeGrid(DIAGRAM, options), options).length;
+		RenderCache cache = new RenderCache(size * 3 / 2, null);
+
+		cache.render(makeGrid(DIAGRAM, options), options);
+		cache.render(makeGrid(DIAGRAM.replace("one", "two"), options), options);
+		assertTrue(cache.getBytes() <= size * 3 / 2);
+		//the first one was dropped
+		cache.render(makeGrid(DIAGRAM, options), options);
+		assertEquals(0, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test public void testDirectory() throws IOException {
+		File directory = File.createTempFile("ditaa", "cache");
+		directory.delete();
+		try {
+			ConversionOptions options = new ConversionOptions();
+			byte[] first = new RenderCache(RenderCache.DEFAULT_MAX_BYTES, directory).render(makeGrid(DIAGRAM, options), options);
+			String key = RenderCache.getKey(makeGrid(DIAGRAM, options), options);
+			assertTrue(new File(directory, key + ".png").isFile());
+
+			RenderCache cache = new RenderCache(RenderCache.DEFAULT_MAX_BYTES, directory);
+			byte[] second = cache.render(makeGrid(DIAGRAM, options), options);
+			assertArrayEquals(first, second);
+			assertEquals(1, cache.getDirectoryHits());
+			assertEquals(0, cache.getMisses());
+		} finally {
+			for(File file : directory.listFiles()) file.delete();
+			directory.delete();
+		}
+	}
+
+	private static void writeFile(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static TextGrid makeGrid(String text, ConversionOptions options) throws UnsupportedEncodingException {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text, options.processingOptions);
+		return grid;
+	}
+}
@@ -23,11 +23,14 @@ import static org.junit.Assert.*;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.AbstractionGrid;
 import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.RegionLabeller;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 public class TextGridTest {
@@ -280,6 +283,109 @@ public class TextGridTest {
 		assertEquals(expectedCellSet, cellSet);
 	}
 	
+	@Test public void testFillContinuousAreaOnRandomGrids() {
+		Random random = new Random(6);
+		for(int i = 0; i < 200; i++){
+			TextGrid grid = makeRandomGrid(random, 1 + random.nextInt(150), 1 + random.nextInt(30), " *x");
+			int x = random.nextInt(grid.getWidth());
+			int y = random.nextInt(grid.getHeight());
+
+			TextGrid expectedGrid = new TextGrid(grid);
+			CellSet expectedBoundaries = new CellSet();
+			CellSet expectedFilled = naiveFill(expectedGrid, x, y, '+', expectedBoundaries);
+
+			CellSet filled = grid.fillContinuousArea(x, y, '+');
+			assertEquals(expectedFilled, filled);
+			assertEquals(expectedFilled.size(), filled.size());
+			assertTrue(expectedGrid.equals(grid));
+		}
+	}
+
+	@Test public void testFindBoundariesExpandingFromOnRandomGrids() {
+		Random random = new Random(7);
+		for(int i = 0; i < 200; i++){
+			TextGrid grid = makeRandomGrid(random, 1 + random.nextInt(150), 1 + random.nextInt(30), "  *x");
+			int x = random.nextInt(grid.getWidth());
+			int y = random.nextInt(grid.getHeight());
+
+			CellSet expectedBoundaries = new CellSet();
+			naiveFill(new TextGrid(grid), x, y, (char) 1, expectedBoundaries);
+
+			CellSet boundaries = grid.findBoundariesExpandingFrom(grid.new Cell(x, y));
+			assertEquals(expectedBoundaries, boundaries);
+			assertEquals(expectedBoundaries.size(), boundaries.size());
+		}
+	}
+
+	@Test public void testRegionLabellerOnRandomGrids() {
+		Random random = new Random(8);
+		for(int i = 0; i < 200; i++){
+			TextGrid grid = makeRandomGrid(random, 1 + random.nextInt(100), 1 + random.nextInt(30),
+					i % 2 == 0 ? " *" : "    *");
+
+			//one boundary fill for each region, the way Diagram used to do it
+			ArrayList<CellSet> expected = new ArrayList<CellSet>();
+			TextGrid visited = new TextGrid(grid);
+			for(int y = 0; y < grid.getHeight(); y++){
+				for(int x = 0; x < grid.getWidth(); x++){
+					if(visited.get(x, y) != ' ') continue;
+					TextGrid copyGrid = new TextGrid(grid);
+					CellSet boundaries = copyGrid.findBoundariesExpandingFrom(copyGrid.new Cell(x, y));
+					visited.fillContinuousArea(x, y, '.');
+					if(boundaries.size() > 0) expected.add(boundaries);
+				}
+			}
+
+			RegionLabeller labeller = new RegionLabeller(grid);
+			assertEquals(expected, labeller.getBoundaries());
+			for(int y = 0; y < grid.getHeight(); y++){
+				for(int x = 0; x < grid.getWidth(); x++){
+					int region = labeller.getRegion(x, y);
+					assertEquals(grid.get(x, y) == ' ', region >= 0);
+					assertTrue(region < labeller.getRegionCount());
+				}
+			}
+		}
+	}
+
+	private TextGrid makeRandomGrid(Random random, int width, int height, String alphabet) {
+		TextGrid grid = new TextGrid(width, height);
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				grid.set(x, y, alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * A plain 4-way flood fill that visits one cell at a time, used
+	 * as a reference. Adds the '*' cells next to the area to boundaries.
+	 */
+	private CellSet naiveFill(TextGrid grid, int x, int y, char newChar, CellSet boundaries) {
+		CellSet filled = new CellSet();
+		char oldChar = grid.get(x, y);
+		if(oldChar == newChar) return filled;
+		ArrayList<int[]> toVisit = new ArrayList<int[]>();
+		toVisit.add(new int[]{x, y});
+		while(!toVisit.isEmpty()){
+			int[] cell = toVisit.remove(toVisit.size() - 1);
+			char c = grid.get(cell[0], cell[1]);
+			if(grid.isOutOfBounds(cell[0], cell[1])) continue;
+			if(c == oldChar){
+				grid.set(cell[0], cell[1], newChar);
+				filled.add(cell[0], cell[1]);
+				toVisit.add(new int[]{cell[0], cell[1] - 1});
+				toVisit.add(new int[]{cell[0], cell[1] + 1});
+				toVisit.add(new int[]{cell[0] - 1, cell[1]});
+				toVisit.add(new int[]{cell[0] + 1, cell[1]});
+			} else if(c == '*'){
+				boundaries.add(cell[0], cell[1]);
+			}
+		}
+		return filled;
+	}
+
 	private void addSquareToCellSet(TextGrid grid, CellSet cellSet, int x, int y, int width, int height) {
 		for(int xx = 0; xx < width; xx++){
 			for(int yy = 0; yy < height; yy++){